@@ -0,0 +1,112 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link BlockCodec}s on blocks of 1024 stereo frames, against copying the raw PCM.
+ * Besides the operations per microsecond, JMH reports two counters per microsecond, that is, in MB/s:
+ * pcmBytes (the audio encoded or decoded) and wireBytes (the bytes that would be sent). The compression ratio is
+ * pcmBytes / wireBytes.
+ * Run it with: ./gradlew jmh -PjmhIncludes=CodecBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final int FRAMES = 1024;
+    private static final int CHANNELS = 2;
+
+    /**
+     * Bytes processed by the benchmarks, reported by JMH as rates.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long pcmBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pcmBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Param({"adpcm", "varint"})
+    public String codec;
+
+    @Param({"sine", "quiet"})
+    public String signal;
+
+    private BlockCodec encoder;
+    private BlockCodec decoder;
+    private byte[] pcm;
+    private byte[] block;
+    private int blockLength;
+    private byte[] decoded;
+
+    @Setup
+    public void setUp() {
+        encoder = BlockCodec.create(BlockCodec.forName(codec), CHANNELS);
+        decoder = BlockCodec.create(BlockCodec.forName(codec), CHANNELS);
+        pcm = new byte[FRAMES * CHANNELS * 2];
+        Random random = new Random(42);
+        for (int i = 0; i < FRAMES * CHANNELS; i++) {
+            int value = signal.equals("sine")
+                    ? (int) (16384 * Math.sin(2 * Math.PI * 440 * (i / CHANNELS) / 44100.0)) // 440 Hz at -6 dBFS
+                    : (int) (random.nextGaussian() * 100);                                     // Background noise
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        block = new byte[encoder.maxEncodedBytes(pcm.length)];
+        blockLength = encoder.encode(pcm, 0, pcm.length, block, 0);
+        decoded = new byte[decoder.maxDecodedBytes(blockLength)];
+    }
+
+    /**
+     * Raw PCM: the audio is only copied.
+     */
+    @Benchmark
+    public byte[] copyRawPcm(Bytes bytes) {
+        System.arraycopy(pcm, 0, decoded, 0, pcm.length);
+        bytes.pcmBytes += pcm.length;
+        bytes.wireBytes += pcm.length;
+        return decoded;
+    }
+
+    @Benchmark
+    public byte[] encode(Bytes bytes) {
+        int length = encoder.encode(pcm, 0, pcm.length, block, 0);
+        bytes.pcmBytes += pcm.length;
+        bytes.wireBytes += length;
+        return block;
+    }
+
+    @Benchmark
+    public byte[] decode(Bytes bytes) throws ProtocolException {
+        int length = decoder.decode(block, 0, blockLength, decoded, 0);
+        bytes.pcmBytes += length;
+        bytes.wireBytes += blockLength;
+        return decoded;
+    }
+}
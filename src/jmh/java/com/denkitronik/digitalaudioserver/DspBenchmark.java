@@ -0,0 +1,60 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time of each DSP stage, and of a typical chain, to process one 10 ms block of a 48 kHz stereo stream
+ * (480 frames). The resampler converts it to 44.1 kHz. The number of streams that one core can process in real time
+ * with a stage is 10000 / score (the score is in us/op).
+ * Run it with: ./gradlew jmh -PjmhIncludes=DspBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DspBenchmark {
+
+    private static final int FRAMES = 480;
+    private static final AudioFormat FORMAT = new AudioFormat(48000, 16, 2, true, false);
+
+    @Param({"gain:-6", "dcblock", "peak:1000:1:6", "gate:-50", "limit:-1", "resample:44100",
+            "dcblock,highpass:80,gate:-50,limit:-1"})
+    public String chain;
+
+    private DspChain dsp;
+    private float[] source;
+    private float[] block;
+
+    @Setup
+    public void setUp() {
+        dsp = DspChain.parse(chain, FORMAT);
+        source = new float[FRAMES * 2];
+        for (int i = 0; i < FRAMES; i++) { // 10 ms of a 440Hz sin wave at full scale with a DC offset
+            float value = (float) (0.2 + 0.8 * Math.sin(2 * Math.PI * 440 * i / 48000));
+            source[2 * i] = value;
+            source[2 * i + 1] = value;
+        }
+        block = new float[dsp.getMaxOutputFrames(FRAMES) * 2];
+    }
+
+    @Benchmark
+    public int process() {
+        System.arraycopy(source, 0, block, 0, source.length);
+        return dsp.process(block, FRAMES);
+    }
+}
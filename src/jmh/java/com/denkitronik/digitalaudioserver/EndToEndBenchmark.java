@@ -0,0 +1,572 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end benchmark of the whole pipeline. It starts the server headless on the loopback interface (mix written to a
+ * {@link NullSink}), drives it with {@link AudioDeviceSimulator} streams in the same JVM and writes the results as JSON,
+ * so two builds can be compared. It runs three phases, each one on a new server:
+ * - throughput: a few devices send the sin wave as fast as possible; the audio received per second is measured.
+ * - latency: N real-time devices send timestamped sin waves and one device sends a WAV file (48 kHz stereo, so the
+ *   mixer converts it), while the waveform and spectrum of the mix are computed and refreshed on the Event Dispatch
+ *   Thread at 30 fps like in the window (without painting). It measures the latency percentiles from the device to the
+ *   ingest thread, to the mixer and to the waveform, the delay and queue depth of the EDT (with probe events posted
+ *   every 10 ms), the allocation rate of every pipeline thread and the garbage collections.
+ * - capacity: the number of real-time devices doubles until the server falls behind; a level passes when the server
+ *   receives at least 99% of the audio, fewer than 1% of the mixer blocks are late and the p99 lateness of the devices
+ *   is below 20 ms. The highest level that passes is the maximum number of concurrent real-time streams.
+ * Usage: EndToEndBenchmark [--streams=16] [--seconds=10] [--fast-streams=4] [--max-streams=512] [--step-seconds=4]
+ * [--wav=FILE] [--output=e2e-results.json]
+ * Run it with: ./gradlew e2eBenchmark (the results are written to build/reports/e2e/results.json)
+ */
+public final class EndToEndBenchmark {
+
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long EDT_PROBE_NANOS = 10_000_000L;
+    private static final int REFRESH_FPS = 30;              // Same frame rate as the waveform window
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private int streams = 16;
+    private int seconds = 10;
+    private int fastStreams = 4;
+    private int maxStreams = 512;
+    private int stepSeconds = 4;
+    private Path wavFile;
+    private Path output = Paths.get("e2e-results.json");
+
+    private EndToEndBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark from the command line.
+     *
+     * @param args Options (see the class description)
+     */
+    public static void main(String[] args) {
+        EndToEndBenchmark benchmark = new EndToEndBenchmark();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--streams=")) {
+                benchmark.streams = Integer.parseInt(value);
+            } else if (arg.startsWith("--seconds=")) {
+                benchmark.seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--fast-streams=")) {
+                benchmark.fastStreams = Integer.parseInt(value);
+            } else if (arg.startsWith("--max-streams=")) {
+                benchmark.maxStreams = Integer.parseInt(value);
+            } else if (arg.startsWith("--step-seconds=")) {
+                benchmark.stepSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--wav=")) {
+                benchmark.wavFile = Paths.get(value);
+            } else if (arg.startsWith("--output=")) {
+                benchmark.output = Paths.get(value);
+            } else {
+                System.out.println("Unknown option: " + arg);
+                System.exit(1);
+            }
+        }
+        try {
+            benchmark.run();
+        } catch (IOException e) {
+            System.out.println("End-to-end benchmark failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.exit(0); // The EDT and the finished devices do not keep the JVM alive
+    }
+
+    /**
+     * Runs all the phases and writes the results.
+     *
+     * @throws IOException          If a server cannot be started or the results cannot be written
+     * @throws InterruptedException If the benchmark is interrupted
+     */
+    private void run() throws IOException, InterruptedException {
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("timestamp", Instant.now().toString());
+        results.put("environment", environment());
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("streams", streams);
+        parameters.put("seconds", seconds);
+        parameters.put("fastStreams", fastStreams);
+        parameters.put("maxStreams", maxStreams);
+        parameters.put("stepSeconds", stepSeconds);
+        parameters.put("wavFile", wavFile != null ? wavFile.toString() : "generated");
+        results.put("parameters", parameters);
+        results.put("throughput", throughputPhase());
+        results.put("latency", latencyPhase());
+        results.put("capacity", capacityPhase());
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        StringBuilder json = new StringBuilder();
+        writeJson(json, results, "");
+        json.append('\n');
+        try (OutputStream out = Files.newOutputStream(output)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println("End-to-end results written to " + output.toAbsolutePath());
+    }
+
+    /**
+     * Measures the audio that the server receives per second from devices that send as fast as possible.
+     *
+     * @return Results of the phase
+     * @throws IOException          If the server cannot be started
+     * @throws InterruptedException If the benchmark is interrupted
+     */
+    private Map<String, Object> throughputPhase() throws IOException, InterruptedException {
+        System.out.println("Throughput: " + fastStreams + " devices as fast as possible for " + seconds + " s");
+        AudioServer server = startServer();
+        try {
+            LoadGenerator devices = startDevices(server.getLocalPort(), fastStreams, false, false, seconds);
+            LockSupport.parkNanos(WARMUP_NANOS);
+            long startBytes = server.getMetrics().getBytesReceived();
+            long startFrames = server.getMetrics().getFramesReceived();
+            long start = System.nanoTime();
+            devices.awaitFinished(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            long elapsed = System.nanoTime() - start;
+            double bytesPerSecond = (server.getMetrics().getBytesReceived() - startBytes) * 1e9 / elapsed;
+            Map<String, Object> phase = new LinkedHashMap<>();
+            phase.put("devices", fastStreams);
+            phase.put("connected", devices.getConnected());
+            phase.put("bytesPerSecond", Math.round(bytesPerSecond));
+            phase.put("framesPerSecond", Math.round((server.getMetrics().getFramesReceived() - startFrames) * 1e9 / elapsed));
+            double streamEquivalent = bytesPerSecond / AudioDeviceSimulator.SIN_BYTES_PER_SECOND;
+            phase.put("realTimeStreamEquivalent", round(streamEquivalent));
+            System.out.printf("  %.0f bytes/s (%.1f real-time streams)%n", bytesPerSecond, streamEquivalent);
+            return phase;
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Measures the latencies, the EDT and the allocations with real-time sin wave devices and one WAV device.
+     *
+     * @return Results of the phase
+     * @throws IOException          If the server cannot be started or the WAV file cannot be created
+     * @throws InterruptedException If the benchmark is interrupted
+     */
+    private Map<String, Object> latencyPhase() throws IOException, InterruptedException {
+        System.out.println("Latency: " + streams + " real-time devices and one WAV device for " + seconds + " s");
+        Path wav = wavFile != null ? wavFile : generateWav(seconds + 2);
+        AudioServer server = startServer();
+        GuiPath gui = new GuiPath(server);
+        try {
+            LoadGenerator devices = startDevices(server.getLocalPort(), streams, true, true, seconds);
+            Thread wavDevice = new Thread(() -> new AudioDeviceSimulator(streams + 1).startClient("localhost",
+                    server.getLocalPort(), wav.toString()), "e2e-wav-device");
+            wavDevice.setDaemon(true);
+            wavDevice.start();
+            LockSupport.parkNanos(WARMUP_NANOS);
+            AudioMixer mixer = server.getMixer();
+            server.getMetrics().getNetworkLatency().reset();
+            server.getMetrics().getRenderLag().reset();
+            mixer.getPlaybackLatency().reset();
+            for (AudioDeviceSimulator device : devices.getDevices()) {
+                device.getLateness().reset(); // The lateness of the connections and the warmup is not measured
+            }
+            gui.edtLatency.reset();
+            gui.maxDepth = 0;
+            long startBlocks = mixer.getBlocks();
+            long startLate = mixer.getLateBlocks();
+            long startUnderruns = mixer.getUnderruns();
+            Map<String, Long> startAllocated = allocatedBytes();
+            long[] startGc = garbageCollections();
+            long start = System.nanoTime();
+            devices.awaitFinished(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            long elapsed = System.nanoTime() - start;
+            Map<String, Long> allocated = allocatedBytes();
+            long[] gc = garbageCollections();
+
+            LatencyHistogram lateness = new LatencyHistogram();
+            for (AudioDeviceSimulator device : devices.getDevices()) {
+                lateness.add(device.getLateness());
+            }
+            Map<String, Object> phase = new LinkedHashMap<>();
+            phase.put("devices", streams);
+            phase.put("connected", devices.getConnected());
+            Map<String, Object> latencies = new LinkedHashMap<>();
+            latencies.put("networkToIngest", percentiles(server.getMetrics().getNetworkLatency()));
+            latencies.put("ingestToPlayback", percentiles(mixer.getPlaybackLatency()));
+            latencies.put("renderLag", percentiles(server.getMetrics().getRenderLag()));
+            latencies.put("deviceLateness", percentiles(lateness));
+            phase.put("latencyMicros", latencies);
+            Map<String, Object> edt = new LinkedHashMap<>();
+            edt.put("probeDelayMicros", percentiles(gui.edtLatency));
+            edt.put("maxQueueDepth", gui.maxDepth);
+            edt.put("meanQueueDepth", round(gui.depthSamples > 0 ? (double) gui.depthSum / gui.depthSamples : 0));
+            phase.put("edt", edt);
+            Map<String, Object> mixing = new LinkedHashMap<>();
+            long blocks = mixer.getBlocks() - startBlocks;
+            mixing.put("blocks", blocks);
+            mixing.put("lateBlocks", mixer.getLateBlocks() - startLate);
+            mixing.put("underruns", mixer.getUnderruns() - startUnderruns);
+            phase.put("mixer", mixing);
+            Map<String, Object> allocation = new LinkedHashMap<>();
+            for (Map.Entry<String, Long> thread : allocated.entrySet()) {
+                long before = startAllocated.getOrDefault(thread.getKey(), 0L);
+                allocation.put(thread.getKey(), Math.round((thread.getValue() - before) * 1e9 / elapsed));
+            }
+            phase.put("allocationBytesPerSecond", allocation);
+            Map<String, Object> collections = new LinkedHashMap<>();
+            collections.put("count", gc[0] - startGc[0]);
+            collections.put("timeMillis", gc[1] - startGc[1]);
+            phase.put("garbageCollection", collections);
+            System.out.println("  ingest to playback p99: " + server.getMixer().getPlaybackLatency().getPercentile(99) / 1000
+                    + " us, EDT probe p99: " + gui.edtLatency.getPercentile(99) / 1000 + " us, max EDT queue depth: "
+                    + gui.maxDepth);
+            return phase;
+        } finally {
+            gui.stop();
+            server.stop();
+            if (wavFile == null) {
+                Files.deleteIfExists(wav);
+            }
+        }
+    }
+
+    /**
+     * Doubles the number of real-time devices until the server falls behind.
+     *
+     * @return Results of the phase
+     * @throws IOException          If a server cannot be started
+     * @throws InterruptedException If the benchmark is interrupted
+     */
+    private Map<String, Object> capacityPhase() throws IOException, InterruptedException {
+        System.out.println("Capacity: real-time devices doubled every " + stepSeconds + " s up to " + maxStreams);
+        List<Object> levels = new ArrayList<>();
+        int maxPassed = 0;
+        for (int count = Math.min(8, maxStreams); count <= maxStreams; count *= 2) {
+            AudioServer server = startServer();
+            Map<String, Object> level = new LinkedHashMap<>();
+            try {
+                LoadGenerator devices = startDevices(server.getLocalPort(), count, true, false, stepSeconds);
+                AudioMixer mixer = server.getMixer();
+                LockSupport.parkNanos(Math.min(WARMUP_NANOS, stepSeconds * 1_000_000_000L / 2)); // Half of a short step
+                long startSent = 0;
+                for (AudioDeviceSimulator device : devices.getDevices()) {
+                    startSent += device.getBytesSent();
+                    device.getLateness().reset(); // The lateness of the connections and the warmup is not measured
+                }
+                long startBytes = server.getMetrics().getBytesReceived();
+                long startBlocks = mixer.getBlocks();
+                long startLate = mixer.getLateBlocks();
+                long start = System.nanoTime();
+                devices.awaitFinished(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                long elapsed = System.nanoTime() - start;
+                LockSupport.parkNanos(100_000_000L); // Let the server read the last writes
+                long sent = -startSent;
+                LatencyHistogram lateness = new LatencyHistogram();
+                for (AudioDeviceSimulator device : devices.getDevices()) {
+                    sent += device.getBytesSent();
+                    lateness.add(device.getLateness());
+                }
+                double expected = (double) count * AudioDeviceSimulator.SIN_BYTES_PER_SECOND * elapsed / 1e9;
+                double received = (server.getMetrics().getBytesReceived() - startBytes) / expected;
+                long blocks = mixer.getBlocks() - startBlocks;
+                double late = blocks > 0 ? (double) (mixer.getLateBlocks() - startLate) / blocks : 0;
+                double latenessP99 = lateness.getPercentile(99) / 1e6;
+                boolean passed = devices.getConnected() == count && received >= 0.99 && late < 0.01 && latenessP99 < 20;
+                level.put("devices", count);
+                level.put("connected", devices.getConnected());
+                level.put("sentFraction", round(sent / expected));
+                level.put("receivedFraction", round(received));
+                level.put("lateBlockFraction", round(late));
+                level.put("deviceLatenessP99Millis", round(latenessP99));
+                level.put("passed", passed);
+                levels.add(level);
+                System.out.printf("  %4d devices: received %.1f%%, late blocks %.2f%%, lateness p99 %.2f ms: %s%n",
+                        count, received * 100, late * 100, latenessP99, passed ? "passed" : "failed");
+                if (!passed) {
+                    break;
+                }
+                maxPassed = count;
+            } finally {
+                server.stop();
+            }
+        }
+        Map<String, Object> phase = new LinkedHashMap<>();
+        phase.put("maxRealTimeStreams", maxPassed);
+        phase.put("levels", levels);
+        return phase;
+    }
+
+    /**
+     * Starts a headless server on a free port, with the mix written to a null sink.
+     *
+     * @return Started server
+     * @throws IOException If the server cannot be started
+     */
+    private static AudioServer startServer() throws IOException {
+        AudioServer server = new AudioServer(0, new NullSink());
+        server.start();
+        return server;
+    }
+
+    /**
+     * Starts a {@link LoadGenerator} whose devices send the sin wave of the simulator, each one on its own thread.
+     *
+     * @param port       TCP port of the server
+     * @param count      Number of devices
+     * @param realTime   True to send at the playback speed, false to send as fast as possible
+     * @param timestamps True to send timestamped packets (needed for the network latency)
+     * @param seconds    Duration of the streams
+     * @return The started load generator
+     */
+    private static LoadGenerator startDevices(int port, int count, boolean realTime, boolean timestamps, int seconds) {
+        LoadGenerator devices = new LoadGenerator("localhost", port, count, seconds, realTime);
+        devices.setTimestamps(timestamps);
+        devices.start();
+        return devices;
+    }
+
+    /**
+     * The work of the waveform window without the window: the waveform and the spectrum of the mix are computed on
+     * their own threads and their datasets are refreshed on the EDT at 30 fps. A probe thread posts an event to the
+     * EDT every 10 ms and measures how long it waits and how many probes are queued.
+     */
+    private static final class GuiPath {
+        final LatencyHistogram edtLatency = new LatencyHistogram();
+        final AtomicLong posted = new AtomicLong();
+        final AtomicLong executed = new AtomicLong();
+        final Thread waveformThread;
+        final Thread spectrumThread;
+        final Thread probeThread;
+        final Timer timer;
+        volatile long maxDepth;
+        volatile long depthSum;
+        volatile long depthSamples;
+
+        GuiPath(AudioServer server) {
+            AudioFormat format = AudioServer.MIX_FORMAT;
+            PcmRingBuffer mix = server.getMixer().getOutputRing();
+            WaveformDecimator decimator = new WaveformDecimator(150, format.getSampleRate() * 0.07 / 150,
+                    WaveformDecimator.Style.AVG, false);
+            WaveformDataset waveform = new WaveformDataset(decimator, 0.07 / 150, server.getMetrics().getRenderLag());
+            SpectrumAnalyzer analyzer = new SpectrumAnalyzer(mix, format, SpectrumAnalyzer.DEFAULT_FFT_SIZE, null);
+            SpectrumDataset spectrum = new SpectrumDataset(analyzer);
+            waveformThread = new Thread(new WaveformFeeder(mix, format, decimator), "audio-waveform");
+            spectrumThread = new Thread(analyzer, "audio-spectrum");
+            timer = new Timer(1000 / REFRESH_FPS, e -> {
+                waveform.refresh();
+                spectrum.refresh();
+            });
+            probeThread = new Thread(this::probe, "e2e-edt-probe");
+            for (Thread thread : new Thread[]{waveformThread, spectrumThread, probeThread}) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+            SwingUtilities.invokeLater(timer::start);
+        }
+
+        /**
+         * Posts a probe event to the EDT every 10 ms, and samples the number of probes still queued.
+         */
+        private void probe() {
+            while (!Thread.currentThread().isInterrupted()) {
+                long depth = posted.get() - executed.get();
+                maxDepth = Math.max(maxDepth, depth);
+                depthSum += depth;
+                depthSamples++;
+                long postedNanos = System.nanoTime();
+                posted.incrementAndGet();
+                SwingUtilities.invokeLater(() -> {
+                    edtLatency.record(System.nanoTime() - postedNanos);
+                    executed.incrementAndGet();
+                });
+                LockSupport.parkNanos(EDT_PROBE_NANOS);
+            }
+        }
+
+        /**
+         * Stops the timer and the threads.
+         */
+        void stop() {
+            SwingUtilities.invokeLater(timer::stop);
+            waveformThread.interrupt();
+            spectrumThread.interrupt();
+            probeThread.interrupt();
+        }
+    }
+
+    /**
+     * Writes a temporary WAV file with a 48 kHz stereo chord, so the WAV device exercises the sample rate conversion.
+     *
+     * @param seconds Duration of the audio
+     * @return Path of the file
+     * @throws IOException If the file cannot be written
+     */
+    private static Path generateWav(int seconds) throws IOException {
+        AudioFormat format = new AudioFormat(48000, 16, 2, true, false);
+        int frames = 48000 * seconds;
+        ByteBuffer data = ByteBuffer.allocate(frames * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; i++) {
+            double t = i / 48000.0;
+            double value = 0.2 * Math.sin(2 * Math.PI * 261.6 * t) + 0.2 * Math.sin(2 * Math.PI * 329.6 * t);
+            data.putShort((short) (value * Short.MAX_VALUE));
+            data.putShort((short) (0.3 * Math.sin(2 * Math.PI * 392.0 * t) * Short.MAX_VALUE));
+        }
+        Path file = Files.createTempFile("e2e-", ".wav");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(WavFile.header(format, data.capacity()));
+            out.write(data.array());
+        }
+        return file;
+    }
+
+    /**
+     * Returns the bytes allocated so far by every thread of the pipeline (the threads named audio-*).
+     *
+     * @return Allocated bytes by thread name
+     */
+    private static Map<String, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<String, Long> allocated = new LinkedHashMap<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("audio-")) {
+                allocated.merge(thread.getName(), threads.getThreadAllocatedBytes(thread.getId()), Long::sum);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Returns the number of garbage collections and their total time so far.
+     *
+     * @return Collections and time in milliseconds
+     */
+    private static long[] garbageCollections() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the description of the machine and the JVM, to know whether two results can be compared.
+     *
+     * @return Environment
+     */
+    private static Map<String, Object> environment() {
+        Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("javaVersion", System.getProperty("java.version"));
+        environment.put("javaVm", System.getProperty("java.vm.name"));
+        environment.put("os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        environment.put("arch", System.getProperty("os.arch"));
+        environment.put("processors", Runtime.getRuntime().availableProcessors());
+        environment.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+        return environment;
+    }
+
+    /**
+     * Returns the percentiles of a histogram in microseconds.
+     *
+     * @param histogram Histogram of nanoseconds
+     * @return Count, percentiles and maximum
+     */
+    private static Map<String, Object> percentiles(LatencyHistogram histogram) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("count", histogram.getCount());
+        for (double percentile : PERCENTILES) {
+            String name = "p" + (percentile == Math.rint(percentile) ? String.valueOf((int) percentile)
+                    : String.valueOf(percentile).replace('.', '_'));
+            values.put(name, round(histogram.getPercentile(percentile) / 1e3));
+        }
+        values.put("max", round(histogram.getMax() / 1e3));
+        return values;
+    }
+
+    /**
+     * Rounds a value to three decimals.
+     *
+     * @param value Value
+     * @return Rounded value
+     */
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * Writes a value as indented JSON. Maps are objects, lists are arrays, and numbers, booleans and strings are
+     * written as they are.
+     *
+     * @param json   Text where the value is appended
+     * @param value  Value
+     * @param indent Indentation of the current line
+     */
+    private static void writeJson(StringBuilder json, Object value, String indent) {
+        if (value instanceof Map) {
+            json.append("{\n");
+            String inner = indent + "  ";
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                json.append(first ? "" : ",\n").append(inner);
+                writeString(json, entry.getKey().toString());
+                json.append(": ");
+                writeJson(json, entry.getValue(), inner);
+                first = false;
+            }
+            json.append('\n').append(indent).append('}');
+        } else if (value instanceof List) {
+            json.append("[\n");
+            String inner = indent + "  ";
+            boolean first = true;
+            for (Object item : (List<?>) value) {
+                json.append(first ? "" : ",\n").append(inner);
+                writeJson(json, item, inner);
+                first = false;
+            }
+            json.append('\n').append(indent).append(']');
+        } else if (value instanceof Number || value instanceof Boolean) {
+            json.append(value);
+        } else {
+            writeString(json, String.valueOf(value));
+        }
+    }
+
+    /**
+     * Writes a JSON string, escaping the quotes, the backslashes and the control characters.
+     *
+     * @param json Text where the string is appended
+     * @param text String
+     */
+    private static void writeString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,74 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the real {@link Fft} kernel and a whole {@link SpectrumAnalyzer} frame (window, FFT and levels in dBFS)
+ * for several FFT sizes. At 44.1 kHz with frames half a frame apart, one stream needs 43 frames per second of
+ * 2048 points, so an analyzer frame must take much less than 23 ms.
+ * Run it with: ./gradlew jmh -PjmhIncludes=FftBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FftBenchmark {
+
+    @Param({"512", "2048", "8192"})
+    public int size;
+
+    private Fft fft;
+    private double[] input;
+    private double[] power;
+    private SpectrumAnalyzer analyzer;
+    private short[] samples;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        fft = new Fft(size);
+        input = new double[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = random.nextGaussian();
+        }
+        power = new double[size / 2 + 1];
+        analyzer = new SpectrumAnalyzer(new PcmRingBuffer(4, 2048), AudioServer.MIX_FORMAT, size, null);
+        samples = new short[size]; // Half a frame of stereo audio: exactly one analyzed frame per call
+        for (int i = 0; i < size; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+    }
+
+    /**
+     * The FFT kernel alone.
+     */
+    @Benchmark
+    public double[] powerSpectrum() {
+        fft.powerSpectrum(input, power);
+        return power;
+    }
+
+    /**
+     * One analyzed frame of stereo audio: downmix, window, FFT and conversion to dBFS.
+     */
+    @Benchmark
+    public SpectrumAnalyzer analyzerFrame() {
+        analyzer.add(samples, size, 2, 0);
+        return analyzer;
+    }
+}
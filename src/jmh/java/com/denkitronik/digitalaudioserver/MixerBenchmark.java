@@ -0,0 +1,68 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time to mix one 10 ms block of N 44.1 kHz mono streams, including the publication of each
+ * stream block in its ring buffer (the work of the ingest thread) and the decoding in the mixer.
+ * The number of streams that one core can mix in real time is streams * 10000 / score (the score is in us/op).
+ * Run it with: ./gradlew jmh -PjmhIncludes=MixerBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixerBenchmark {
+
+    @Param({"1", "16", "64", "256"})
+    public int streams;
+
+    @Param({"HARD", "SOFT"})
+    public AudioMixer.ClipMode clipMode;
+
+    private AudioMixer mixer;
+    private AudioStream[] inputs;
+    private ByteBuffer block;
+
+    @Setup
+    public void setUp() {
+        AudioFormat format = AudioStream.LEGACY_FORMAT;
+        mixer = new AudioMixer(format, null);
+        mixer.setClipMode(clipMode);
+        block = ByteBuffer.allocate(441 * 2);
+        for (int i = 0; i < 441; i++) { // 10 ms of a 440Hz sin wave at half scale
+            block.putShort(2 * i, Short.reverseBytes((short) (Math.sin(2 * Math.PI * 440 * i / 44100) * 16384)));
+        }
+        inputs = new AudioStream[streams];
+        for (int i = 0; i < streams; i++) {
+            inputs[i] = new AudioStream(i, null, null, null);
+            inputs[i].setRing(new PcmRingBuffer(64, 2048));
+            mixer.addStream(inputs[i]).setGain(1f / streams);
+        }
+    }
+
+    @Benchmark
+    public int mixBlock() {
+        for (AudioStream input : inputs) {
+            block.clear();
+            input.getRing().publish(block, 2);
+        }
+        return mixer.mixBlock();
+    }
+}
@@ -0,0 +1,102 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link PcmCodec} with the scalar loop that the waveform used to decode the audio
+ * (one sample at a time, big endian, with a branch for the sign), for several buffer sizes.
+ * Run it with: ./gradlew jmh -PjmhIncludes=PcmDecodeBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmDecodeBenchmark {
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int bytes;
+
+    private byte[] buffer;
+    private short[] shorts;
+    private float[] floats;
+    private PcmCodec codec16;
+    private PcmCodec codec16BigEndian;
+    private PcmCodec codec24;
+
+    @Setup
+    public void setUp() {
+        buffer = new byte[bytes * 3 / 2]; // Large enough for the 24-bit case
+        new Random(42).nextBytes(buffer);
+        shorts = new short[bytes];
+        floats = new float[bytes];
+        codec16 = new PcmCodec(new AudioFormat(44100, 16, 1, true, false));
+        codec16BigEndian = new PcmCodec(new AudioFormat(44100, 16, 1, true, true));
+        codec24 = new PcmCodec(new AudioFormat(44100, 24, 1, true, false));
+    }
+
+    /**
+     * The loop used by the waveform before the codec existed.
+     */
+    @Benchmark
+    public short[] scalarLegacy() {
+        for (int i = 0; i < bytes; i += 2) {
+            int scaledValue = ((buffer[i] & 0xFF) << 8) | (buffer[i + 1] & 0xFF);
+            if (scaledValue > Short.MAX_VALUE) {
+                scaledValue = (short) (scaledValue - 65536);
+            }
+            shorts[i / 2] = (short) scaledValue;
+        }
+        return shorts;
+    }
+
+    /**
+     * A branch-free scalar loop with the correct (little endian) byte order.
+     */
+    @Benchmark
+    public short[] scalarLittleEndian() {
+        for (int i = 0, j = 0; i < bytes; i += 2, j++) {
+            shorts[j] = (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8));
+        }
+        return shorts;
+    }
+
+    @Benchmark
+    public short[] codec16ToShort() {
+        codec16.decode(buffer, 0, bytes, shorts, 0);
+        return shorts;
+    }
+
+    @Benchmark
+    public short[] codec16BigEndianToShort() {
+        codec16BigEndian.decode(buffer, 0, bytes, shorts, 0);
+        return shorts;
+    }
+
+    @Benchmark
+    public float[] codec16ToFloat() {
+        codec16.decode(buffer, 0, bytes, floats, 0);
+        return floats;
+    }
+
+    @Benchmark
+    public float[] codec24ToFloat() {
+        codec24.decode(buffer, 0, bytes / 2 * 3, floats, 0);
+        return floats;
+    }
+}
@@ -0,0 +1,137 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the time of the {@link RelayServer} to send one 10 ms block of the mix (44.1 kHz stereo) to N listeners
+ * connected on the loopback interface: the read of the ring, the copy into the shared backlog and one gathering
+ * write per listener. Before each block, a separate thread has read everything the listeners received, so the
+ * sockets are never full. The CPU cost per listener is score / listeners, and the number of listeners that one core
+ * can serve in real time is listeners * 10000 / score (the score is in us/op).
+ * Run it with: ./gradlew jmh -PjmhIncludes=RelayBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBenchmark {
+
+    private static final int BLOCK_BYTES = 441 * 4;
+
+    @Param({"1", "100", "500"})
+    public int listeners;
+
+    private PcmRingBuffer ring;
+    private RelayServer relay;
+    private ByteBuffer block;
+    private SocketChannel[] clients;
+    private Selector drainSelector;
+    private Thread drainThread;
+    private volatile long drainedBytes;
+    private volatile boolean draining;
+
+    @Setup
+    public void setUp() throws IOException {
+        ring = new PcmRingBuffer(64, BLOCK_BYTES);
+        relay = new RelayServer(0, new ConcurrentHashMap<>(), ring, AudioServer.MIX_FORMAT);
+        relay.open();
+        block = ByteBuffer.allocate(BLOCK_BYTES);
+        for (int i = 0; i < BLOCK_BYTES / 2; i++) { // 10 ms of a 440Hz sin wave at half scale
+            block.putShort(2 * i, (short) (Math.sin(2 * Math.PI * 440 * (i / 2) / 44100) * 16384));
+        }
+        drainSelector = Selector.open();
+        clients = new SocketChannel[listeners];
+        for (int i = 0; i < listeners; i++) {
+            clients[i] = SocketChannel.open(new InetSocketAddress("localhost", relay.getLocalPort()));
+            clients[i].write(ByteBuffer.wrap("mix\n".getBytes(StandardCharsets.US_ASCII)));
+            clients[i].configureBlocking(false);
+            clients[i].register(drainSelector, SelectionKey.OP_READ);
+        }
+        while (relay.getListenerCount() < listeners) {
+            relay.tick(1);
+        }
+        draining = true;
+        drainThread = new Thread(this::drain, "relay-benchmark-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        draining = false;
+        drainSelector.wakeup();
+        drainThread.join();
+        relay.closeAll();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        drainSelector.close();
+    }
+
+    /**
+     * Waits until the listeners have received everything, so the next block is measured with empty sockets.
+     */
+    @Setup(Level.Invocation)
+    public void waitForListeners() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (drainedBytes < relay.getBytesSent() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(10_000);
+        }
+    }
+
+    @Benchmark
+    public long relayBlock() throws IOException {
+        block.clear();
+        ring.publish(block, 4);
+        relay.tick(0);
+        return relay.getBytesSent();
+    }
+
+    /**
+     * Reads and discards everything the listeners receive.
+     */
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long total = 0;
+        try {
+            while (draining) {
+                drainSelector.select(100);
+                for (SelectionKey key : drainSelector.selectedKeys()) {
+                    int bytesRead;
+                    while ((bytesRead = ((SocketChannel) key.channel()).read(buffer.clear())) > 0) {
+                        total += bytesRead;
+                    }
+                }
+                drainSelector.selectedKeys().clear();
+                drainedBytes = total;
+            }
+        } catch (IOException e) {
+            System.out.println("Drain thread stopped: " + e.getMessage());
+        }
+    }
+}
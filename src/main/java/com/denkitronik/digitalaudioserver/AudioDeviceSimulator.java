@@ -1,74 +1,334 @@
 package com.denkitronik.digitalaudioserver;
 
+import javax.sound.sampled.AudioFormat;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class simulates an audio device that sends audio data to the server.
  * It can be used to test the server without having an actual audio device.
+ * The sin wave can also be sent over UDP ({@link #setUdp(double, double)}), losing and reordering some packets on
+ * purpose to test the jitter buffer of the server.
  */
 public class AudioDeviceSimulator {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 12345;
 
+    // 440Hz sin wave sent by the simulated device (16 bit, 44.1 kHz, mono, little endian)
+    private static final int SIN_SAMPLE_RATE = 44100;
+    private static final int SIN_FREQUENCY = 440;
+    static final int SIN_BYTES_PER_SECOND = SIN_SAMPLE_RATE * 2;
+    private static final int SIN_PERIOD_BYTES = SIN_BYTES_PER_SECOND / 20;   // 50 ms hold a whole number of periods
+    static final int REAL_TIME_CHUNK_BYTES = SIN_BYTES_PER_SECOND / 100;    // 10 ms of audio per write
+    private static final long SIN_DURATION_NANOS = 20_000_000_000L;
+    private static final int UDP_MAX_CHUNK_BYTES = 4096;                    // Audio per datagram, encoded or not
+    private static final long UDP_HEADER_PERIOD_NANOS = 1_000_000_000L;     // The header is repeated in case it is lost
+
+    private final int streamId;
+    private final boolean timestamps;
+    private final int codec;
+    private boolean udp;
+    private double lossRate;
+    private double reorderRate;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram lateness = new LatencyHistogram();
+    private volatile long bytesSent;
+    private volatile long wireBytesSent;
+
+    /**
+     * Creates a simulated device without a stream identifier.
+     */
+    public AudioDeviceSimulator() {
+        this(0);
+    }
+
     /**
-     * Starts a client connection to the server on the specified ip and port.
-     * If no ip is specified, the localhost is used.
+     * Creates a simulated device.
+     *
+     * @param streamId Identifier of the stream sent to the server in the stream header
+     */
+    public AudioDeviceSimulator(int streamId) {
+        this(streamId, false);
+    }
+
+    /**
+     * Creates a simulated device.
+     *
+     * @param streamId   Identifier of the stream sent to the server in the stream header
+     * @param timestamps True to send the sin wave in packets with a sequence number and the send time, so the server
+     *                   can measure the network latency
+     */
+    public AudioDeviceSimulator(int streamId, boolean timestamps) {
+        this(streamId, timestamps, BlockCodec.PCM);
+    }
+
+    /**
+     * Creates a simulated device.
+     *
+     * @param streamId   Identifier of the stream sent to the server in the stream header
+     * @param timestamps True to send the audio in packets with a sequence number and the send time, so the server
+     *                   can measure the network latency
+     * @param codec      Codec of the audio ({@link BlockCodec#PCM} for raw audio); compressed audio is always sent
+     *                   in packets
+     */
+    public AudioDeviceSimulator(int streamId, boolean timestamps, int codec) {
+        this.streamId = streamId;
+        this.timestamps = timestamps || codec != BlockCodec.PCM;
+        this.codec = codec;
+    }
+
+    /**
+     * Makes the device send the sin wave over UDP instead of TCP, always in timestamped packets.
+     * The lost and reordered packets are chosen at random, with the stream identifier as the seed, so a test can be
+     * repeated.
+     *
+     * @param lossRate    Fraction of the packets that are not sent (0 to 1)
+     * @param reorderRate Fraction of the packets that are sent after the next packet (0 to 1)
+     */
+    public void setUdp(double lossRate, double reorderRate) {
+        this.udp = true;
+        this.lossRate = lossRate;
+        this.reorderRate = reorderRate;
+    }
+
+    /**
+     * Starts a client connection to the server on the specified ip and port and sends a 440Hz sin wave
+     * for 20 seconds, in real time. If no ip is specified, the localhost is used.
      *
      * @param ip   IP address of the server
-     * @param port TCP port of the server
+     * @param port TCP (or UDP) port of the server
      */
     public void startClient(String ip, int port) {
-        try (Socket socket = new Socket(ip == null ? "localhost" : null, port)) {
-            System.out.println("Starting client connection to the server" + ip + " on port " + port + "...");
+        String host = ip == null ? SERVER_HOST : ip;
+        try (GatheringByteChannel channel = connect(host, port == 0 ? SERVER_PORT : port)) {
+            System.out.println("Starting " + (udp ? "UDP" : "client") + " connection to the server " + host + " on port " + port + "...");
+            System.out.println("Initializing audio streaming (440Hz, sampling freq: 44100, 16 bit, mono, little endian, sin waveform)");
+            sendSinWave(channel, sinWave(REAL_TIME_CHUNK_BYTES), REAL_TIME_CHUNK_BYTES, SIN_DURATION_NANOS, true);
+            System.out.println("Sound streaming simulation finished.");
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown host. Check the server address and try again. ");
+        } catch (IOException e) {
+            System.out.println("Server connection finished: " + e.getMessage());
+        }
+    }
 
-            OutputStream outputStream = socket.getOutputStream();
+    /**
+     * Opens a connection to the server and sends the header of the sin wave stream.
+     * Over UDP, the channel is a datagram channel connected to the server, and the header is one datagram.
+     *
+     * @param host Host name or IP address of the server
+     * @param port TCP (or UDP) port of the server
+     * @return The connected channel
+     * @throws IOException If the server cannot be reached
+     */
+    GatheringByteChannel connect(String host, int port) throws IOException {
+        if (udp) {
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.connect(new InetSocketAddress(host, port));
+                channel.write(ByteBuffer.wrap(streamHeader()));
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer header = ByteBuffer.wrap(streamHeader());
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
-            System.out.println("Initializing audio streaming (440Hz, sampling freq: 44100, 16 bit, mono, little endian, sin waveform)");
-            // Simulation of a 440Hz sin wave
-            int sampleRate = 44100;     // Sampling frequency in Hz
-            double frequency = 440.0;   // Wave frequency in Hz
-            double duration = 20.0;     // Duration in seconds
-
-            for (int i = 0; i < sampleRate * duration; i++) {
-                byte[] byteValue = getBytes(i, sampleRate, frequency);
-                outputStream.write(byteValue);
+    /**
+     * Returns the header of the sin wave stream.
+     *
+     * @return Header bytes
+     */
+    private byte[] streamHeader() {
+        return new StreamHeader(AudioStream.LEGACY_FORMAT, streamId, timestamps || udp, codec).toBytes();
+    }
+
+    /**
+     * Sends the sin wave until the duration ends. Nothing is allocated while sending: each write takes the next chunk
+     * of the precomputed wave, encoded with the codec of the device if it has one. The time spent in each write and,
+     * in real time, how late each write started are recorded in the histograms of the device.
+     * Over UDP, each chunk is one datagram (at most {@link #UDP_MAX_CHUNK_BYTES} of audio), the header is repeated
+     * every second, and some packets are lost or reordered on purpose. With a codec, the chunk is made smaller until
+     * its encoded block fits in one packet ({@link StreamHeader#MAX_BLOCK_BYTES}).
+     *
+     * @param channel       Connection with the server, after the header
+     * @param wave          Buffer returned by {@link #sinWave(int)} (it can be shared by many devices)
+     * @param chunkBytes    Bytes sent in each write (even)
+     * @param durationNanos Duration of the stream in nanoseconds
+     * @param realTime      True to send the audio at its playback speed, false to send it as fast as possible
+     * @throws IOException If the connection fails
+     */
+    void sendSinWave(GatheringByteChannel channel, ByteBuffer wave, int chunkBytes, long durationNanos, boolean realTime) throws IOException {
+        if (udp) {
+            chunkBytes = Math.min(chunkBytes, UDP_MAX_CHUNK_BYTES);
+        }
+        BlockCodec encoder = codec != BlockCodec.PCM ? BlockCodec.create(codec, 1) : null;
+        while (encoder != null && encoder.maxEncodedBytes(chunkBytes) > StreamHeader.MAX_BLOCK_BYTES) {
+            chunkBytes /= 2; // Each encoded block must fit in one packet (the chunk stays even)
+        }
+        boolean packets = timestamps || udp;
+        ByteBuffer view = wave.duplicate(); // Own position and limit over the shared wave
+        ByteBuffer packetHeader = ByteBuffer.allocateDirect(StreamHeader.PACKET_HEADER_SIZE);
+        ByteBuffer[] packet = {packetHeader, view};
+        byte[] pcm = new byte[chunkBytes];
+        ByteBuffer block = null;
+        if (encoder != null) {
+            block = ByteBuffer.allocate(encoder.maxEncodedBytes(chunkBytes));
+            packet[1] = block; // The encoded chunk is sent instead of the wave
+        }
+        ByteBuffer streamHeader = udp ? ByteBuffer.wrap(streamHeader()) : null;
+        ByteBuffer held = udp ? ByteBuffer.allocateDirect(StreamHeader.PACKET_HEADER_SIZE
+                + (encoder != null ? encoder.maxEncodedBytes(chunkBytes) : chunkBytes)) : null; // Packet sent late
+        boolean holding = false;
+        Random random = new Random(streamId);
+        long wireBytes = 0;
+        int sequence = 0;
+        long start = System.nanoTime();
+        long nextHeader = start + UDP_HEADER_PERIOD_NANOS;
+        long end = start + durationNanos;
+        long sent = 0;
+        int offset = 0;
+        long now = start;
+        while (now < end) {
+            long due = start + sent * 1_000_000_000L / SIN_BYTES_PER_SECOND; // Time when the next chunk is due
+            if (realTime && due > now) {
+                LockSupport.parkNanos(due - now);
+            }
+            long before = System.nanoTime();
+            view.limit(offset + chunkBytes).position(offset);
+            if (encoder != null) {
+                view.get(pcm, 0, chunkBytes);
+                block.clear().limit(encoder.encode(pcm, 0, chunkBytes, block.array(), 0));
+            }
+            ByteBuffer audio = packet[1];
+            wireBytes += audio.remaining();
+            if (packets) {
+                packetHeader.clear();
+                packetHeader.putInt(sequence++).putInt(audio.remaining()).putLong(StreamHeader.currentTimeMicros()).flip();
+                wireBytes += StreamHeader.PACKET_HEADER_SIZE;
+                if (!udp) {
+                    while (audio.hasRemaining()) {
+                        channel.write(packet); // Header and audio in one system call
+                    }
+                } else if (random.nextDouble() < lossRate) {
+                    audio.position(audio.limit()); // Lost on the way
+                } else if (!holding && random.nextDouble() < reorderRate) {
+                    held.clear();
+                    held.put(packetHeader).put(audio).flip(); // Sent after the next packet
+                    holding = true;
+                } else {
+                    channel.write(packet); // One datagram
+                    if (holding) {
+                        channel.write(held);
+                        holding = false;
+                    }
+                }
+                if (udp && before >= nextHeader) {
+                    channel.write(streamHeader.rewind());
+                    nextHeader += UDP_HEADER_PERIOD_NANOS;
+                }
+            } else {
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+            }
+            now = System.nanoTime();
+            writeLatency.record(now - before);
+            if (realTime) {
+                lateness.record(before - due);
             }
+            sent += chunkBytes;
+            bytesSent = sent;
+            wireBytesSent = wireBytes;
+            offset = (offset + chunkBytes) % SIN_PERIOD_BYTES;
+        }
+        if (holding) {
+            channel.write(held); // The packet held back for reordering is not lost
+        }
+    }
 
-            System.out.println("Sound streaming simulation finished.");
-        } catch (IOException e) {
-            System.out.println("Server connection finished.");
+    /**
+     * Returns a direct buffer with a 440Hz sin wave (16 bit, 44.1 kHz, mono, little endian).
+     * 440Hz fits exactly 22 times in 50 ms, so the buffer holds those 50 ms followed by one more chunk: any chunk
+     * starting in the first 50 ms can be sent without wrapping, and consecutive chunks join without clicks.
+     *
+     * @param chunkBytes Largest chunk that will be sent (an even number of bytes)
+     * @return Read-only buffer with the wave
+     */
+    static ByteBuffer sinWave(int chunkBytes) {
+        ByteBuffer wave = ByteBuffer.allocateDirect(SIN_PERIOD_BYTES + chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < wave.capacity() / 2; i++) {
+            int sample = i % (SIN_PERIOD_BYTES / 2);
+            wave.putShort(2 * i, (short) (Math.sin(2.0 * Math.PI * SIN_FREQUENCY * sample / SIN_SAMPLE_RATE) * Short.MAX_VALUE));
         }
+        return wave.asReadOnlyBuffer();
     }
 
     /**
-     * Returns the 16-bit PCM sample of the sin wave at the specified index.
-     * @param i         Sample index
-     * @param sampleRate Sampling frequency in Hz
-     * @param frequency Wave frequency in Hz
-     * @return 16-bit PCM sample
+     * Returns the histogram of the time spent in each write.
+     *
+     * @return Write latencies in nanoseconds
      */
-    static byte[] getBytes(int i, double sampleRate, double frequency) {
-        double t = i / sampleRate;             // Time in seconds
-        double amplitude = Math.sin(2.0 * Math.PI * frequency * t);
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
 
-        // Scale to maximum amplitude of a 16-bit integer
-        int value = (int) (amplitude * 65535);
+    /**
+     * Returns the histogram of how late each write started compared to real time.
+     *
+     * @return Lateness in nanoseconds (0 for the writes on time)
+     */
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
 
-        // Convert the value to a signed 16-bit value (short) 2-complement
-        short data = (short) (value - 32768);
+    /**
+     * Returns the number of audio bytes sent by the sin wave stream.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
 
-        // Convert to 16-bit pcm sound array, little endian byte order
-        return new byte[]{
-                (byte) (data & 0xff),        // Low byte
-                (byte) ((data >> 8)&0xff)    // High byte
-        };
+    /**
+     * Returns the number of bytes sent on the connection by the sin wave stream, after encoding and with the packet
+     * headers.
+     *
+     * @return Number of bytes
+     */
+    public long getWireBytesSent() {
+        return wireBytesSent;
     }
 
     /**
      * Starts a client connection to the server on the specified ip and port and sends a wav file stream.
-     * If no ip is specified, the localhost is used.
+     * If no ip is specified, the localhost is used. The codec of the device is used only for 16-bit signed little
+     * endian files; other files are sent as raw audio.
      *
      * @param ip      IP address of the server
      * @param port    TCP port of the server
@@ -81,26 +341,88 @@ public class AudioDeviceSimulator {
             BufferedOutputStream outputStream = new BufferedOutputStream(socket.getOutputStream()); // Get the output stream to the server
             System.out.println("Server connection started.");
 
-            // Read and send the WAV file header (first 44 bytes)
-            byte[] header = new byte[44]; // Header size is 44 bytes
-            //noinspection ResultOfMethodCallIgnored
-            fileInputStream.read(header);// Read until EOF
-            //outputStream.write(header); // Uncomment this line if you want to send the header to the server
+            // Read the WAV file header (its chunks until the audio data) and describe the stream to the server
+            WavFile wav = WavFile.open(fileInputStream);
+            AudioFormat format = wav.getFormat();
+            boolean encodable = format.getSampleSizeInBits() == 16 && !format.isBigEndian()
+                    && format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+            BlockCodec encoder = codec != BlockCodec.PCM && encodable ? BlockCodec.create(codec, format.getChannels()) : null;
+            outputStream.write(new StreamHeader(format, streamId, encoder != null, encoder != null ? codec : BlockCodec.PCM).toBytes());
 
-            System.out.println("Initializing audio streaming (sampling freq: 44100, 16 bit, mono, little endian, wave file: "+wavFile+")");
-            // Read and send the WAV file stream
-            byte[] buffer = new byte[1024]; // Buffer size can be optimized (e.g., to 4096 or 8192)
+            System.out.println("Initializing audio streaming (" + format + ", wave file: " + wavFile
+                    + (encoder != null ? ", " + BlockCodec.name(codec) + " codec" : "") + ")");
+            // Read and send the audio data of the WAV file, in real time like a real device
+            double bytesPerSecond = format.getFrameRate() * format.getFrameSize();
+            int frames = 512;
+            while (encoder != null && encoder.maxEncodedBytes(frames * format.getFrameSize()) > StreamHeader.MAX_BLOCK_BYTES) {
+                frames /= 2; // Each encoded block must fit in one packet
+            }
+            byte[] buffer = new byte[format.getFrameSize() * frames]; // Buffer to read the audio data (whole frames)
+            byte[] block = encoder != null ? new byte[encoder.maxEncodedBytes(buffer.length)] : null;
+            ByteBuffer packetHeader = ByteBuffer.allocate(StreamHeader.PACKET_HEADER_SIZE);
+            int sequence = 0;
+            long remaining = wav.getDataLength(); // Chunks after the audio data are not sent
+            long sent = 0;
+            long start = System.nanoTime();
             int bytesRead; // Number of bytes read each time
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) { // Read until EOF
-                outputStream.write(buffer, 0, bytesRead); // Write the audio stream to the server
+            while (remaining > 0 && (bytesRead = fileInputStream.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                if (encoder != null) {
+                    int length = encoder.encode(buffer, 0, bytesRead, block, 0);
+                    packetHeader.clear();
+                    packetHeader.putInt(sequence++).putInt(length).putLong(StreamHeader.currentTimeMicros());
+                    outputStream.write(packetHeader.array());
+                    outputStream.write(block, 0, length); // Write the encoded block to the server
+                } else {
+                    outputStream.write(buffer, 0, bytesRead); // Write the audio stream to the server
+                }
+                outputStream.flush();
+                remaining -= bytesRead;
+                sent += bytesRead;
+                long wait = start + (long) (sent / bytesPerSecond * 1e9) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait); // Wait until the audio sent so far has been played
+                }
             }
+            outputStream.flush();
             System.out.println("Wave file stream sent to the server.");
         } catch (UnknownHostException e) {
             System.out.println("Unknown host. Check the server address and try again. ");
         } catch (FileNotFoundException e) {
             System.out.println("File not found. Check the file path and try again.");
         } catch (IOException e) {
-            System.out.println("Server connection finished.");
+            System.out.println("Server connection finished: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts a client connection to the server and replays a time range of a recording made by the server.
+     * The audio is sent from the segment files to the socket with {@link java.nio.channels.FileChannel#transferTo},
+     * in real time, without loading it on the heap.
+     *
+     * @param ip                 IP address of the server
+     * @param port               TCP port of the server
+     * @param recordingDirectory Directory of the recording
+     * @param fromSeconds        Start of the range, in seconds from the beginning of the recording
+     * @param toSeconds          End of the range, in seconds from the beginning of the recording
+     */
+    public void startReplay(String ip, int port, String recordingDirectory, double fromSeconds, double toSeconds) {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(ip == null ? SERVER_HOST : ip, port == 0 ? SERVER_PORT : port))) {
+            Recording recording = Recording.open(Paths.get(recordingDirectory));
+            System.out.println("Server connection started.");
+            ByteBuffer header = ByteBuffer.wrap(new StreamHeader(recording.getFormat(), streamId).toBytes());
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            long from = recording.getStartMillis() + (long) (fromSeconds * 1000);
+            long to = Double.isInfinite(toSeconds) ? Long.MAX_VALUE : recording.getStartMillis() + (long) (toSeconds * 1000);
+            System.out.println("Replaying " + recordingDirectory + " (" + recording.getFormat() + ", "
+                    + (recording.getEndMillis() - recording.getStartMillis()) / 1000.0 + " s recorded)");
+            long sent = recording.transferTo(from, to, channel, true);
+            System.out.println("Replay sent to the server: " + sent + " bytes.");
+        } catch (UnknownHostException e) {
+            System.out.println("Unknown host. Check the server address and try again. ");
+        } catch (IOException e) {
+            System.out.println("Server connection finished: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
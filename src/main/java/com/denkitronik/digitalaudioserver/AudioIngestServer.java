@@ -0,0 +1,466 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * This class receives the audio streams of many devices at the same time.
+ * It uses one listening socket and one selector thread, so hundreds of devices can be connected
+ * without creating one thread per device. Each connection is read into a reusable direct buffer
+ * taken from a small pool, and the received audio frames are delivered to an {@link AudioStreamListener}.
+ * A device may start its stream with a {@link StreamHeader} that describes the audio format; devices that send
+ * raw audio are handled with the {@link AudioStream#LEGACY_FORMAT}. The listener is told about a stream
+ * only when its format is known. Devices that send timestamped packets are measured: the network latency of each
+ * packet is recorded in a histogram and the gaps in the sequence are counted as lost packets.
+ * Compressed streams ({@link BlockCodec}) are decoded here, one packet at a time, into a reusable buffer of the
+ * stream, so the listener always receives PCM audio.
+ */
+public class AudioIngestServer implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = StreamHeader.MAX_BLOCK_BYTES; // Holds a whole encoded block
+    private static final int ACCEPT_BACKLOG = 512;      // Devices connect in bursts
+
+    private final int port;
+    private final AudioStreamListener listener;
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>(); // Free read buffers (ingest thread only)
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int activeStreams;
+
+    // Metrics (written only by the ingest thread)
+    private final LatencyHistogram networkLatency = new LatencyHistogram();
+    private volatile long bytesReceived;
+    private volatile long encodedBytesReceived;
+    private volatile long framesReceived;
+    private volatile long packetsReceived;
+    private volatile long packetsLost;
+    private volatile long connectionsAccepted;
+
+    /**
+     * Creates the ingest server.
+     *
+     * @param port     TCP port where the devices connect (0 to use any free port)
+     * @param listener Listener that receives the audio of all the streams
+     */
+    public AudioIngestServer(int port, AudioStreamListener listener) {
+        this.port = port;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the listening socket and starts the ingest thread.
+     *
+     * @throws IOException If the port cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "audio-ingest");
+        thread.start();
+    }
+
+    /**
+     * Stops the ingest thread and closes all the connections.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the port where the server is listening.
+     *
+     * @return Local TCP port
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of devices currently connected.
+     *
+     * @return Number of active streams
+     */
+    public int getActiveStreamCount() {
+        return activeStreams;
+    }
+
+    /**
+     * Returns the histogram of the time from the moment a device sent a packet to the moment it was read.
+     *
+     * @return Network latency in nanoseconds (only for the devices that send timestamped packets)
+     */
+    public LatencyHistogram getNetworkLatency() {
+        return networkLatency;
+    }
+
+    /**
+     * Returns the number of audio bytes received from all the streams.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the number of encoded bytes received from the compressed streams.
+     *
+     * @return Number of bytes, before decoding
+     */
+    public long getEncodedBytesReceived() {
+        return encodedBytesReceived;
+    }
+
+    /**
+     * Returns the number of audio frames received from all the streams.
+     *
+     * @return Number of frames
+     */
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Returns the number of timestamped packets received.
+     *
+     * @return Number of packets
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * Returns the number of timestamped packets that never arrived (gaps in their sequence).
+     *
+     * @return Number of lost packets
+     */
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /**
+     * Returns the number of connections accepted since the server started.
+     *
+     * @return Number of connections
+     */
+    public long getConnectionsAccepted() {
+        return connectionsAccepted;
+    }
+
+    /**
+     * Ingest loop. Waits for connections and data and dispatches them until the server is stopped.
+     */
+    @Override
+    public void run() {
+        System.out.println("Audio server listening on port " + getLocalPort() + "...");
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        try {
+                            read(key);
+                        } catch (RuntimeException e) { // A failing listener must not stop the other streams
+                            AudioStream stream = (AudioStream) key.attachment();
+                            System.out.println("Audio stream failed: " + stream + " " + e);
+                            if (key.isValid()) {
+                                close(key, stream);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("Audio server stopped: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Accepts all the pending connections and registers them in the selector.
+     *
+     * @throws IOException If the listening socket fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) { // Drain the whole burst of connections
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                AudioStream stream = new AudioStream(AudioStream.nextId(), channel, channel.getRemoteAddress(), takeBuffer());
+                channel.register(selector, SelectionKey.OP_READ, stream);
+                activeStreams++;
+                connectionsAccepted++;
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the available data of a connection and delivers the whole frames to the listener.
+     * The bytes of an incomplete frame (or packet header) stay in the buffer until the rest arrives.
+     *
+     * @param key Selection key of the connection
+     */
+    private void read(SelectionKey key) {
+        AudioStream stream = (AudioStream) key.attachment();
+        ByteBuffer buffer = stream.buffer;
+        int bytesRead;
+        try {
+            bytesRead = stream.channel.read(buffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            close(key, stream);
+            return;
+        }
+        buffer.flip();
+        if (!stream.started) {
+            try {
+                if (!readHeader(stream, buffer)) {
+                    buffer.compact(); // Wait for the rest of the header
+                    return;
+                }
+            } catch (ProtocolException e) {
+                System.out.println("Invalid stream header from " + stream.getRemoteAddress() + ": " + e.getMessage());
+                close(key, stream);
+                return;
+            }
+        }
+        try {
+            while (deliver(stream, buffer)) {
+                // Deliver all the complete packets of the buffer
+            }
+        } catch (ProtocolException e) {
+            System.out.println("Invalid packet from " + stream.getRemoteAddress() + ": " + e.getMessage());
+            close(key, stream);
+            return;
+        }
+        buffer.compact(); // Keep the incomplete frame for the next read
+    }
+
+    /**
+     * Delivers the whole frames of the buffer to the listener, up to the end of the current packet.
+     *
+     * @param stream Audio stream of the connection
+     * @param buffer Received data
+     * @return True if a packet finished and more packets may follow in the buffer
+     * @throws ProtocolException If a packet header is not valid
+     */
+    private boolean deliver(AudioStream stream, ByteBuffer buffer) throws ProtocolException {
+        if (stream.timestamped && stream.packetRemaining == 0) {
+            if (buffer.remaining() < StreamHeader.PACKET_HEADER_SIZE) {
+                return false;
+            }
+            readPacketHeader(stream, buffer);
+        }
+        if (stream.codec != null) {
+            return deliverBlock(stream, buffer);
+        }
+        int frameSize = stream.getFrameSize();
+        int available = buffer.remaining();
+        if (stream.timestamped) {
+            available = Math.min(available, stream.packetRemaining);
+        }
+        int usable = available - available % frameSize; // Only whole frames are delivered
+        if (usable > 0) {
+            int start = buffer.position();
+            int limit = buffer.limit();
+            buffer.limit(start + usable);
+            audioReceived(stream, buffer);
+            buffer.limit(limit).position(start + usable); // The listener may have moved the position
+        }
+        if (!stream.timestamped) {
+            return false;
+        }
+        stream.packetRemaining -= usable;
+        return stream.packetRemaining == 0 && buffer.hasRemaining();
+    }
+
+    /**
+     * Decodes the block of the current packet, once it has been received completely, and delivers its audio.
+     *
+     * @param stream Audio stream of the connection
+     * @param buffer Received data, after the packet header
+     * @return True if the block was decoded and more packets may follow in the buffer
+     * @throws ProtocolException If the block is not valid
+     */
+    private boolean deliverBlock(AudioStream stream, ByteBuffer buffer) throws ProtocolException {
+        int length = stream.packetRemaining;
+        if (buffer.remaining() < length) {
+            return false; // The read buffer can hold a whole block, so the rest will arrive
+        }
+        buffer.get(stream.block, 0, length);
+        stream.packetRemaining = 0;
+        encodedBytesReceived += length;
+        int decoded = stream.codec.decode(stream.block, 0, length, stream.decoded.array(), 0);
+        if (decoded > 0) {
+            audioReceived(stream, stream.decoded.clear().limit(decoded));
+        }
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Counts the received audio and gives it to the listener.
+     *
+     * @param stream Audio stream of the connection
+     * @param data   Whole frames of PCM audio, between the position and the limit of the buffer
+     */
+    private void audioReceived(AudioStream stream, ByteBuffer data) {
+        int bytes = data.remaining();
+        stream.addBytesReceived(bytes);
+        bytesReceived += bytes;
+        framesReceived += bytes / stream.getFrameSize();
+        listener.audioReceived(stream, data);
+    }
+
+    /**
+     * Reads the header of a timestamped packet, records its network latency and checks its sequence.
+     *
+     * @param stream Audio stream of the connection
+     * @param buffer Received data, with the whole packet header
+     * @throws ProtocolException If the packet header is not valid
+     */
+    private void readPacketHeader(AudioStream stream, ByteBuffer buffer) throws ProtocolException {
+        int sequence = buffer.getInt();
+        int length = buffer.getInt();
+        long sentMicros = buffer.getLong();
+        if (stream.codec != null ? length <= 0 || length > StreamHeader.MAX_BLOCK_BYTES
+                : length <= 0 || length > StreamHeader.MAX_PACKET_BYTES || length % stream.getFrameSize() != 0) {
+            throw new ProtocolException("Invalid packet length: " + length);
+        }
+        networkLatency.record((StreamHeader.currentTimeMicros() - sentMicros) * 1000);
+        if (sequence != stream.nextSequence) {
+            packetsLost += Math.max(0, sequence - stream.nextSequence); // TCP keeps the order: a gap means lost audio
+        }
+        stream.nextSequence = sequence + 1;
+        stream.packetRemaining = length;
+        packetsReceived++;
+    }
+
+    /**
+     * Reads the stream header, if the device sent one, and tells the listener that the stream started.
+     *
+     * @param stream Audio stream of the connection
+     * @param buffer Received data
+     * @return True if the format of the stream is known, false if more data is needed
+     * @throws ProtocolException If the header is not valid
+     */
+    private boolean readHeader(AudioStream stream, ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < Integer.BYTES) {
+            return false;
+        }
+        if (StreamHeader.startsWithMagic(buffer)) {
+            if (buffer.remaining() < StreamHeader.SIZE) {
+                return false;
+            }
+            StreamHeader header = StreamHeader.read(buffer);
+            stream.setFormat(header.getFormat());
+            stream.setDeviceStreamId(header.getStreamId());
+            stream.timestamped = header.isTimestamped();
+            if (header.getCodec() != BlockCodec.PCM) {
+                stream.codec = BlockCodec.create(header.getCodec(), header.getFormat().getChannels());
+                stream.block = new byte[StreamHeader.MAX_BLOCK_BYTES];
+                stream.decoded = ByteBuffer.wrap(new byte[stream.codec.maxDecodedBytes(StreamHeader.MAX_BLOCK_BYTES)]);
+            }
+        }
+        stream.started = true;
+        System.out.println("Audio streaming started: " + stream + " " + stream.getFormat()
+                + (stream.codec != null ? ", " + BlockCodec.name(stream.codec.getId()) + " codec" : ""));
+        listener.streamOpened(stream);
+        return true;
+    }
+
+    /**
+     * Closes a connection and returns its buffer to the pool. An exception of the listener is logged, so the other
+     * connections are still closed.
+     *
+     * @param key    Selection key of the connection
+     * @param stream Audio stream of the connection
+     */
+    private void close(SelectionKey key, AudioStream stream) {
+        key.cancel();
+        try {
+            stream.channel.close();
+        } catch (IOException ignored) {
+            // The connection is already closed
+        }
+        activeStreams--;
+        try {
+            if (stream.started) {
+                System.out.println("Audio streaming finished: " + stream);
+                listener.streamClosed(stream);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Audio stream failed while closing: " + stream + " " + e);
+        } finally {
+            bufferPool.push(stream.buffer.clear());
+        }
+    }
+
+    /**
+     * Closes all the connections and the listening socket.
+     */
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof AudioStream) {
+                    close(key, (AudioStream) key.attachment());
+                }
+            }
+            selector.close();
+            serverChannel.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+            // Nothing else can be done while shutting down
+        }
+    }
+
+    /**
+     * Takes a read buffer from the pool or allocates a new one when the pool is empty.
+     *
+     * @return Empty direct buffer
+     */
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,670 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Real-time mixer of the audio streams.
+ * Every 10 ms its clock takes one block of audio from each stream, runs it through the {@link DspChain} of the
+ * stream (if it has one), converts it to the output format (channels and sample rate), applies the gain of the
+ * stream and adds it to the mix. The mix is clipped
+ * (hard or soft) and written to an {@link AudioSink} and to an output ring buffer that other consumers can read.
+ * Each stream has a small jitter buffer: it starts playing only after a few blocks arrived, a late block is
+ * replaced by silence (and the stream waits to fill its jitter buffer again), and the oldest audio is dropped when
+ * the stream sends faster than it is played. All the buffers are preallocated, so the mixer does not allocate memory
+ * while the set of streams does not change.
+ */
+public class AudioMixer implements Runnable {
+
+    private static final int BLOCK_MILLIS = 10;             // Period of the mixer clock
+    private static final int PREBUFFER_BLOCKS = 3;          // Blocks a stream buffers before it is played
+    private static final int MAX_BUFFER_BLOCKS = 10;        // Blocks a stream can buffer before its oldest audio is dropped
+    private static final int MAX_LAG_SLOTS = 8;             // Frames of the ring a stream can fall behind
+    private static final int OUTPUT_RING_SLOTS = 64;
+    private static final float SOFT_CLIP_KNEE = 0.8f;       // Level where the soft clipping starts
+    private static final int TIMESTAMPS = 256;              // Ring frames of a stream whose ingest time is remembered
+
+    /**
+     * How the mix is limited to the range of the output samples.
+     */
+    public enum ClipMode {
+        /**
+         * Saturate the samples at the maximum value.
+         */
+        HARD,
+        /**
+         * Compress smoothly the samples above the knee, so loud mixes do not sound harsh.
+         */
+        SOFT
+    }
+
+    private final AudioFormat format;
+    private final int channels;
+    private final int blockFrames;
+    private final long periodNanos;
+    private final AudioSink sink;
+    private final PcmCodec encoder;
+    private final float[] mix;
+    private final byte[] output;
+    private final ByteBuffer outputBuffer;
+    private final PcmRingBuffer outputRing;
+    private volatile ClipMode clipMode = ClipMode.HARD;
+    private volatile Input[] inputs = new Input[0];
+    private volatile boolean running;
+    private Thread thread;
+
+    // Statistics (written only by the mixer thread)
+    private volatile long blocks;
+    private volatile long lateBlocks;
+    private volatile long underruns;
+    private volatile long droppedFrames;
+    private volatile long overruns;
+    private final LatencyHistogram playbackLatency = new LatencyHistogram();
+
+    /**
+     * Creates the mixer.
+     *
+     * @param format Output format (16-bit PCM)
+     * @param sink   Sink where the mix is written, or null to only publish the mix in the output ring
+     */
+    public AudioMixer(AudioFormat format, AudioSink sink) {
+        this.format = format;
+        this.channels = format.getChannels();
+        this.blockFrames = Math.round(format.getSampleRate() * BLOCK_MILLIS / 1000);
+        this.periodNanos = BLOCK_MILLIS * 1_000_000L;
+        this.sink = sink;
+        this.encoder = new PcmCodec(format);
+        this.mix = new float[blockFrames * channels];
+        this.output = new byte[blockFrames * format.getFrameSize()];
+        this.outputBuffer = ByteBuffer.wrap(output);
+        this.outputRing = new PcmRingBuffer(OUTPUT_RING_SLOTS, output.length);
+    }
+
+    /**
+     * Opens the sink and starts the mixer clock.
+     *
+     * @throws IOException If the sink cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        if (sink != null) {
+            sink.open(format);
+        }
+        running = true;
+        thread = new Thread(this, "audio-mixer");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stops the mixer clock and waits until the sink is closed.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Adds a stream to the mix. The stream must have a ring buffer.
+     *
+     * @param stream Audio stream
+     * @return The input of the stream, used to change its gain
+     */
+    public synchronized Input addStream(AudioStream stream) {
+        Input input = new Input(stream);
+        Input[] newInputs = new Input[inputs.length + 1];
+        System.arraycopy(inputs, 0, newInputs, 0, inputs.length);
+        newInputs[inputs.length] = input;
+        inputs = newInputs;
+        return input;
+    }
+
+    /**
+     * Removes an input from the mix.
+     *
+     * @param input Input of a stream
+     */
+    private synchronized void removeInput(Input input) {
+        Input[] current = inputs;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == input) {
+                Input[] newInputs = new Input[current.length - 1];
+                System.arraycopy(current, 0, newInputs, 0, i);
+                System.arraycopy(current, i + 1, newInputs, i, current.length - i - 1);
+                inputs = newInputs;
+                input.stream.getRing().removeCursor(input.cursor);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the input of a stream.
+     *
+     * @param streamId Identifier of the stream
+     * @return The input, or null if the stream is not being mixed
+     */
+    public Input getInput(int streamId) {
+        for (Input input : inputs) {
+            if (input.stream.getId() == streamId) {
+                return input;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets how the mix is limited to the range of the output samples.
+     *
+     * @param clipMode Clip mode
+     */
+    public void setClipMode(ClipMode clipMode) {
+        this.clipMode = clipMode;
+    }
+
+    /**
+     * Returns the output format of the mixer.
+     *
+     * @return Audio format of the mix
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the ring buffer where each mixed block is published.
+     *
+     * @return Output ring buffer
+     */
+    public PcmRingBuffer getOutputRing() {
+        return outputRing;
+    }
+
+    /**
+     * Returns the number of streams being mixed.
+     *
+     * @return Number of inputs
+     */
+    public int getInputCount() {
+        return inputs.length;
+    }
+
+    /**
+     * Returns the number of blocks mixed so far.
+     *
+     * @return Number of blocks
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Returns the number of blocks that were mixed later than their period.
+     *
+     * @return Number of late blocks
+     */
+    public long getLateBlocks() {
+        return lateBlocks;
+    }
+
+    /**
+     * Returns the number of times a stream had no audio when its block was due.
+     *
+     * @return Number of underruns of all the streams
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Returns the number of frames dropped because a stream sent audio faster than it was played.
+     *
+     * @return Number of dropped frames of all the streams
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of times the mixer fell behind the ring buffer of a stream and lost audio.
+     *
+     * @return Number of overruns
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Returns the histogram of the time from the ingest of the audio to the moment its block was written to the sink.
+     *
+     * @return Ingest-to-playback latency in nanoseconds
+     */
+    public LatencyHistogram getPlaybackLatency() {
+        return playbackLatency;
+    }
+
+    /**
+     * Mixer clock. Mixes one block per period, keeping the period on average even if a block is late.
+     * The sink is closed by this thread when the mixer stops, so it is never closed during a write.
+     */
+    @Override
+    public void run() {
+        AudioSink out = sink;
+        long next = System.nanoTime();
+        while (running) {
+            int length = mixBlock();
+            if (out != null) {
+                try {
+                    out.write(output, 0, length);
+                } catch (IOException e) {
+                    System.out.println("The audio sink failed, the mix is no longer written: " + e.getMessage());
+                    closeSink();
+                    out = null;
+                }
+                recordPlaybackLatency(System.nanoTime());
+            }
+            next += periodNanos;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (-wait > periodNanos) {
+                lateBlocks++;               // More than one block behind: do not try to catch up
+                next = System.nanoTime();
+            }
+        }
+        if (out != null) {
+            closeSink();
+        }
+    }
+
+    /**
+     * Records the latency of the audio of each stream played in the last block.
+     *
+     * @param written Time when the block was written to the sink (System.nanoTime)
+     */
+    private void recordPlaybackLatency(long written) {
+        for (Input input : inputs) {
+            if (input.blockIngestNanos != 0) {
+                playbackLatency.record(written - input.blockIngestNanos);
+                input.blockIngestNanos = 0;
+            }
+        }
+    }
+
+    /**
+     * Closes the sink, for example to write the final header of a recording.
+     */
+    private void closeSink() {
+        try {
+            sink.close();
+        } catch (IOException e) {
+            System.out.println("The audio sink could not be closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Mixes one block of all the streams and publishes it in the output ring.
+     *
+     * @return Number of bytes of the mixed block
+     */
+    int mixBlock() {
+        Arrays.fill(mix, 0f);
+        for (Input input : inputs) {
+            if (!input.mixInto(mix)) {
+                removeInput(input); // The stream finished and its audio was played
+            }
+        }
+        clip(mix, clipMode);
+        int length = encoder.encode(mix, 0, mix.length, output, 0);
+        outputBuffer.clear().limit(length);
+        outputRing.publish(outputBuffer, format.getFrameSize());
+        blocks++;
+        return length;
+    }
+
+    /**
+     * Limits the samples to the range between -1 and 1.
+     *
+     * @param samples Samples of the mix
+     * @param mode    Clip mode
+     */
+    static void clip(float[] samples, ClipMode mode) {
+        if (mode == ClipMode.HARD) {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = Math.max(-1f, Math.min(1f, samples[i]));
+            }
+            return;
+        }
+        float range = 1f - SOFT_CLIP_KNEE;
+        for (int i = 0; i < samples.length; i++) {
+            float value = samples[i];
+            float magnitude = Math.abs(value);
+            if (magnitude > SOFT_CLIP_KNEE) { // Compress above the knee towards 1, with a smooth curve
+                float excess = (magnitude - SOFT_CLIP_KNEE) / range;
+                samples[i] = Math.copySign(SOFT_CLIP_KNEE + range * excess / (1f + excess), value);
+            }
+        }
+    }
+
+    /**
+     * One stream in the mix, with its jitter buffer of audio already converted to the output format.
+     */
+    public final class Input {
+        private final AudioStream stream;
+        private final PcmRingBuffer.Cursor cursor;
+        private final PcmCodec decoder;
+        private final int inputChannels;
+        private final int slotFrames;           // Largest number of input frames in a ring frame
+        private double step;                    // Input frames per output frame
+        private final byte[] frame;             // Frame copied from the ring
+        private float[] decoded;                // Decoded samples of the frame, processed by the DSP chain
+        private final float[] previous;         // Last input frame of the previous chunk (for the interpolation)
+        private final float[] fifo;             // Jitter buffer (interleaved output frames)
+        private final int fifoCapacity;         // Capacity of the jitter buffer in frames
+        private int fifoStart;                  // First frame of the jitter buffer
+        private int fifoFrames;                 // Frames in the jitter buffer
+        private double position;                // Position of the next output frame in the input (-1 is the previous frame)
+        private boolean playing;                // False while the jitter buffer is being filled
+        private boolean finished;
+        private final long[] chunkEnds = new long[TIMESTAMPS];  // Jitter buffer frame where each ring frame ends
+        private final long[] chunkTimes = new long[TIMESTAMPS]; // Ingest time of each ring frame
+        private int chunkFirst;                 // Oldest remembered ring frame
+        private int chunkCount;                 // Remembered ring frames
+        private long appendedFrames;            // Frames appended to the jitter buffer since the stream started
+        private long removedFrames;             // Frames removed from the jitter buffer (played or dropped)
+        private long blockIngestNanos;          // Ingest time of the audio of the last block, 0 if it had no audio
+        private long lastOverruns;
+        private DspChain activeDsp;             // Chain used by the mixer thread
+        private volatile DspChain dsp;
+        private volatile float gain = 1f;
+        private volatile long streamUnderruns;
+
+        private Input(AudioStream stream) {
+            AudioFormat inputFormat = stream.getFormat();
+            PcmRingBuffer ring = stream.getRing();
+            this.stream = stream;
+            this.cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, MAX_LAG_SLOTS);
+            this.decoder = new PcmCodec(inputFormat);
+            this.inputChannels = inputFormat.getChannels();
+            this.step = inputFormat.getSampleRate() / format.getSampleRate();
+            this.frame = new byte[ring.getSlotBytes()];
+            this.decoded = new float[ring.getSlotBytes() / decoder.getBytesPerSample()];
+            this.previous = new float[channels];
+            this.slotFrames = ring.getSlotBytes() / inputFormat.getFrameSize();
+            this.fifoCapacity = MAX_BUFFER_BLOCKS * blockFrames + (int) Math.ceil(slotFrames / step) + 2;
+            this.fifo = new float[fifoCapacity * channels];
+        }
+
+        /**
+         * Returns the stream of this input.
+         *
+         * @return Audio stream
+         */
+        public AudioStream getStream() {
+            return stream;
+        }
+
+        /**
+         * Sets the gain of the stream.
+         *
+         * @param gain Linear gain (1 keeps the level of the stream)
+         */
+        public void setGain(float gain) {
+            this.gain = gain;
+        }
+
+        /**
+         * Returns the gain of the stream.
+         *
+         * @return Linear gain
+         */
+        public float getGain() {
+            return gain;
+        }
+
+        /**
+         * Sets the DSP chain that processes the audio of the stream before it is mixed. The mixer starts using it at
+         * its next block.
+         *
+         * @param dsp Chain built for the format of the stream, or null to not process the audio
+         */
+        public void setDsp(DspChain dsp) {
+            this.dsp = dsp;
+        }
+
+        /**
+         * Returns the DSP chain of the stream.
+         *
+         * @return The chain, or null if the audio is not processed
+         */
+        public DspChain getDsp() {
+            return dsp;
+        }
+
+        /**
+         * Returns the number of times this stream had no audio when its block was due.
+         *
+         * @return Number of underruns
+         */
+        public long getUnderruns() {
+            return streamUnderruns;
+        }
+
+        /**
+         * Adds one block of this stream to the mix.
+         *
+         * @param mix Mix of the block
+         * @return False if the stream finished and all its audio was mixed
+         */
+        boolean mixInto(float[] mix) {
+            pull();
+            if (!playing) {
+                if (fifoFrames >= PREBUFFER_BLOCKS * blockFrames || (finished && fifoFrames > 0)) {
+                    playing = true;         // The jitter buffer is full enough
+                } else {
+                    return !finished;
+                }
+            }
+            int frames = Math.min(blockFrames, fifoFrames);
+            if (frames > 0) {
+                blockIngestNanos = ingestTime(removedFrames);
+            }
+            float g = gain;
+            int from = fifoStart * channels;
+            int end = frames * channels;
+            for (int to = 0; to < end; to++) {
+                mix[to] += fifo[from++] * g;
+                if (from == fifo.length) {
+                    from = 0;               // Wrap around the jitter buffer
+                }
+            }
+            consume(frames);
+            if (frames < blockFrames && !finished) {
+                playing = false;            // The block is late: play silence and fill the jitter buffer again
+                streamUnderruns++;
+                underruns++;
+            }
+            return !(finished && fifoFrames == 0);
+        }
+
+        /**
+         * Moves the available frames of the ring to the jitter buffer.
+         */
+        private void pull() {
+            DspChain chain = dsp;
+            if (chain != activeDsp) {
+                useDsp(chain);
+            }
+            while (fifoFrames < MAX_BUFFER_BLOCKS * blockFrames) {
+                int length = cursor.read(frame, 0);
+                if (length <= 0) {
+                    finished = length < 0;
+                    break;
+                }
+                int frames = decoder.decode(frame, 0, length, decoded, 0) / inputChannels;
+                if (chain != null) {
+                    frames = chain.process(decoded, frames);
+                }
+                append(frames);
+                rememberIngestTime(appendedFrames, cursor.getTimestamp());
+            }
+            long cursorOverruns = cursor.getOverruns();
+            if (cursorOverruns != lastOverruns) {
+                overruns += cursorOverruns - lastOverruns;
+                lastOverruns = cursorOverruns;
+            }
+            int excess = fifoFrames - MAX_BUFFER_BLOCKS * blockFrames;
+            if (excess > 0) {               // The stream sends faster than it is played
+                consume(excess);
+                droppedFrames += excess;
+            }
+        }
+
+        /**
+         * Starts using a new DSP chain: the conversion to the output rate starts from the output rate of the chain,
+         * and the decoded frame grows if the chain can output more frames than it receives.
+         *
+         * @param chain DSP chain, or null
+         */
+        private void useDsp(DspChain chain) {
+            activeDsp = chain;
+            float rate = chain != null ? chain.getOutputSampleRate() : stream.getFormat().getSampleRate();
+            step = rate / format.getSampleRate();
+            int samples = (chain != null ? chain.getMaxOutputFrames(slotFrames) : slotFrames) * inputChannels;
+            if (decoded.length < samples) {
+                decoded = new float[samples];
+            }
+        }
+
+        /**
+         * Converts decoded input frames to the output channels and sample rate and appends them to the jitter buffer.
+         *
+         * @param frames Number of decoded input frames
+         */
+        private void append(int frames) {
+            if (frames == 0) {
+                return;
+            }
+            if (step == 1.0 && inputChannels == channels) { // Same format: copy the frames
+                int to = (fifoStart + fifoFrames) % fifoCapacity * channels;
+                int samples = frames * channels;
+                for (int i = 0; i < samples; i++) {
+                    fifo[to++] = decoded[i];
+                    if (to == fifo.length) {
+                        to = 0;
+                    }
+                }
+                int overflow = fifoFrames + frames - fifoCapacity;
+                if (overflow > 0) {         // Full: the oldest frames were overwritten
+                    fifoStart = (fifoStart + overflow) % fifoCapacity;
+                    droppedFrames += overflow;
+                    removedFrames += overflow;
+                }
+                fifoFrames = Math.min(fifoCapacity, fifoFrames + frames);
+                appendedFrames += frames;
+                return;
+            }
+            int end = (fifoStart + fifoFrames) % fifoCapacity;
+            while (position < frames - 1) { // The frames after the last input frame are computed with the next chunk
+                int index = (int) Math.floor(position);
+                float fraction = (float) (position - index);
+                int to = end * channels;
+                for (int c = 0; c < channels; c++) {
+                    float a = index < 0 ? previous[c] : sample(index, c);
+                    float b = sample(index + 1, c);
+                    fifo[to + c] = a + (b - a) * fraction; // Linear interpolation between two input frames
+                }
+                end = end + 1 == fifoCapacity ? 0 : end + 1;
+                if (fifoFrames < fifoCapacity) {
+                    fifoFrames++;
+                } else {
+                    fifoStart = end;        // Full: overwrite the oldest frame
+                    droppedFrames++;
+                    removedFrames++;
+                }
+                appendedFrames++;
+                position += step;
+            }
+            position -= frames;
+            for (int c = 0; c < channels; c++) {
+                previous[c] = sample(frames - 1, c);
+            }
+        }
+
+        /**
+         * Returns one sample of a decoded input frame, mapped to an output channel.
+         * Mono inputs are copied to all the output channels and mono outputs get the average of the input channels.
+         *
+         * @param frame   Index of the input frame
+         * @param channel Output channel
+         * @return Sample value
+         */
+        private float sample(int frame, int channel) {
+            int base = frame * inputChannels;
+            if (inputChannels == channels) {
+                return decoded[base + channel];
+            }
+            if (channels == 1) {
+                float sum = 0;
+                for (int c = 0; c < inputChannels; c++) {
+                    sum += decoded[base + c];
+                }
+                return sum / inputChannels;
+            }
+            return decoded[base + Math.min(channel, inputChannels - 1)];
+        }
+
+        /**
+         * Removes frames from the beginning of the jitter buffer.
+         *
+         * @param frames Number of frames
+         */
+        private void consume(int frames) {
+            fifoStart = (fifoStart + frames) % fifoCapacity;
+            fifoFrames -= frames;
+            removedFrames += frames;
+        }
+
+        /**
+         * Remembers the ingest time of the ring frame that was just appended to the jitter buffer.
+         * If too many small frames are waiting, the newest ones are not remembered, so the latency is overestimated
+         * rather than underestimated.
+         *
+         * @param end       Jitter buffer frame where the ring frame ends
+         * @param published Time when the ring frame was published (System.nanoTime)
+         */
+        private void rememberIngestTime(long end, long published) {
+            if (chunkCount == TIMESTAMPS) {
+                chunkEnds[(chunkFirst + chunkCount - 1) % TIMESTAMPS] = end; // Extend the newest remembered frame
+                return;
+            }
+            int index = (chunkFirst + chunkCount) % TIMESTAMPS;
+            chunkEnds[index] = end;
+            chunkTimes[index] = published;
+            chunkCount++;
+        }
+
+        /**
+         * Returns the ingest time of a frame of the jitter buffer and forgets the ring frames before it.
+         *
+         * @param position Jitter buffer frame
+         * @return Ingest time (System.nanoTime), or 0 if it is not known
+         */
+        private long ingestTime(long position) {
+            while (chunkCount > 0 && chunkEnds[chunkFirst] <= position) {
+                chunkFirst = (chunkFirst + 1) % TIMESTAMPS;
+                chunkCount--;
+            }
+            return chunkCount > 0 ? chunkTimes[chunkFirst] : 0;
+        }
+    }
+}
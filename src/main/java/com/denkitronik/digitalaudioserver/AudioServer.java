@@ -0,0 +1,444 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Core of the audio server, without any graphical user interface.
+ * It receives the audio of the devices ({@link AudioIngestServer}), keeps a ring buffer per stream, mixes all the
+ * streams ({@link AudioMixer}) and writes the mix to an {@link AudioSink}. Other consumers, like the waveform window,
+ * can subscribe to the mix by reading the output ring of the mixer. Optionally, every stream is recorded in its own
+ * directory of memory-mapped segments ({@link StreamRecorder}) that can be replayed later ({@link Recording}).
+ * Optionally, the devices can also send their audio over UDP to the same port number ({@link UdpIngestServer}), and
+ * other machines can listen to the mix or to any stream through a relay port ({@link RelayServer}).
+ * The level of every stream is measured on the ingest path ({@link LevelMeter}) and published to the
+ * {@link LevelListener}s and, optionally, as JSON lines on a local port ({@link LevelEventServer}); the silent
+ * audio can be left out of the recordings.
+ * The audio of each stream can be processed by a {@link DspChain} before it is mixed; new streams get the default
+ * chain, and the chain of any stream can be changed at run time, also through JMX ({@link DspControl}).
+ * The counters and latencies of the pipeline are published through JMX and, optionally, over HTTP
+ * ({@link PipelineMetrics}).
+ * This class does not use Swing or AWT, so it can run
+ * on a machine without a display.
+ */
+public class AudioServer {
+
+    // Ring buffer of each stream: 64 frames of 2048 bytes (about 1.5 s of 16-bit 44.1 kHz mono audio)
+    private static final int RING_SLOTS = 64;
+    private static final int RING_SLOT_BYTES = 2048;
+
+    /**
+     * Format of the mix (16-bit, 44.1 kHz, stereo, signed, little endian).
+     */
+    public static final AudioFormat MIX_FORMAT = new AudioFormat(44100, 16, 2, true, false);
+
+    private static final DateTimeFormatter RECORDING_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final int port;
+    private final Path recordingDirectory;
+    private final AudioMixer mixer;
+    private final AudioStreamListener listener;
+    private final AudioIngestServer ingestServer;
+    private final UdpIngestServer udpServer;
+    private final PipelineMetrics metrics;
+    private final DspControl dspControl;
+    private final Map<Integer, AudioStream> streams = new ConcurrentHashMap<>(); // Active streams, by identifier
+    private MetricsHttpServer metricsServer;
+    private RelayServer relayServer;
+    private LevelEventServer levelServer;
+    private volatile String defaultDsp = "";    // DSP chain of the new streams (empty for none)
+    private volatile LevelListener[] levelListeners = new LevelListener[0];
+    private volatile boolean skipSilence;
+    private final AtomicLong skippedSilentBytes = new AtomicLong(); // Updated by the TCP and UDP ingest threads
+
+    /**
+     * Creates the server. Nothing is started until {@link #start()} is called.
+     *
+     * @param port TCP port where the devices connect (0 to use any free port)
+     * @param sink Sink where the mix is written
+     */
+    public AudioServer(int port, AudioSink sink) {
+        this(port, sink, null);
+    }
+
+    /**
+     * Creates the server. Nothing is started until {@link #start()} is called.
+     *
+     * @param port               TCP port where the devices connect (0 to use any free port)
+     * @param sink               Sink where the mix is written
+     * @param recordingDirectory Directory where the streams are recorded, or null to not record them
+     */
+    public AudioServer(int port, AudioSink sink, Path recordingDirectory) {
+        this(port, sink, recordingDirectory, false);
+    }
+
+    /**
+     * Creates the server. Nothing is started until {@link #start()} is called.
+     *
+     * @param port               TCP port where the devices connect (0 to use any free port)
+     * @param sink               Sink where the mix is written
+     * @param recordingDirectory Directory where the streams are recorded, or null to not record them
+     * @param udp                True to also receive streams over UDP, on the same port number as TCP (any free
+     *                           port if the port is 0, see {@link #getUdpPort()})
+     */
+    public AudioServer(int port, AudioSink sink, Path recordingDirectory, boolean udp) {
+        this.port = port;
+        this.recordingDirectory = recordingDirectory;
+        this.mixer = new AudioMixer(MIX_FORMAT, sink);
+        LevelListener levelDispatcher = (stream, meter) -> {
+            for (LevelListener levelListener : levelListeners) {
+                levelListener.levelMeasured(stream, meter);
+            }
+        };
+        this.listener = new AudioStreamListener() {
+            @Override
+            public void streamOpened(AudioStream stream) {
+                stream.setRing(new PcmRingBuffer(RING_SLOTS, RING_SLOT_BYTES));
+                stream.setMeter(new LevelMeter(stream.getFormat(), stream, levelDispatcher));
+                AudioMixer.Input input = mixer.addStream(stream);
+                String description = defaultDsp;
+                if (!description.isEmpty()) {
+                    try {
+                        input.setDsp(DspChain.parse(description, stream.getFormat()));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("The DSP chain cannot process " + stream + ": " + e.getMessage());
+                    }
+                }
+                streams.put(stream.getId(), stream);
+                if (recordingDirectory != null) {
+                    startRecording(stream);
+                }
+            }
+
+            @Override
+            public void audioReceived(AudioStream stream, ByteBuffer data) {
+                int position = data.position();
+                boolean silent = stream.getMeter().analyze(data);
+                stream.getRing().publish(data, stream.getFrameSize()); // The mix keeps the silence to stay in time
+                data.position(position);
+                if (silent && skipSilence && stream.getRecorder() != null) {
+                    skippedSilentBytes.addAndGet(stream.getRecorder().skip(data)); // The last block is kept as pre-roll
+                } else if (stream.getRecorder() != null) {
+                    try {
+                        stream.getRecorder().write(data);
+                    } catch (IOException e) {
+                        System.out.println("Recording of " + stream + " stopped: " + e.getMessage());
+                        stopRecording(stream);
+                    }
+                }
+            }
+
+            @Override
+            public void streamClosed(AudioStream stream) {
+                streams.remove(stream.getId());
+                stream.getRing().close(); // The mixer and the relay remove the stream when they read all its audio
+                stopRecording(stream);
+            }
+        };
+        this.ingestServer = new AudioIngestServer(port, listener);
+        this.udpServer = udp ? new UdpIngestServer(port, listener) : null;
+        this.metrics = new PipelineMetrics(ingestServer, udpServer, mixer);
+        if (sink instanceof SoundCardSink) {
+            metrics.setSoundCard((SoundCardSink) sink);
+        }
+        this.dspControl = new DspControl(this);
+    }
+
+    /**
+     * Opens the sink, starts the mixer and starts receiving the audio of the devices.
+     *
+     * @throws IOException If the sink cannot be opened or the port cannot be opened
+     */
+    public void start() throws IOException {
+        mixer.start();
+        try {
+            ingestServer.start();
+        } catch (IOException e) {
+            mixer.stop();
+            throw new IOException("The audio server could not be started on port " + port + ": " + e.getMessage(), e);
+        }
+        if (udpServer != null) {
+            try {
+                udpServer.start(); // Listener methods are called from two ingest threads, on different streams
+            } catch (IOException e) {
+                ingestServer.stop();
+                mixer.stop();
+                throw new IOException("The UDP port " + port + " could not be opened: " + e.getMessage(), e);
+            }
+        }
+        metrics.register(getLocalPort());
+        dspControl.register(getLocalPort());
+    }
+
+    /**
+     * Publishes the metrics of the server in the Prometheus text format at http://localhost:port/metrics.
+     *
+     * @param metricsPort Local TCP port of the metrics (0 to use any free port)
+     * @throws IOException If the port cannot be opened
+     */
+    public synchronized void startMetricsServer(int metricsPort) throws IOException {
+        metricsServer = new MetricsHttpServer(metricsPort, metrics);
+        metricsServer.start();
+    }
+
+    /**
+     * Rebroadcasts the mix and the streams to the listener clients that connect to a TCP port.
+     *
+     * @param relayPort TCP port of the listeners (0 to use any free port)
+     * @throws IOException If the port cannot be opened
+     */
+    public synchronized void startRelayServer(int relayPort) throws IOException {
+        relayServer = new RelayServer(relayPort, streams, mixer.getOutputRing(), MIX_FORMAT);
+        relayServer.start();
+        metrics.setRelayServer(relayServer);
+    }
+
+    /**
+     * Publishes the level of every block of every stream as JSON lines to the clients of a local TCP port.
+     *
+     * @param levelPort Local TCP port (0 to use any free port)
+     * @throws IOException If the port cannot be opened
+     */
+    public synchronized void startLevelServer(int levelPort) throws IOException {
+        levelServer = new LevelEventServer(levelPort);
+        levelServer.start();
+        addLevelListener(levelServer);
+    }
+
+    /**
+     * Adds a listener that receives the level of every block of every stream. It is called from the ingest threads.
+     *
+     * @param levelListener Listener
+     */
+    public synchronized void addLevelListener(LevelListener levelListener) {
+        LevelListener[] newListeners = Arrays.copyOf(levelListeners, levelListeners.length + 1);
+        newListeners[levelListeners.length] = levelListener;
+        levelListeners = newListeners;
+    }
+
+    /**
+     * Removes a level listener.
+     *
+     * @param levelListener Listener
+     */
+    public synchronized void removeLevelListener(LevelListener levelListener) {
+        levelListeners = Arrays.stream(levelListeners).filter(l -> l != levelListener).toArray(LevelListener[]::new);
+    }
+
+    /**
+     * Sets whether the silent audio is left out of the recordings (and of the waveform window), to save disk and CPU.
+     * The mix always keeps the silence.
+     *
+     * @param skipSilence True to skip the silent audio
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        this.skipSilence = skipSilence;
+    }
+
+    /**
+     * Tells if the silent audio is left out of the recordings and of the waveform window.
+     *
+     * @return True if the silent audio is skipped
+     */
+    public boolean isSkipSilence() {
+        return skipSilence;
+    }
+
+    /**
+     * Returns the number of silent audio bytes that were not recorded.
+     *
+     * @return Number of bytes
+     */
+    public long getSkippedSilentBytes() {
+        return skippedSilentBytes.get();
+    }
+
+    /**
+     * Sets the DSP chain of the streams that connect from now on.
+     *
+     * @param description Text description of the chain (see {@link DspChain}), empty for no processing
+     * @throws IllegalArgumentException If the description is not valid
+     */
+    public void setDefaultDsp(String description) {
+        DspChain.parse(description, MIX_FORMAT); // Fails now rather than when a stream connects
+        defaultDsp = description.trim();
+    }
+
+    /**
+     * Returns the DSP chain of the streams that connect from now on.
+     *
+     * @return Text description of the chain, empty for no processing
+     */
+    public String getDefaultDsp() {
+        return defaultDsp;
+    }
+
+    /**
+     * Replaces the DSP chain of a stream that is being mixed. The mixer starts using it at its next block.
+     *
+     * @param streamId    Identifier of the stream
+     * @param description Text description of the chain (see {@link DspChain}), empty for no processing
+     * @return False if the stream is not being mixed
+     * @throws IllegalArgumentException If the description is not valid for the format of the stream
+     */
+    public boolean setStreamDsp(int streamId, String description) {
+        AudioMixer.Input input = mixer.getInput(streamId);
+        if (input == null) {
+            return false;
+        }
+        input.setDsp(description.trim().isEmpty() ? null : DspChain.parse(description, input.getStream().getFormat()));
+        System.out.println("DSP chain of " + input.getStream() + ": " + (input.getDsp() != null ? input.getDsp() : "none"));
+        return true;
+    }
+
+    /**
+     * Returns the DSP chain of a stream.
+     *
+     * @param streamId Identifier of the stream
+     * @return Text description of the chain, empty if the stream is not processed, or null if it is not being mixed
+     */
+    public String getStreamDsp(int streamId) {
+        AudioMixer.Input input = mixer.getInput(streamId);
+        if (input == null) {
+            return null;
+        }
+        return input.getDsp() != null ? input.getDsp().toString() : "";
+    }
+
+    /**
+     * Closes all the connections, stops the mixer and closes the sink.
+     */
+    public void stop() {
+        ingestServer.stop();
+        if (udpServer != null) {
+            udpServer.stop();
+        }
+        mixer.stop();
+        metrics.unregister();
+        dspControl.unregister();
+        synchronized (this) {
+            if (metricsServer != null) {
+                metricsServer.stop();
+                metricsServer = null;
+            }
+            if (relayServer != null) {
+                relayServer.stop();
+                relayServer = null;
+            }
+            if (levelServer != null) {
+                removeLevelListener(levelServer);
+                levelServer.stop();
+                levelServer = null;
+            }
+        }
+    }
+
+    /**
+     * Starts recording a stream in a new directory named after the time and the identifier of the stream.
+     *
+     * @param stream Audio stream
+     */
+    private void startRecording(AudioStream stream) {
+        String name = LocalDateTime.now().format(RECORDING_NAME) + "-stream-" + stream.getId()
+                + (stream.getDeviceStreamId() != 0 ? "-device-" + stream.getDeviceStreamId() : "");
+        try {
+            StreamRecorder recorder = new StreamRecorder(recordingDirectory.resolve(name), stream.getFormat(),
+                    StreamRecorder.DEFAULT_SEGMENT_BYTES);
+            stream.setRecorder(recorder);
+            System.out.println("Recording " + stream + " in " + recorder.getDirectory());
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("The stream " + stream + " cannot be recorded: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the recorder of a stream, if it has one.
+     *
+     * @param stream Audio stream
+     */
+    private static void stopRecording(AudioStream stream) {
+        StreamRecorder recorder = stream.getRecorder();
+        if (recorder == null) {
+            return;
+        }
+        stream.setRecorder(null);
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            System.out.println("The recording of " + stream + " could not be closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the mixer, whose output ring can be read to receive the mix.
+     *
+     * @return The mixer
+     */
+    public AudioMixer getMixer() {
+        return mixer;
+    }
+
+    /**
+     * Returns the streams that are connected.
+     *
+     * @return Read-only view of the active streams
+     */
+    public Collection<AudioStream> getStreams() {
+        return Collections.unmodifiableCollection(streams.values());
+    }
+
+    /**
+     * Returns the metrics of the pipeline.
+     *
+     * @return Metrics
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the port where the devices connect.
+     *
+     * @return Local TCP port
+     */
+    public int getLocalPort() {
+        return ingestServer.getLocalPort();
+    }
+
+    /**
+     * Returns the port where the listener clients connect.
+     *
+     * @return Local TCP port of the relay, or -1 if the relay was not started
+     */
+    public synchronized int getRelayPort() {
+        return relayServer != null ? relayServer.getLocalPort() : -1;
+    }
+
+    /**
+     * Returns the port where the level events are published.
+     *
+     * @return Local TCP port of the level events, or -1 if they are not published
+     */
+    public synchronized int getLevelPort() {
+        return levelServer != null ? levelServer.getLocalPort() : -1;
+    }
+
+    /**
+     * Returns the port where the devices send their UDP streams.
+     *
+     * @return Local UDP port, or -1 if the server does not receive UDP streams
+     */
+    public int getUdpPort() {
+        return udpServer != null ? udpServer.getLocalPort() : -1;
+    }
+}
@@ -28,32 +28,28 @@ package com.denkitronik.digitalaudioserver;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.LogAxis;
 import org.jfree.chart.axis.NumberAxis;
 import org.jfree.chart.axis.NumberTickUnit;
 import org.jfree.chart.plot.XYPlot;
 import org.jfree.chart.renderer.xy.XYSplineRenderer;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.XYSeriesCollection;
+import org.jfree.data.xy.XYDataset;
 
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.SourceDataLine;
 import javax.swing.*;
 import java.awt.*;
-import java.io.InputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.text.DecimalFormat;
 
 /**
  * AudioServerWithGraph
  * This Java application serves as a server for receiving audio data from clients and playing it back.
- * It includes a graphical user interface that displays a real-time waveform visualization of the received audio.
+ * It includes a graphical user interface that displays a real-time waveform visualization of the received audio,
+ * its frequency spectrum and a scrolling spectrogram.
  * The visualization supports different styles such as showing the average, average and current values, or unique values.
  * Author: Alvaro Salazar <alvaro@denkitronik.com>
  * Date: 11-2023
  * License: MIT License
  * Usage:
- * - Run the AudioServerWithGraph application to start the server.
+ * - Run the AudioServerWithGraph application to start the server (add --headless to run it without this window).
  * - Connect clients that send audio data to the server's IP address and port (default port: 12345).
  * - The server will play back the audio and display the waveform visualization.
  * Dependencies:
@@ -62,136 +58,95 @@ import java.net.Socket;
  */
 public class AudioServerWithGraph extends JFrame {
 
-    private static String ip = "localhost";
-    private static int port = 12345;
-    // Constants to define the visualization styles
-    private final int STYLE_AVG = 0;
-    private final int STYLE_AVG_AND_CURRENT = 1;
-    private final int STYLE_UNIQUE_VALUE = 2;
-
     // Audio-related parameters
     private final int SAMPLE_RATE = 44100;
-    private static final int SERVER_PORT = 12345;
 
-    // Data series for the visualizations
-    private final XYSeries series1;
-    private final XYSeries series2;
+    // Decimator that reduces the audio to one value per column, and dataset that shows its columns
+    private final WaveformDecimator decimator;
+    private final WaveformDataset dataset;
 
-    // Dataset for the visualizations
-    private final XYSeriesCollection dataset;
+    // Analyzer that computes the spectrum of the mix on its own thread, and dataset that shows its newest spectrum
+    private final SpectrumAnalyzer analyzer;
+    private final SpectrumDataset spectrumDataset;
 
     // Time interval for the visualization
     private final double DURATION = 0.07;
     private final int WIDTH = 150;
-
-    private final boolean onePage;
-    private double currentTime = 0;
-    private int page = 0;
-    private int indexAvg = 0;
-    private int average = 0;
-    private final int style;
+    private static final int REFRESH_FPS = 30; // Frame rate of the waveform chart
 
     /**
-     * Method that creates the window and displays it.
+     * Method that starts the application. The command line is read by {@link DigitalAudioServer}.
      *
-     * @param args Command line arguments (not used)
+     * @param args Command line arguments
      */
     public static void main(String[] args) {
-        AudioDeviceSimulator audioDeviceSimulator;
-        String option;
-        switch (args.length) {
-            case 0:  // Default mode (server)
-                System.out.println("Starting server mode default mode on port: " + SERVER_PORT);
-                SwingUtilities.invokeLater(() -> new AudioServerWithGraph().setVisible(true));
-                break;
-            case 1: // Client or server mode (server IP and port are not specified)
-                option = args[0];
-                if (option.equals("client")) {
-                    System.out.println("Starting client default mode. Connecting to server localhost on port: " + SERVER_PORT);
-                    audioDeviceSimulator = new AudioDeviceSimulator();
-                    audioDeviceSimulator.startClient(ip,port);
-                } else if (option.equals("server")) {
-                    System.out.println("Starting server default mode on port: " + SERVER_PORT);
-                    // Create the window and display it
-                    SwingUtilities.invokeLater(() -> new AudioServerWithGraph().setVisible(true));
-                }
-                break;
-
-            case 2: // Client with ip server and port specified or server with port specified
-                option = args[0];
-                if (option.equals("client")) {
-                    System.out.println("Number of arguments is not valid for client mode.");
-                    System.out.println("Starting client default mode. Connecting to server localhost on port: " + SERVER_PORT);
-                    audioDeviceSimulator = new AudioDeviceSimulator();
-                    ip= "localhost";
-                    port = 12345;
-                    audioDeviceSimulator.startClient(ip,port); // Default server IP and port
-                } else if (option.equals("server")) {
-                    System.out.println("Starting server default mode on port: " + args[1]);
-                    port = Integer.parseInt(args[1]);
-                    // Create the window and display it
-                    SwingUtilities.invokeLater(() -> new AudioServerWithGraph().setVisible(true));
-                }
-                break;
-
-            case 3: // Client with ip server and port specified or server with port specified
-                option = args[0];
-                if (option.equals("client")) { // Client mode (server IP and port are specified)
-                    System.out.println("Starting client mode. Connecting to server "+ip+" on port: " + port);
-                    audioDeviceSimulator = new AudioDeviceSimulator();
-                    audioDeviceSimulator.startClient(args[1], Integer.parseInt(args[2]));
-                } else if (option.equals("server")) {
-                    System.out.println("Number of arguments is not valid for server mode. Starting server default mode on port: " + SERVER_PORT);
-                    System.out.println("Starting server default mode on port: " + SERVER_PORT);
-                    // Create the window and display it
-                    SwingUtilities.invokeLater(() -> new AudioServerWithGraph().setVisible(true));
-                }
-                break;
-            case 4: // Client mode (server IP and port are specified)
-                ip = args[1];
-                port = Integer.parseInt(args[2]);
-                String wavFile = args[3];
-                System.out.println("Starting client mode. Connecting to server "+ip+" on port: " + port+ " with audio file: "+wavFile);
-                audioDeviceSimulator = new AudioDeviceSimulator();
-                audioDeviceSimulator.startClient(args[1], Integer.parseInt(args[2]), args[3]);
-                break;
-            default: // Invalid number of arguments
-                System.out.println("Usage: java -jar AudioServerWithGraph.jar [client|server] [ip] [port]");
-                System.exit(0);
-        }
+        DigitalAudioServer.main(args);
     }
 
+    /**
+     * Creates the window of a started server and displays it in the GUI thread.
+     *
+     * @param server Started audio server whose mix is shown
+     */
+    public static void show(AudioServer server) {
+        SwingUtilities.invokeLater(() -> new AudioServerWithGraph(server).setVisible(true));
+    }
 
     /**
      * Constructor of the class. Creates the window and configures it.
-     * It also starts the audio server.
+     * The window subscribes to the mix of the server, which keeps running on its own threads.
      *
+     * @param server Started audio server whose mix is shown
      * @throws HeadlessException If the window cannot be created
      */
     @SuppressWarnings("ConstantValue")
-    public AudioServerWithGraph() {
+    public AudioServerWithGraph(AudioServer server) {
         super("Audio Waveform Visualization and Player (Server) by Alvaro Salazar");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        onePage = DURATION >= 1.2;
+        boolean onePage = DURATION >= 1.2;
+        WaveformDecimator.Style style;
         if (DURATION >= 0.5) {
-            style = STYLE_UNIQUE_VALUE;
+            style = WaveformDecimator.Style.UNIQUE_VALUE;
         } else if (DURATION >= 0.1) {
-            style = STYLE_AVG_AND_CURRENT;
-        } else if (DURATION >= 0.05) {
-            style = STYLE_AVG;
+            style = WaveformDecimator.Style.AVG_AND_CURRENT;
+        } else {
+            style = WaveformDecimator.Style.AVG;
         }
-        series1 = new XYSeries("Amplitude (units)");
-        series2 = new XYSeries("Amplitude (units)");
-        dataset = new XYSeriesCollection(series1);
+        decimator = new WaveformDecimator(WIDTH, SAMPLE_RATE * DURATION / WIDTH, style, onePage);
+        dataset = new WaveformDataset(decimator, DURATION / WIDTH, server.getMetrics().getRenderLag());
         JFreeChart chart = createChart(dataset);
         ChartPanel chartPanel = new ChartPanel(chart);
         chartPanel.setPreferredSize(new Dimension(800, 400));
-        add(chartPanel);
 
-        new Thread(this::startAudioStream).start();
+        // The spectrum is computed by the analyzer thread, which also draws the spectrogram
+        PcmRingBuffer mix = server.getMixer().getOutputRing();
+        SpectrogramView spectrogram = new SpectrogramView(SpectrumAnalyzer.DEFAULT_FFT_SIZE, AudioServer.MIX_FORMAT.getSampleRate());
+        analyzer = new SpectrumAnalyzer(mix, AudioServer.MIX_FORMAT, SpectrumAnalyzer.DEFAULT_FFT_SIZE, spectrogram);
+        analyzer.setSkipSilence(server.isSkipSilence());
+        spectrumDataset = new SpectrumDataset(analyzer);
+        ChartPanel spectrumPanel = new ChartPanel(createSpectrumChart(spectrumDataset));
+        spectrumPanel.setPreferredSize(new Dimension(800, 300));
+
+        JPanel charts = new JPanel(new GridLayout(3, 1));
+        charts.add(chartPanel);
+        charts.add(spectrumPanel);
+        charts.add(spectrogram);
+        add(charts);
+
+        // Refresh the charts at a fixed frame rate, with one dataset update per frame
+        new Timer(1000 / REFRESH_FPS, e -> {
+            dataset.refresh();
+            spectrumDataset.refresh();
+            spectrogram.repaint();
+        }).start();
+
+        WaveformFeeder feeder = new WaveformFeeder(mix, AudioServer.MIX_FORMAT, decimator);
+        feeder.setSkipSilence(server.isSkipSilence());
+        new Thread(feeder, "audio-waveform").start();
+        new Thread(analyzer, "audio-spectrum").start();
 
         // Set a larger initial size for the window
-        setSize(1000, 600);
+        setSize(1000, 900);
     }
 
     /**
@@ -200,7 +155,7 @@ public class AudioServerWithGraph extends JFrame {
      * @param dataset Dataset that will be used to create the chart
      * @return The created chart
      */
-    private JFreeChart createChart(XYSeriesCollection dataset) {
+    private JFreeChart createChart(XYDataset dataset) {
         JFreeChart chart = ChartFactory.createXYLineChart(
                 "Audio Waveform Visualization",
                 "Time (seconds)",
@@ -226,130 +181,40 @@ public class AudioServerWithGraph extends JFrame {
 
         // Set the renderer to not show the markers
         renderer.setSeriesShapesVisible(0, false); // Disable the markers for the series
+        // Show the minimum and maximum of each column as a light envelope
+        for (int series = 1; series <= 2; series++) {
+            renderer.setSeriesShapesVisible(series, false);
+            renderer.setSeriesPaint(series, new Color(180, 180, 220));
+            renderer.setSeriesVisibleInLegend(series, false);
+        }
         plot.setRenderer(renderer); // Set the renderer for the plot
 
         return chart;
     }
 
-
-    /**
-     * Method that starts the audio server and plays back the received audio.
-     *
-     */
-    private void startAudioStream() {
-        while (true) {
-            // Start the audio server and wait for a client to connect
-            try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT);
-                 Socket clientSocket = serverSocket.accept();
-                 InputStream inputStream = clientSocket.getInputStream()) {
-
-                // Create the audio format that will be used to play back the received audio
-                AudioFormat audioFormat = getAudioFormat();
-                // Create the object that will be used to play back the received audio
-                SourceDataLine line = AudioSystem.getSourceDataLine(audioFormat);
-                // Open the object so that it is ready to play back the audio
-                line.open(audioFormat);
-                // Start playing back the audio
-                line.start();
-                // Buffer to store the received audio data
-                byte[] buffer = new byte[1024];
-                // Number of bytes read from the buffer
-                int bytesRead;
-
-                // Read data from the buffer and play it back until the connection is closed
-                while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) != -1) {
-                    updateWaveform(buffer, bytesRead); // Update the waveform visualization
-                    line.write(buffer, 0, bytesRead);
-                }
-
-            } catch (Exception e) {
-                System.out.println("Audio streaming finished.");
-            }
-        }
-    }
-
-
     /**
-     * Method that updates the waveform visualization.
+     * Method that creates the spectrum chart, with a logarithmic frequency axis.
      *
-     * @param buffer    Buffer with the received audio data
-     * @param bytesRead Number of bytes read from the buffer
-     */
-    private void updateWaveform(byte[] buffer, int bytesRead) {
-        // Update the waveform visualization in the GUI thread
-        SwingUtilities.invokeLater(() -> {
-
-            // Sweep through the received data and update the visualization
-            for (int i = 0; i < bytesRead; i += 2) {
-                int scaledValue = ((buffer[i] & 0xFF) << 8) | (buffer[i + 1] & 0xFF);
-
-                // Convert the value to a signed 16-bit value (short)
-                if (scaledValue > Short.MAX_VALUE) {
-                    // The value is in the range [32768, 65535]
-                    scaledValue = (short) (scaledValue - 65536);
-                }
-
-                // Update the waveform visualization with the received value and the current time
-                if (indexAvg < (SAMPLE_RATE * DURATION / WIDTH)) {  // If the end of the interval has not been reached
-                    average += scaledValue;                         // Accumulate the values to calculate the average
-                    indexAvg++;                                     // Increment the value counter
-                } else {
-                    average = (average / indexAvg);                 // Calculate the average
-                    indexAvg = 0;                                   // Reset the value counter
-
-                    // Update the waveform visualization with the received value and the current time
-                    switch (style) { // Selected visualization style
-                        case STYLE_AVG:     // Show only the average of the values received in the time interval
-                            scaledValue = average;
-                            break;
-                        case STYLE_AVG_AND_CURRENT: // Show the average and current value of the values received in the time interval
-                            scaledValue = (average + scaledValue) / 2;
-                            break;
-                        case STYLE_UNIQUE_VALUE: // Show only the current value of the values received in the time interval
-
-                            break;
-                    }
-                    average = 0;
-                    currentTime += DURATION / WIDTH; // Increment the current time in the time interval
-                    //double amplitude = 20.0 * Math.log10(1.0 + scaledValue+32768); // Calculate the amplitude in dB
-                    double amplitude = scaledValue; // Calculate the amplitude in units
-                    if (page == 0) { // Show the values on the first page
-                        series1.add(currentTime, amplitude); // Add the value to the visualization
-                    } else {
-                        series2.add(currentTime, amplitude); // Add the value to the visualization
-                    }
-                }
-            }
-            // If the end of the first page has been reached, go to the second page
-            if (page == 0 && series1.getItemCount() >= WIDTH) { // If the end of the first page has been reached
-                if (!onePage) {                     // If there is more than one page of waveform visualization
-                    dataset.removeAllSeries();      // Remove the first page of the visualization
-                    dataset.addSeries(series1);     // Add the second page of the visualization
-                    series2.clear();                // Clear the second page of the visualization
-                    page = 1;                       // Go to the second page
-                } else {
-                    series1.clear();                // Clear the first page of the visualization
-                }
-                currentTime = 0;                    // Reset the current time
-            }
-            // If the end of the second page has been reached, go to the first page
-            if (!onePage && page == 1 && series2.getItemCount() >= WIDTH) { // If the end of the second page has been reached
-                dataset.removeAllSeries();          // Remove the second page of the visualization
-                dataset.addSeries(series2);         // Add the first page of the visualization
-                series1.clear();                    // Clear the first page of the visualization
-                page = 0;                           // Go to the first page
-                currentTime = 0;                    // Reset the current time
-            }
-        });
-    }
-
-    /**
-     * Method that returns the audio format that will be used to play back the received audio.
-     *
-     * @return The audio format
+     * @param dataset Dataset with the newest spectrum
+     * @return The created chart
      */
-    private AudioFormat getAudioFormat() {
-        // Return the audio format that will be used to play back the received audio (16-bit, 44.1 kHz, mono, signed, little endian)
-        return new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+    private JFreeChart createSpectrumChart(XYDataset dataset) {
+        JFreeChart chart = ChartFactory.createXYLineChart(
+                "Spectrum",
+                "Frequency (Hz)",
+                "Level (dBFS)",
+                dataset
+        );
+        XYPlot plot = chart.getXYPlot();
+        LogAxis xAxis = new LogAxis("Frequency (Hz)");
+        xAxis.setBase(10);
+        xAxis.setRange(20, AudioServer.MIX_FORMAT.getSampleRate() / 2);
+        xAxis.setNumberFormatOverride(new DecimalFormat("0"));
+        plot.setDomainAxis(xAxis);
+        NumberAxis yAxis = (NumberAxis) plot.getRangeAxis();
+        yAxis.setRange(SpectrumAnalyzer.MIN_LEVEL_DB, 0);
+        yAxis.setTickUnit(new NumberTickUnit(20));
+        chart.removeLegend();
+        return chart;
     }
 }
@@ -0,0 +1,56 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+
+/**
+ * Destination of the mixed audio: the sound card, a file, a pipe, ...
+ * The mixer opens the sink with its output format and then writes one block every period from the mixer thread.
+ */
+public interface AudioSink {
+
+    /**
+     * Prepares the sink to receive audio.
+     *
+     * @param format Format of the audio that will be written
+     * @throws IOException If the sink cannot be opened
+     */
+    void open(AudioFormat format) throws IOException;
+
+    /**
+     * Writes audio to the sink. It may block, for example while the sound card is full.
+     *
+     * @param data   Audio bytes
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @throws IOException If the audio cannot be written
+     */
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Finishes the audio and releases the sink.
+     *
+     * @throws IOException If the sink cannot be closed properly
+     */
+    void close() throws IOException;
+
+    /**
+     * Creates a sink from its command line name: soundcard, null, stdout or wav:FILE.
+     *
+     * @param name Name of the sink
+     * @return The sink
+     * @throws IllegalArgumentException If the name is not known
+     */
+    static AudioSink forName(String name) {
+        if (name.equals("soundcard")) {
+            return new SoundCardSink();
+        } else if (name.equals("null")) {
+            return new NullSink();
+        } else if (name.equals("stdout")) {
+            return new StdoutSink();
+        } else if (name.startsWith("wav:") && name.length() > 4) {
+            return new WavFileSink(name.substring(4));
+        }
+        throw new IllegalArgumentException("Unknown audio sink: " + name + " (use soundcard, null, stdout or wav:FILE)");
+    }
+}
@@ -0,0 +1,216 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class represents one audio stream (one connected device) handled by the ingest server.
+ * It keeps the connection, the reusable read buffer and the counters of the stream.
+ * All the mutable fields are written only by the ingest thread; the counters are volatile so other
+ * threads (statistics, load test) can read them without locking.
+ */
+public class AudioStream {
+
+    // Audio format used by the devices that do not describe their stream (16-bit, 44.1 kHz, mono, signed, little endian)
+    public static final AudioFormat LEGACY_FORMAT = new AudioFormat(44100, 16, 1, true, false);
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1); // Shared by the TCP and UDP streams
+
+    private final int id;
+    private final SocketAddress remoteAddress;
+    private final long openedAtNanos;
+    final SocketChannel channel;    // Connection with the device (ingest thread only)
+    final ByteBuffer buffer;        // Reusable direct read buffer (ingest thread only)
+    boolean started;                // True when the format is known and the listener was told (ingest thread only)
+    boolean timestamped;            // True if the audio comes in timestamped packets (ingest thread only)
+    int packetRemaining;            // Audio bytes of the current packet not yet received (ingest thread only)
+    int nextSequence;               // Sequence expected in the next packet (ingest thread only)
+    BlockCodec codec;               // Decoder of a compressed stream, null for raw audio (ingest thread only)
+    byte[] block;                   // Encoded block being decoded (ingest thread only)
+    ByteBuffer decoded;             // Reusable buffer with the decoded audio of the last block (ingest thread only)
+    JitterBuffer jitter;            // Reorder buffer of a UDP stream (UDP ingest thread only)
+    long lastReceivedNanos;         // Time when the last datagram of a UDP stream arrived (UDP ingest thread only)
+    private volatile int deviceStreamId;
+    private volatile AudioFormat format = LEGACY_FORMAT;
+    private volatile PcmRingBuffer ring;
+    private StreamRecorder recorder;    // Recorder of the stream (ingest thread only)
+    private volatile LevelMeter meter;
+    private volatile long bytesReceived;
+
+    /**
+     * Creates a new audio stream for an accepted connection.
+     *
+     * @param id            Identifier of the stream assigned by the server
+     * @param channel       Connection with the device (null for a UDP stream)
+     * @param remoteAddress Address of the device
+     * @param buffer        Direct buffer used to read the data of the stream (null for a UDP stream)
+     */
+    AudioStream(int id, SocketChannel channel, SocketAddress remoteAddress, ByteBuffer buffer) {
+        this.id = id;
+        this.channel = channel;
+        this.remoteAddress = remoteAddress;
+        this.buffer = buffer;
+        this.openedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns a new stream identifier, unique in the application.
+     *
+     * @return Stream identifier
+     */
+    static int nextId() {
+        return NEXT_ID.getAndIncrement();
+    }
+
+    /**
+     * Returns the identifier of the stream.
+     *
+     * @return Stream identifier
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the address of the device that sends the stream.
+     *
+     * @return Remote address
+     */
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Returns the time (System.nanoTime) when the stream was accepted.
+     *
+     * @return Open time in nanoseconds
+     */
+    public long getOpenedAtNanos() {
+        return openedAtNanos;
+    }
+
+    /**
+     * Returns the audio format of the stream.
+     *
+     * @return Audio format
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the audio format of the stream.
+     *
+     * @param format Audio format
+     */
+    void setFormat(AudioFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Returns the identifier of the stream announced by the device in its header.
+     *
+     * @return Device stream identifier, or 0 if the device did not send one
+     */
+    public int getDeviceStreamId() {
+        return deviceStreamId;
+    }
+
+    /**
+     * Sets the identifier of the stream announced by the device.
+     *
+     * @param deviceStreamId Device stream identifier
+     */
+    void setDeviceStreamId(int deviceStreamId) {
+        this.deviceStreamId = deviceStreamId;
+    }
+
+    /**
+     * Returns the ring buffer where the audio of the stream is published for the consumers.
+     *
+     * @return Ring buffer of the stream, or null if the stream has no consumers
+     */
+    public PcmRingBuffer getRing() {
+        return ring;
+    }
+
+    /**
+     * Sets the ring buffer where the audio of the stream is published for the consumers.
+     *
+     * @param ring Ring buffer of the stream
+     */
+    public void setRing(PcmRingBuffer ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Returns the recorder that keeps the audio of the stream.
+     *
+     * @return Recorder of the stream, or null if the stream is not recorded
+     */
+    public StreamRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Sets the recorder that keeps the audio of the stream. Only the ingest thread can call this method.
+     *
+     * @param recorder Recorder of the stream, or null to stop recording it
+     */
+    public void setRecorder(StreamRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Returns the meter that measures the level of the stream. Its values can be read from any thread.
+     *
+     * @return Level meter, or null if the stream is not measured
+     */
+    public LevelMeter getMeter() {
+        return meter;
+    }
+
+    /**
+     * Sets the meter that measures the level of the stream. Only the ingest thread analyzes the audio with it.
+     *
+     * @param meter Level meter of the stream
+     */
+    public void setMeter(LevelMeter meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Returns the size in bytes of one audio frame (all the channels of one sample).
+     *
+     * @return Frame size in bytes
+     */
+    public int getFrameSize() {
+        return format.getFrameSize();
+    }
+
+    /**
+     * Returns the number of audio bytes received and delivered so far.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Adds delivered bytes to the counter of the stream.
+     *
+     * @param bytes Number of bytes delivered
+     */
+    void addBytesReceived(int bytes) {
+        bytesReceived += bytes; // Single writer (ingest thread)
+    }
+
+    @Override
+    public String toString() {
+        return "stream " + id + " (" + remoteAddress + ")";
+    }
+}
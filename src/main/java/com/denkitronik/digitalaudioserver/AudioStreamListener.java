@@ -0,0 +1,35 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the events of the audio streams handled by the ingest server.
+ * All the methods are called from the ingest thread, so they must return quickly:
+ * a slow listener delays every connected device.
+ */
+public interface AudioStreamListener {
+
+    /**
+     * Called when a device connects to the server.
+     *
+     * @param stream The new audio stream
+     */
+    void streamOpened(AudioStream stream);
+
+    /**
+     * Called when audio data has been received. The buffer contains only whole audio frames
+     * between its position and its limit, and it is reused after the method returns,
+     * so the listener must copy the data it wants to keep.
+     *
+     * @param stream The audio stream that received the data
+     * @param data   Buffer with the received audio data
+     */
+    void audioReceived(AudioStream stream, ByteBuffer data);
+
+    /**
+     * Called when a device disconnects from the server.
+     *
+     * @param stream The closed audio stream
+     */
+    void streamClosed(AudioStream stream);
+}
@@ -0,0 +1,160 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.util.Arrays;
+
+/**
+ * Second order IIR filter (biquad) for equalization, with the coefficients of the "Audio EQ Cookbook" by Robert
+ * Bristow-Johnson. It runs in transposed direct form II, with the state of each channel kept between blocks.
+ */
+public class BiquadFilter implements DspStage {
+
+    /**
+     * Response of the filter.
+     */
+    public enum Type {
+        /**
+         * Removes the frequencies below the cutoff (rumble, wind, hum).
+         */
+        HIGH_PASS,
+        /**
+         * Removes the frequencies above the cutoff (hiss).
+         */
+        LOW_PASS,
+        /**
+         * Boosts or cuts a band around the center frequency.
+         */
+        PEAK,
+        /**
+         * Boosts or cuts the frequencies below the corner frequency.
+         */
+        LOW_SHELF,
+        /**
+         * Boosts or cuts the frequencies above the corner frequency.
+         */
+        HIGH_SHELF
+    }
+
+    /**
+     * Quality factor of a Butterworth response (no resonance).
+     */
+    public static final float BUTTERWORTH_Q = 0.7071f;
+
+    private final int channels;
+    private final float b0;
+    private final float b1;
+    private final float b2;
+    private final float a1;
+    private final float a2;
+    private final float[] z1;   // First state variable of each channel
+    private final float[] z2;   // Second state variable of each channel
+
+    /**
+     * Creates the filter.
+     *
+     * @param channels   Number of channels
+     * @param sampleRate Sample rate in hertz
+     * @param type       Response of the filter
+     * @param frequency  Cutoff, center or corner frequency in hertz
+     * @param q          Quality factor (the width of the band or the resonance at the cutoff)
+     * @param gainDb     Gain of the band or shelf in decibels (not used by the pass filters)
+     * @throws IllegalArgumentException If the frequency is not between 0 and half the sample rate or q is not positive
+     */
+    public BiquadFilter(int channels, float sampleRate, Type type, float frequency, float q, float gainDb) {
+        if (!(frequency > 0 && frequency < sampleRate / 2) || !(q > 0)) {
+            throw new IllegalArgumentException("Invalid filter: " + frequency + " Hz, q " + q);
+        }
+        this.channels = channels;
+        this.z1 = new float[channels];
+        this.z2 = new float[channels];
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a = Math.pow(10, gainDb / 40);
+        double root = 2 * Math.sqrt(a) * alpha;
+        double[] b = new double[3];
+        double[] d = new double[3];
+        switch (type) {
+            case HIGH_PASS:
+                b[0] = (1 + cos) / 2;
+                b[1] = -(1 + cos);
+                b[2] = (1 + cos) / 2;
+                d[0] = 1 + alpha;
+                d[1] = -2 * cos;
+                d[2] = 1 - alpha;
+                break;
+            case LOW_PASS:
+                b[0] = (1 - cos) / 2;
+                b[1] = 1 - cos;
+                b[2] = (1 - cos) / 2;
+                d[0] = 1 + alpha;
+                d[1] = -2 * cos;
+                d[2] = 1 - alpha;
+                break;
+            case PEAK:
+                b[0] = 1 + alpha * a;
+                b[1] = -2 * cos;
+                b[2] = 1 - alpha * a;
+                d[0] = 1 + alpha / a;
+                d[1] = -2 * cos;
+                d[2] = 1 - alpha / a;
+                break;
+            case LOW_SHELF:
+                b[0] = a * ((a + 1) - (a - 1) * cos + root);
+                b[1] = 2 * a * ((a - 1) - (a + 1) * cos);
+                b[2] = a * ((a + 1) - (a - 1) * cos - root);
+                d[0] = (a + 1) + (a - 1) * cos + root;
+                d[1] = -2 * ((a - 1) + (a + 1) * cos);
+                d[2] = (a + 1) + (a - 1) * cos - root;
+                break;
+            default: // HIGH_SHELF
+                b[0] = a * ((a + 1) + (a - 1) * cos + root);
+                b[1] = -2 * a * ((a - 1) + (a + 1) * cos);
+                b[2] = a * ((a + 1) + (a - 1) * cos - root);
+                d[0] = (a + 1) - (a - 1) * cos + root;
+                d[1] = 2 * ((a - 1) - (a + 1) * cos);
+                d[2] = (a + 1) - (a - 1) * cos - root;
+                break;
+        }
+        this.b0 = (float) (b[0] / d[0]); // Normalized so the first feedback coefficient is 1
+        this.b1 = (float) (b[1] / d[0]);
+        this.b2 = (float) (b[2] / d[0]);
+        this.a1 = (float) (d[1] / d[0]);
+        this.a2 = (float) (d[2] / d[0]);
+    }
+
+    @Override
+    public int process(float[] block, int frames) {
+        int end = frames * channels;
+        for (int c = 0; c < channels; c++) {
+            float s1 = z1[c];
+            float s2 = z2[c];
+            for (int i = c; i < end; i += channels) {
+                float x = block[i];
+                float y = b0 * x + s1;
+                s1 = b1 * x - a1 * y + s2;
+                s2 = b2 * x - a2 * y;
+                block[i] = y;
+            }
+            z1[c] = flushDenormal(s1);
+            z2[c] = flushDenormal(s2);
+        }
+        return frames;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(z1, 0f);
+        Arrays.fill(z2, 0f);
+    }
+
+    /**
+     * Replaces a tiny state value by zero. After a long silence the state decays to denormal numbers, which are very
+     * slow to compute with on most CPUs.
+     *
+     * @param value State value
+     * @return The value, or zero if it is below the audible range
+     */
+    private static float flushDenormal(float value) {
+        return Math.abs(value) < 1e-15f ? 0f : value;
+    }
+}
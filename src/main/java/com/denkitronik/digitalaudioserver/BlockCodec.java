@@ -0,0 +1,132 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.net.ProtocolException;
+
+/**
+ * Codec that compresses blocks of 16-bit signed little endian PCM audio, to send them over slow networks.
+ * Each block is encoded on its own, so it can be decoded without the previous ones. The codec of a stream is
+ * negotiated with the {@link StreamHeader}, and each block travels in one packet.
+ * Encoding and decoding work in bulk over arrays given by the caller, so they do not allocate memory.
+ * An instance can keep state between blocks and can only be used by one thread.
+ */
+public interface BlockCodec {
+
+    /**
+     * Raw PCM, without a codec.
+     */
+    int PCM = 0;
+
+    /**
+     * IMA ADPCM: 4 bits per sample (4:1), lossy.
+     */
+    int IMA_ADPCM = 1;
+
+    /**
+     * Difference between consecutive samples, zigzag and varint: lossless, smaller for quiet or low frequency audio.
+     */
+    int DELTA_VARINT = 2;
+
+    /**
+     * Returns the identifier of the codec, as it is sent in the stream header.
+     *
+     * @return Codec identifier
+     */
+    int getId();
+
+    /**
+     * Returns the largest size of an encoded block.
+     *
+     * @param pcmBytes Bytes of PCM audio in the block (whole frames)
+     * @return Maximum encoded size in bytes
+     */
+    int maxEncodedBytes(int pcmBytes);
+
+    /**
+     * Returns the largest size of the PCM audio of an encoded block.
+     *
+     * @param encodedBytes Size of the encoded block in bytes
+     * @return Maximum decoded size in bytes
+     */
+    int maxDecodedBytes(int encodedBytes);
+
+    /**
+     * Encodes one block of audio.
+     *
+     * @param pcm         16-bit signed little endian samples
+     * @param offset      Index of the first byte of the audio
+     * @param length      Bytes of audio (whole frames)
+     * @param block       Receives the encoded block
+     * @param blockOffset Index where the block is written
+     * @return Size of the encoded block in bytes
+     */
+    int encode(byte[] pcm, int offset, int length, byte[] block, int blockOffset);
+
+    /**
+     * Decodes one block of audio.
+     *
+     * @param block     Encoded block
+     * @param offset    Index of the first byte of the block
+     * @param length    Size of the block in bytes
+     * @param pcm       Receives the 16-bit signed little endian samples
+     * @param pcmOffset Index where the audio is written
+     * @return Bytes of decoded audio
+     * @throws ProtocolException If the block is not valid
+     */
+    int decode(byte[] block, int offset, int length, byte[] pcm, int pcmOffset) throws ProtocolException;
+
+    /**
+     * Creates a codec.
+     *
+     * @param id       Codec identifier ({@link #IMA_ADPCM} or {@link #DELTA_VARINT})
+     * @param channels Number of channels of the audio
+     * @return The codec
+     * @throws IllegalArgumentException If the identifier is unknown
+     */
+    static BlockCodec create(int id, int channels) {
+        switch (id) {
+            case IMA_ADPCM:
+                return new ImaAdpcmCodec(channels);
+            case DELTA_VARINT:
+                return new DeltaVarintCodec(channels);
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + id);
+        }
+    }
+
+    /**
+     * Returns the identifier of a codec from its name.
+     *
+     * @param name pcm, adpcm or varint
+     * @return Codec identifier
+     * @throws IllegalArgumentException If the name is unknown
+     */
+    static int forName(String name) {
+        switch (name) {
+            case "pcm":
+                return PCM;
+            case "adpcm":
+                return IMA_ADPCM;
+            case "varint":
+                return DELTA_VARINT;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + name + " (use pcm, adpcm or varint)");
+        }
+    }
+
+    /**
+     * Returns the name of a codec.
+     *
+     * @param id Codec identifier
+     * @return pcm, adpcm or varint
+     */
+    static String name(int id) {
+        switch (id) {
+            case IMA_ADPCM:
+                return "adpcm";
+            case DELTA_VARINT:
+                return "varint";
+            default:
+                return "pcm";
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.util.Arrays;
+
+/**
+ * Removes the DC offset of the audio with a one-pole high-pass filter: y[n] = x[n] - x[n-1] + r * y[n-1].
+ * Many cheap devices deliver their samples shifted from zero, which wastes headroom in the mix and clicks when the
+ * stream starts or stops. The cutoff is a few hertz, so the filter does not change the audible sound.
+ */
+public class DcBlocker implements DspStage {
+
+    /**
+     * Default cutoff frequency in hertz.
+     */
+    public static final float DEFAULT_CUTOFF = 10f;
+
+    private final int channels;
+    private final float r;              // Pole of the filter
+    private final float[] lastInput;    // x[n-1] of each channel
+    private final float[] lastOutput;   // y[n-1] of each channel
+
+    /**
+     * Creates the filter.
+     *
+     * @param channels   Number of channels
+     * @param sampleRate Sample rate in hertz
+     * @param cutoff     Cutoff frequency in hertz
+     */
+    public DcBlocker(int channels, float sampleRate, float cutoff) {
+        this.channels = channels;
+        this.r = (float) Math.exp(-2 * Math.PI * cutoff / sampleRate);
+        this.lastInput = new float[channels];
+        this.lastOutput = new float[channels];
+    }
+
+    @Override
+    public int process(float[] block, int frames) {
+        for (int c = 0; c < channels; c++) {
+            float x1 = lastInput[c];
+            float y1 = lastOutput[c];
+            int end = frames * channels;
+            for (int i = c; i < end; i += channels) {
+                float x = block[i];
+                y1 = x - x1 + r * y1;
+                x1 = x;
+                block[i] = y1;
+            }
+            lastInput[c] = x1;
+            lastOutput[c] = y1;
+        }
+        return frames;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(lastInput, 0f);
+        Arrays.fill(lastOutput, 0f);
+    }
+}
@@ -0,0 +1,99 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.net.ProtocolException;
+
+/**
+ * Lossless codec: each sample is sent as its difference from the previous sample of its channel (the first sample
+ * of a block from 0), zigzag encoded (0, -1, 1, -2, 2, ... become 0, 1, 2, 3, 4, ...) and written as a varint of
+ * 7 bits per byte. Small differences, common in quiet or low frequency audio, take one byte instead of two.
+ * The block has no header: its number of frames is the number of varints divided by the number of channels.
+ */
+public class DeltaVarintCodec implements BlockCodec {
+
+    private static final int MAX_VARINT_BYTES = 3; // A zigzag difference of two 16-bit samples has 17 bits
+
+    private final int channels;
+    private final int[] previous;   // Previous sample of each channel
+
+    /**
+     * Creates the codec.
+     *
+     * @param channels Number of channels of the audio
+     */
+    public DeltaVarintCodec(int channels) {
+        this.channels = channels;
+        this.previous = new int[channels];
+    }
+
+    @Override
+    public int getId() {
+        return DELTA_VARINT;
+    }
+
+    @Override
+    public int maxEncodedBytes(int pcmBytes) {
+        return pcmBytes / 2 * MAX_VARINT_BYTES;
+    }
+
+    @Override
+    public int maxDecodedBytes(int encodedBytes) {
+        return encodedBytes * 2;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int offset, int length, byte[] block, int blockOffset) {
+        int end = offset + length / (2 * channels) * (2 * channels);
+        int out = blockOffset;
+        for (int channel = 0; channel < channels; channel++) {
+            previous[channel] = 0;
+        }
+        for (int in = offset; in < end; ) {
+            for (int channel = 0; channel < channels; channel++, in += 2) {
+                int sample = (short) ((pcm[in] & 0xFF) | (pcm[in + 1] << 8));
+                int delta = sample - previous[channel];
+                previous[channel] = sample;
+                int value = (delta << 1) ^ (delta >> 31); // Zigzag
+                while (value >= 0x80) {
+                    block[out++] = (byte) (value | 0x80);
+                    value >>>= 7;
+                }
+                block[out++] = (byte) value;
+            }
+        }
+        return out - blockOffset;
+    }
+
+    @Override
+    public int decode(byte[] block, int offset, int length, byte[] pcm, int pcmOffset) throws ProtocolException {
+        int end = offset + length;
+        int out = pcmOffset;
+        for (int channel = 0; channel < channels; channel++) {
+            previous[channel] = 0;
+        }
+        int channel = 0;
+        for (int in = offset; in < end; ) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (in == end || shift == 7 * MAX_VARINT_BYTES) {
+                    throw new ProtocolException("Invalid varint in block");
+                }
+                b = block[in++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0); // The high bit is set in all the bytes but the last one
+            int sample = previous[channel] + ((value >>> 1) ^ -(value & 1));
+            previous[channel] = sample;
+            pcm[out++] = (byte) sample;
+            pcm[out++] = (byte) (sample >> 8);
+            if (++channel == channels) {
+                channel = 0;
+            }
+        }
+        if (channel != 0) {
+            throw new ProtocolException("The block does not have whole frames");
+        }
+        return out - pcmOffset;
+    }
+}
@@ -0,0 +1,292 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of the application. It reads the command line and starts the server (with or without the waveform
+ * window), the device simulator or the load test.
+ * This class does not reference Swing, AWT or JFreeChart directly, so in headless mode those classes are never loaded.
+ * Usage:
+ * - server [port] [--headless] [--sink=soundcard|null|stdout|wav:FILE] [--record=DIR] [--metrics=PORT] [--udp]
+ *   [--relay=PORT] [--latency=MS] [--line-buffer=MS] [--dsp=CHAIN] [--levels=PORT] [--skip-silence]
+ * - listen [ip] [relayPort] [mix|streamId] [--sink=soundcard|null|stdout|wav:FILE]
+ * - client [ip] [port] [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]
+ * - client [ip] [port] [wavFile] [--codec=pcm|adpcm|varint]
+ * - replay [ip] [port] [recordingDir] [fromSeconds] [toSeconds]
+ * - loadgen [ip] [port] [connections] [seconds] [--fast] [--timestamps] [--codec=pcm|adpcm|varint] [--udp]
+ *   [--loss=FRACTION] [--reorder=FRACTION]
+ * - loadgen --local [connections] [seconds] [options] (loads an ingest server started in the same process)
+ * With --udp the server also receives streams over UDP on the same port number, and the client sends the sin wave
+ * over UDP (the wav file is always sent over TCP, so --udp, --loss and --reorder are rejected with a wav file).
+ * With --dsp every stream is processed by a DSP chain before it is mixed, for example
+ * --dsp=dcblock,highpass:80,gate:-45,limit:-1 (see {@link DspChain}). With --levels the level of every stream is
+ * published as JSON lines on a local port, and with --skip-silence the silent audio is not recorded or drawn.
+ */
+public final class DigitalAudioServer {
+
+    private static final int SERVER_PORT = 12345;
+    private static String ip = "localhost";
+    private static int port = SERVER_PORT;
+    private static boolean headless = false;
+    private static String sinkName = "soundcard";
+    private static Path recordingDirectory = null;
+    private static int metricsPort = -1;
+    private static int relayPort = -1;
+    private static int levelPort = -1;
+    private static boolean skipSilence = false;
+    private static int latencyMillis = SoundCardSink.DEFAULT_LATENCY_MILLIS;
+    private static int lineBufferMillis = 0;
+    private static String dsp = "";
+    private static int codec = BlockCodec.PCM;
+    private static boolean udp = false;
+    private static double lossRate = 0;
+    private static double reorderRate = 0;
+
+    private DigitalAudioServer() {
+    }
+
+    /**
+     * Reads the command line and starts the selected mode.
+     *
+     * @param commandLine Command line arguments
+     */
+    public static void main(String[] commandLine) {
+        AudioDeviceSimulator audioDeviceSimulator;
+        String option;
+        if (commandLine.length > 0 && commandLine[0].equals("loadgen")) { // Load on a server: loadgen [ip] [port] [connections] [seconds] [--fast] [--local]
+            LoadGenerator.main(Arrays.copyOfRange(commandLine, 1, commandLine.length));
+            return;
+        }
+        String[] args = readOptions(commandLine);
+        if (args.length >= 1 && args[0].equals("listen")) { // Listener of a relay: listen [ip] [port] [mix|streamId]
+            listen(args.length > 1 ? args[1] : ip, args.length > 2 ? Integer.parseInt(args[2]) : SERVER_PORT + 1,
+                    args.length > 3 ? args[3] : "mix");
+            return;
+        }
+        if (args.length >= 4 && args[0].equals("replay")) { // Replay of a recording: replay ip port dir [from] [to]
+            double from = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+            double to = args.length > 5 ? Double.parseDouble(args[5]) : Double.POSITIVE_INFINITY;
+            System.out.println("Starting replay mode. Connecting to server " + args[1] + " on port: " + args[2]);
+            new AudioDeviceSimulator().startReplay(args[1], Integer.parseInt(args[2]), args[3], from, to);
+            return;
+        }
+        switch (args.length) {
+            case 0:  // Default mode (server)
+                System.out.println("Starting server mode default mode on port: " + SERVER_PORT);
+                startServer();
+                break;
+            case 1: // Client or server mode (server IP and port are not specified)
+                option = args[0];
+                if (option.equals("client")) {
+                    System.out.println("Starting client default mode. Connecting to server localhost on port: " + SERVER_PORT);
+                    audioDeviceSimulator = newSimulator();
+                    audioDeviceSimulator.startClient(ip, port);
+                } else if (option.equals("server")) {
+                    System.out.println("Starting server default mode on port: " + SERVER_PORT);
+                    startServer();
+                }
+                break;
+
+            case 2: // Client with ip server and port specified or server with port specified
+                option = args[0];
+                if (option.equals("client")) {
+                    System.out.println("Number of arguments is not valid for client mode.");
+                    System.out.println("Starting client default mode. Connecting to server localhost on port: " + SERVER_PORT);
+                    audioDeviceSimulator = newSimulator();
+                    ip = "localhost";
+                    port = SERVER_PORT;
+                    audioDeviceSimulator.startClient(ip, port); // Default server IP and port
+                } else if (option.equals("server")) {
+                    System.out.println("Starting server default mode on port: " + args[1]);
+                    port = Integer.parseInt(args[1]);
+                    startServer();
+                }
+                break;
+
+            case 3: // Client with ip server and port specified or server with port specified
+                option = args[0];
+                if (option.equals("client")) { // Client mode (server IP and port are specified)
+                    System.out.println("Starting client mode. Connecting to server " + args[1] + " on port: " + args[2]);
+                    audioDeviceSimulator = newSimulator();
+                    audioDeviceSimulator.startClient(args[1], Integer.parseInt(args[2]));
+                } else if (option.equals("server")) {
+                    System.out.println("Number of arguments is not valid for server mode. Starting server default mode on port: " + SERVER_PORT);
+                    startServer();
+                }
+                break;
+            case 4: // Client mode (server IP and port are specified)
+                ip = args[1];
+                port = Integer.parseInt(args[2]);
+                String wavFile = args[3];
+                if (udp || lossRate != 0 || reorderRate != 0) {
+                    System.out.println("The wav file is always sent over TCP: --udp, --loss and --reorder are not valid with a wav file");
+                    printUsage();
+                    System.exit(1);
+                }
+                System.out.println("Starting client mode. Connecting to server " + ip + " on port: " + port + " with audio file: " + wavFile);
+                audioDeviceSimulator = new AudioDeviceSimulator(0, false, codec);
+                audioDeviceSimulator.startClient(ip, port, wavFile);
+                break;
+            default: // Invalid number of arguments
+                printUsage();
+                System.exit(0);
+        }
+    }
+
+    /**
+     * Creates the simulated device of the sin wave client, with the codec and UDP options of the command line.
+     *
+     * @return The simulated device
+     */
+    private static AudioDeviceSimulator newSimulator() {
+        AudioDeviceSimulator simulator = new AudioDeviceSimulator(0, false, codec);
+        if (udp) {
+            simulator.setUdp(lossRate, reorderRate);
+        }
+        return simulator;
+    }
+
+    /**
+     * Removes the options (arguments that start with --) from the command line and applies them.
+     *
+     * @param commandLine Command line arguments
+     * @return The arguments that are not options
+     */
+    private static String[] readOptions(String[] commandLine) {
+        List<String> args = new ArrayList<>();
+        for (String arg : commandLine) {
+            if (arg.equals("--headless")) {
+                headless = true;
+            } else if (arg.startsWith("--sink=")) {
+                sinkName = arg.substring("--sink=".length());
+            } else if (arg.startsWith("--latency=")) {
+                latencyMillis = Integer.parseInt(arg.substring("--latency=".length()));
+            } else if (arg.startsWith("--line-buffer=")) {
+                lineBufferMillis = Integer.parseInt(arg.substring("--line-buffer=".length()));
+            } else if (arg.startsWith("--dsp=")) {
+                dsp = arg.substring("--dsp=".length());
+            } else if (arg.startsWith("--levels=")) {
+                levelPort = Integer.parseInt(arg.substring("--levels=".length()));
+            } else if (arg.equals("--skip-silence")) {
+                skipSilence = true;
+            } else if (arg.startsWith("--relay=")) {
+                relayPort = Integer.parseInt(arg.substring("--relay=".length()));
+            } else if (arg.startsWith("--metrics=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics=".length()));
+            } else if (arg.startsWith("--codec=")) {
+                try {
+                    codec = BlockCodec.forName(arg.substring("--codec=".length()));
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    System.exit(1);
+                }
+            } else if (arg.equals("--udp")) {
+                udp = true;
+            } else if (arg.startsWith("--loss=")) {
+                lossRate = Double.parseDouble(arg.substring("--loss=".length()));
+            } else if (arg.startsWith("--reorder=")) {
+                reorderRate = Double.parseDouble(arg.substring("--reorder=".length()));
+            } else if (arg.startsWith("--record=")) {
+                recordingDirectory = Paths.get(arg.substring("--record=".length()));
+            } else if (arg.startsWith("--")) {
+                System.out.println("Unknown option: " + arg);
+                printUsage();
+                System.exit(1);
+            } else {
+                args.add(arg);
+            }
+        }
+        if (sinkName.equals("stdout")) {
+            System.setOut(System.err); // The standard output carries the audio, so the messages go to the standard error
+        }
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * Starts the server: headless, or with the waveform window as one more consumer of the mix.
+     * The sink is closed when the application exits, so a recording always gets its final header.
+     */
+    private static void startServer() {
+        AudioSink sink;
+        try {
+            sink = createSink();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        AudioServer server = new AudioServer(port, sink, recordingDirectory, udp);
+        try {
+            server.setDefaultDsp(dsp);
+            server.setSkipSilence(skipSilence);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        try {
+            server.start();
+            if (metricsPort >= 0) {
+                server.startMetricsServer(metricsPort);
+            }
+            if (relayPort >= 0) {
+                server.startRelayServer(relayPort);
+            }
+            if (levelPort >= 0) {
+                server.startLevelServer(levelPort);
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "audio-shutdown"));
+        if (headless) {
+            System.out.println("Running headless, the mix is written to the " + sinkName + " sink. Press Ctrl+C to stop.");
+        } else {
+            AudioServerWithGraph.show(server);
+        }
+    }
+
+    /**
+     * Creates the sink selected with --sink; the sound card uses the latency and line buffer of the command line.
+     *
+     * @return The sink
+     * @throws IllegalArgumentException If the sink name is not known
+     */
+    private static AudioSink createSink() {
+        return sinkName.equals("soundcard") ? new SoundCardSink(latencyMillis, lineBufferMillis) : AudioSink.forName(sinkName);
+    }
+
+    /**
+     * Receives the mix or a stream from the relay of a server and writes it to the selected sink.
+     *
+     * @param host   Host name or IP address of the server
+     * @param port   Relay port of the server
+     * @param source "mix", or the identifier of a stream
+     */
+    private static void listen(String host, int port, String source) {
+        try {
+            new RelayListener(host, port, source).listen(createSink());
+        } catch (IllegalArgumentException | IOException e) {
+            System.out.println("Relay listener finished: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints how to use the application.
+     */
+    private static void printUsage() {
+        System.out.println("Usage: java -jar AudioServerWithGraph.jar [client|server] [ip] [port]");
+        System.out.println("       java -jar AudioServerWithGraph.jar client [ip] [port] [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]");
+        System.out.println("       java -jar AudioServerWithGraph.jar client [ip] [port] [wavFile] [--codec=pcm|adpcm|varint]");
+        System.out.println("       java -jar AudioServerWithGraph.jar server [port] [--headless] [--sink=soundcard|null|stdout|wav:FILE] [--record=DIR] [--metrics=PORT] [--udp] [--relay=PORT] [--latency=MS] [--line-buffer=MS] [--dsp=CHAIN] [--levels=PORT] [--skip-silence]");
+        System.out.println("       java -jar AudioServerWithGraph.jar listen [ip] [relayPort] [mix|streamId] [--sink=soundcard|null|stdout|wav:FILE]");
+        System.out.println("       java -jar AudioServerWithGraph.jar replay [ip] [port] [recordingDir] [fromSeconds] [toSeconds]");
+        System.out.println("       java -jar AudioServerWithGraph.jar loadgen [ip] [port] [connections] [seconds] [--fast] [--timestamps] [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]");
+        System.out.println("       java -jar AudioServerWithGraph.jar loadgen --local [connections] [seconds] [--fast] [--timestamps] [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]");
+    }
+}
@@ -0,0 +1,194 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chain of {@link DspStage}s that processes the audio of one stream, block by block and in place, between the
+ * decoding and the mix ({@link AudioMixer.Input#setDsp(DspChain)}). A chain is immutable and is built for the format
+ * of its stream; to change the processing of a stream at run time, a new chain is built and swapped in, and the
+ * mixer starts using it at its next block.
+ * A chain is usually built from a text description, a comma separated list of stages:
+ * - gain:DB                      Gain in decibels
+ * - dcblock[:HZ]                 DC offset removal (one-pole high-pass, 10 Hz by default)
+ * - highpass:HZ[:Q], lowpass:HZ[:Q]
+ * - peak:HZ:Q:DB, lowshelf:HZ:DB, highshelf:HZ:DB   Biquad equalizer
+ * - gate[:DB]                    Noise gate (threshold -50 dB by default)
+ * - limit[:DB]                   Peak limiter (ceiling -1 dB by default)
+ * - resample:HZ                  Polyphase sample rate converter (the stages after it run at the new rate)
+ * For example "dcblock,highpass:80,gate:-45,limit:-1".
+ */
+public class DspChain {
+
+    private final String description;
+    private final DspStage[] stages;
+    private final float outputSampleRate;
+
+    /**
+     * Creates a chain of stages.
+     *
+     * @param description      Text description of the chain
+     * @param outputSampleRate Sample rate of the audio after the last stage
+     * @param stages           Stages, in processing order
+     */
+    private DspChain(String description, float outputSampleRate, DspStage[] stages) {
+        this.description = description;
+        this.outputSampleRate = outputSampleRate;
+        this.stages = stages;
+    }
+
+    /**
+     * Builds a chain from its text description.
+     *
+     * @param description Comma separated list of stages (see the class description); empty for no processing
+     * @param format      Format of the stream
+     * @return The chain
+     * @throws IllegalArgumentException If the description is not valid
+     */
+    public static DspChain parse(String description, AudioFormat format) {
+        int channels = format.getChannels();
+        float rate = format.getSampleRate();
+        List<DspStage> stages = new ArrayList<>();
+        for (String item : description.split(",")) {
+            String[] parts = item.trim().toLowerCase(Locale.ROOT).split(":");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            try {
+                DspStage stage = createStage(parts, channels, rate);
+                rate = stage.getOutputSampleRate(rate);
+                stages.add(stage);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid DSP stage: " + item.trim());
+            }
+        }
+        return new DspChain(description.trim(), rate, stages.toArray(new DspStage[0]));
+    }
+
+    /**
+     * Creates one stage from its name and arguments.
+     *
+     * @param parts    Name of the stage followed by its arguments
+     * @param channels Number of channels
+     * @param rate     Sample rate of the audio that enters the stage
+     * @return The stage
+     * @throws IllegalArgumentException If the stage is not known or its arguments are not valid
+     */
+    private static DspStage createStage(String[] parts, int channels, float rate) {
+        switch (parts[0]) {
+            case "gain":
+                return new GainStage(channels, Float.parseFloat(parts[1]));
+            case "dcblock":
+                return new DcBlocker(channels, rate, argument(parts, 1, DcBlocker.DEFAULT_CUTOFF));
+            case "highpass":
+                return new BiquadFilter(channels, rate, BiquadFilter.Type.HIGH_PASS, Float.parseFloat(parts[1]),
+                        argument(parts, 2, BiquadFilter.BUTTERWORTH_Q), 0);
+            case "lowpass":
+                return new BiquadFilter(channels, rate, BiquadFilter.Type.LOW_PASS, Float.parseFloat(parts[1]),
+                        argument(parts, 2, BiquadFilter.BUTTERWORTH_Q), 0);
+            case "peak":
+                return new BiquadFilter(channels, rate, BiquadFilter.Type.PEAK, Float.parseFloat(parts[1]),
+                        Float.parseFloat(parts[2]), Float.parseFloat(parts[3]));
+            case "lowshelf":
+                return new BiquadFilter(channels, rate, BiquadFilter.Type.LOW_SHELF, Float.parseFloat(parts[1]),
+                        BiquadFilter.BUTTERWORTH_Q, Float.parseFloat(parts[2]));
+            case "highshelf":
+                return new BiquadFilter(channels, rate, BiquadFilter.Type.HIGH_SHELF, Float.parseFloat(parts[1]),
+                        BiquadFilter.BUTTERWORTH_Q, Float.parseFloat(parts[2]));
+            case "gate":
+                return new NoiseGate(channels, rate, argument(parts, 1, NoiseGate.DEFAULT_THRESHOLD_DB));
+            case "limit":
+                return new Limiter(channels, rate, argument(parts, 1, Limiter.DEFAULT_CEILING_DB));
+            case "resample":
+                return new PolyphaseResampler(channels, Math.round(rate), Integer.parseInt(parts[1]));
+            default:
+                throw new IllegalArgumentException("Unknown DSP stage: " + parts[0]
+                        + " (use gain, dcblock, highpass, lowpass, peak, lowshelf, highshelf, gate, limit or resample)");
+        }
+    }
+
+    /**
+     * Returns an optional numeric argument of a stage.
+     *
+     * @param parts        Name of the stage followed by its arguments
+     * @param index        Index of the argument
+     * @param defaultValue Value used if the argument is missing
+     * @return Value of the argument
+     */
+    private static float argument(String[] parts, int index, float defaultValue) {
+        return parts.length > index ? Float.parseFloat(parts[index]) : defaultValue;
+    }
+
+    /**
+     * Converts decibels to a linear gain.
+     *
+     * @param db Level in decibels
+     * @return Linear gain
+     */
+    static float dbToLinear(float db) {
+        return (float) Math.pow(10, db / 20);
+    }
+
+    /**
+     * Processes a block through all the stages. Only one thread can use a chain.
+     *
+     * @param block  Interleaved samples; its capacity must be at least {@link #getMaxOutputFrames(int)} frames
+     * @param frames Number of frames in the block
+     * @return Number of frames in the block after the chain
+     */
+    public int process(float[] block, int frames) {
+        for (DspStage stage : stages) {
+            frames = stage.process(block, frames);
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the largest number of frames that the chain can output for a block.
+     *
+     * @param frames Number of input frames
+     * @return Largest number of frames, including the frames in the middle of the chain
+     */
+    public int getMaxOutputFrames(int frames) {
+        int max = frames;
+        for (DspStage stage : stages) {
+            frames = stage.getMaxOutputFrames(frames);
+            max = Math.max(max, frames);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the sample rate of the audio after the chain.
+     *
+     * @return Sample rate in hertz
+     */
+    public float getOutputSampleRate() {
+        return outputSampleRate;
+    }
+
+    /**
+     * Returns the stages of the chain.
+     *
+     * @return Stages, in processing order
+     */
+    public DspStage[] getStages() {
+        return stages.clone();
+    }
+
+    /**
+     * Forgets the state of all the stages.
+     */
+    public void reset() {
+        for (DspStage stage : stages) {
+            stage.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
@@ -0,0 +1,87 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the DSP chains of an {@link AudioServer} in JMX, where they can be read and changed at run time.
+ */
+public class DspControl implements DspControlMBean {
+
+    private final AudioServer server;
+    private ObjectName objectName;
+
+    /**
+     * Creates the control of a server.
+     *
+     * @param server Audio server
+     */
+    public DspControl(AudioServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers the control in the platform MBean server, named after the port of the server.
+     *
+     * @param port TCP port of the server
+     */
+    public synchronized void register(int port) {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.denkitronik.digitalaudioserver:type=DspControl,port=" + port);
+            mbeanServer.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.out.println("The DSP control could not be published in JMX: " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Removes the control from the platform MBean server.
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // Already removed
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getDefaultChain() {
+        return server.getDefaultDsp();
+    }
+
+    @Override
+    public void setDefaultChain(String description) {
+        server.setDefaultDsp(description);
+    }
+
+    @Override
+    public String[] getStreamChains() {
+        List<String> chains = new ArrayList<>();
+        for (AudioStream stream : server.getStreams()) {
+            String chain = server.getStreamDsp(stream.getId());
+            if (chain != null) {
+                chains.add(stream.getId() + ": " + (chain.isEmpty() ? "none" : chain));
+            }
+        }
+        return chains.toArray(new String[0]);
+    }
+
+    @Override
+    public String setStreamChain(int streamId, String description) {
+        try {
+            return server.setStreamDsp(streamId, description) ? "OK" : "Unknown stream: " + streamId;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+}
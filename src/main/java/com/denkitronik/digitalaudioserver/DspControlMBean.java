@@ -0,0 +1,38 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * JMX control of the DSP chains of an {@link AudioServer}, so the processing of a stream can be changed from a JMX
+ * console while it plays. The chains are text descriptions, see {@link DspChain}.
+ */
+public interface DspControlMBean {
+
+    /**
+     * Returns the DSP chain of the streams that connect from now on.
+     *
+     * @return Text description of the chain, empty for no processing
+     */
+    String getDefaultChain();
+
+    /**
+     * Sets the DSP chain of the streams that connect from now on.
+     *
+     * @param description Text description of the chain, empty for no processing
+     */
+    void setDefaultChain(String description);
+
+    /**
+     * Returns the DSP chain of every connected stream.
+     *
+     * @return One "streamId: chain" line per stream
+     */
+    String[] getStreamChains();
+
+    /**
+     * Replaces the DSP chain of a stream.
+     *
+     * @param streamId    Identifier of the stream
+     * @param description Text description of the chain, empty for no processing
+     * @return Result of the change
+     */
+    String setStreamChain(int streamId, String description);
+}
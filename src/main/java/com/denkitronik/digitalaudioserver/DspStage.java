@@ -0,0 +1,44 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * One stage of a {@link DspChain}: a filter that processes blocks of interleaved float samples (-1 to 1) in place.
+ * A stage is created for a number of channels and a sample rate and keeps its state (filter memory, envelopes)
+ * from one block to the next, so it belongs to one stream and is used by one thread. It must not allocate memory
+ * while it processes blocks of the same size.
+ */
+public interface DspStage {
+
+    /**
+     * Processes a block in place.
+     *
+     * @param block  Interleaved samples; its capacity must be at least {@link #getMaxOutputFrames(int)} frames
+     * @param frames Number of frames in the block
+     * @return Number of frames in the block after the stage (only a sample rate converter changes it)
+     */
+    int process(float[] block, int frames);
+
+    /**
+     * Returns the largest number of frames that the stage can output for a block.
+     *
+     * @param frames Number of input frames
+     * @return Largest number of output frames
+     */
+    default int getMaxOutputFrames(int frames) {
+        return frames;
+    }
+
+    /**
+     * Returns the sample rate of the audio after the stage.
+     *
+     * @param sampleRate Sample rate of the input
+     * @return Sample rate of the output
+     */
+    default float getOutputSampleRate(float sampleRate) {
+        return sampleRate;
+    }
+
+    /**
+     * Forgets the state of the stage, as if the audio started again.
+     */
+    void reset();
+}
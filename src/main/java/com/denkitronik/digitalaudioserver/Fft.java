@@ -0,0 +1,104 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * Fast Fourier transform of real signals whose size is a power of two.
+ * The real signal of size N is packed in a complex signal of size N/2 (even samples in the real part, odd samples in
+ * the imaginary part), transformed with an iterative radix-2 FFT and split into the N/2+1 bins of the real spectrum.
+ * The twiddle factors, the bit reversal table and the work arrays are allocated once, so a transform does not
+ * allocate memory. An instance can only be used by one thread at a time.
+ */
+public class Fft {
+
+    private final int size;
+    private final int half;
+    private final double[] cos;         // cos(2 pi k / size), k = 0..size/2
+    private final double[] sin;         // -sin(2 pi k / size): twiddle factors of the forward transform
+    private final int[] reverse;        // Bit reversal permutation of the half-size transform
+    private final double[] re;          // Work arrays of the half-size complex transform
+    private final double[] im;
+
+    /**
+     * Creates the transform and its tables.
+     *
+     * @param size Number of real samples of each transform (a power of two, at least 4)
+     */
+    public Fft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("The FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        this.half = size / 2;
+        cos = new double[half + 1];
+        sin = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            double angle = 2 * Math.PI * k / size;
+            cos[k] = Math.cos(angle);
+            sin[k] = -Math.sin(angle);
+        }
+        reverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            reverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        re = new double[half];
+        im = new double[half];
+    }
+
+    /**
+     * Returns the number of real samples of each transform.
+     *
+     * @return FFT size
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Computes the squared magnitude of each bin of the spectrum of a real signal.
+     *
+     * @param input Real signal (getSize() values, already windowed)
+     * @param power Receives |X[k]|^2 for the bins k = 0..getSize()/2
+     */
+    public void powerSpectrum(double[] input, double[] power) {
+        for (int i = 0; i < half; i++) {
+            int j = reverse[i];
+            re[j] = input[2 * i];       // Pack the real signal in a half-size complex signal
+            im[j] = input[2 * i + 1];
+        }
+        transform();
+        for (int k = 0; k <= half; k++) {
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            // Spectra of the even (e) and odd (o) samples, from Z[k] and the conjugate of Z[N/2-k]
+            double er = (re[a] + re[b]) / 2;
+            double ei = (im[a] - im[b]) / 2;
+            double or = (im[a] + im[b]) / 2;
+            double oi = (re[b] - re[a]) / 2;
+            double xr = er + or * cos[k] - oi * sin[k];
+            double xi = ei + or * sin[k] + oi * cos[k];
+            power[k] = xr * xr + xi * xi;
+        }
+    }
+
+    /**
+     * Transforms the work arrays in place. They must already be in bit reversed order.
+     */
+    private void transform() {
+        for (int length = 2; length <= half; length <<= 1) {
+            int middle = length >> 1;
+            int step = size / length; // Twiddle factor of the stage: exp(-2 pi i j / length)
+            for (int start = 0; start < half; start += length) {
+                for (int j = 0, t = 0; j < middle; j++, t += step) {
+                    int a = start + j;
+                    int b = a + middle;
+                    double tr = re[b] * cos[t] - im[b] * sin[t];
+                    double ti = re[b] * sin[t] + im[b] * cos[t];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
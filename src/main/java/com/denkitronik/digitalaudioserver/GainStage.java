@@ -0,0 +1,54 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * Multiplies the audio by a gain that can be changed at any time from another thread.
+ */
+public class GainStage implements DspStage {
+
+    private final int channels;
+    private volatile float gain;
+
+    /**
+     * Creates the stage.
+     *
+     * @param channels Number of channels
+     * @param gainDb   Gain in decibels (0 keeps the level)
+     */
+    public GainStage(int channels, float gainDb) {
+        this.channels = channels;
+        setGainDb(gainDb);
+    }
+
+    /**
+     * Changes the gain. The new gain is used from the next block.
+     *
+     * @param gainDb Gain in decibels
+     */
+    public void setGainDb(float gainDb) {
+        this.gain = DspChain.dbToLinear(gainDb);
+    }
+
+    /**
+     * Returns the gain.
+     *
+     * @return Linear gain
+     */
+    public float getGain() {
+        return gain;
+    }
+
+    @Override
+    public int process(float[] block, int frames) {
+        float g = gain;
+        int samples = frames * channels;
+        for (int i = 0; i < samples; i++) {
+            block[i] *= g;
+        }
+        return frames;
+    }
+
+    @Override
+    public void reset() {
+        // The gain has no state
+    }
+}
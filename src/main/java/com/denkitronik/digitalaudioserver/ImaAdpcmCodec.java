@@ -0,0 +1,192 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.net.ProtocolException;
+
+/**
+ * IMA ADPCM codec: each 16-bit sample is sent as a 4-bit difference from a prediction, a 4:1 compression.
+ * A block starts with its number of frames and, for each channel, its first sample and the step index of the
+ * decoder, so it can be decoded on its own:
+ * <pre>
+ *  0        frames       2 bytes  number of frames of the block (little endian)
+ *  2 + 4c   sample       2 bytes  first sample of channel c (little endian)
+ *  4 + 4c   step index   1 byte   step index of channel c (0 to 88)
+ *  5 + 4c   reserved     1 byte   0
+ *  2 + 4C   nibbles               4 bits per sample for the next frames, interleaved, low nibble first
+ * </pre>
+ * The encoder keeps the step index of each channel from one block to the next, so the quality does not drop at the
+ * start of a block.
+ */
+public class ImaAdpcmCodec implements BlockCodec {
+
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80, 88, 97,
+            107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724,
+            796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026,
+            4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500,
+            20350, 22385, 24623, 27086, 29794, 32767};
+    private static final int MAX_INDEX = STEP_TABLE.length - 1;
+    private static final int MAX_FRAMES = 0xFFFF;
+
+    private final int channels;
+    private final int headerBytes;
+    private final int[] predictors;     // Predicted sample of each channel
+    private final int[] indexes;        // Step index of each channel
+
+    /**
+     * Creates the codec.
+     *
+     * @param channels Number of channels of the audio
+     */
+    public ImaAdpcmCodec(int channels) {
+        this.channels = channels;
+        this.headerBytes = 2 + 4 * channels;
+        this.predictors = new int[channels];
+        this.indexes = new int[channels];
+    }
+
+    @Override
+    public int getId() {
+        return IMA_ADPCM;
+    }
+
+    @Override
+    public int maxEncodedBytes(int pcmBytes) {
+        return headerBytes + (pcmBytes / 2 + 1) / 2;
+    }
+
+    @Override
+    public int maxDecodedBytes(int encodedBytes) {
+        return (encodedBytes * 2 + channels) * 2;
+    }
+
+    @Override
+    public int encode(byte[] pcm, int offset, int length, byte[] block, int blockOffset) {
+        int frames = Math.min(length / (2 * channels), MAX_FRAMES);
+        int out = blockOffset;
+        block[out++] = (byte) frames;
+        block[out++] = (byte) (frames >> 8);
+        for (int channel = 0, in = offset; channel < channels; channel++, in += 2) {
+            int sample = frames > 0 ? (short) ((pcm[in] & 0xFF) | (pcm[in + 1] << 8)) : 0;
+            predictors[channel] = sample; // The first sample is sent as it is
+            block[out++] = (byte) sample;
+            block[out++] = (byte) (sample >> 8);
+            block[out++] = (byte) indexes[channel];
+            block[out++] = 0;
+        }
+        int in = offset + 2 * channels;
+        int end = offset + 2 * channels * frames;
+        boolean low = true;
+        while (in < end) {
+            for (int channel = 0; channel < channels; channel++, in += 2) {
+                int nibble = encodeSample(channel, (short) ((pcm[in] & 0xFF) | (pcm[in + 1] << 8)));
+                if (low) {
+                    block[out] = (byte) nibble;
+                } else {
+                    block[out++] |= (byte) (nibble << 4);
+                }
+                low = !low;
+            }
+        }
+        if (!low) {
+            out++; // Last byte with only its low nibble
+        }
+        return out - blockOffset;
+    }
+
+    @Override
+    public int decode(byte[] block, int offset, int length, byte[] pcm, int pcmOffset) throws ProtocolException {
+        if (length < headerBytes) {
+            throw new ProtocolException("ADPCM block too short: " + length + " bytes");
+        }
+        int frames = (block[offset] & 0xFF) | (block[offset + 1] & 0xFF) << 8;
+        int samples = frames * channels;
+        int expected = headerBytes + (frames == 0 ? 0 : (samples - channels + 1) / 2);
+        if (length != expected) {
+            throw new ProtocolException("ADPCM block of " + length + " bytes for " + frames + " frames");
+        }
+        int out = pcmOffset;
+        for (int channel = 0, in = offset + 2; channel < channels; channel++, in += 4) {
+            int sample = (short) ((block[in] & 0xFF) | (block[in + 1] << 8));
+            int index = block[in + 2] & 0xFF;
+            if (index > MAX_INDEX) {
+                throw new ProtocolException("Invalid ADPCM step index: " + index);
+            }
+            predictors[channel] = sample;
+            indexes[channel] = index;
+            if (frames > 0) {
+                pcm[out++] = (byte) sample;
+                pcm[out++] = (byte) (sample >> 8);
+            }
+        }
+        int in = offset + headerBytes;
+        boolean low = true;
+        for (int i = channels; i < samples; ) {
+            for (int channel = 0; channel < channels; channel++, i++) {
+                int nibble = low ? block[in] & 0x0F : (block[in++] >> 4) & 0x0F;
+                low = !low;
+                int sample = decodeSample(channel, nibble);
+                pcm[out++] = (byte) sample;
+                pcm[out++] = (byte) (sample >> 8);
+            }
+        }
+        return out - pcmOffset;
+    }
+
+    /**
+     * Encodes one sample and updates the predictor like the decoder will do.
+     *
+     * @param channel Channel of the sample
+     * @param sample  16-bit sample
+     * @return 4-bit code of the sample
+     */
+    private int encodeSample(int channel, int sample) {
+        int step = STEP_TABLE[indexes[channel]];
+        int difference = sample - predictors[channel];
+        int nibble = 0;
+        if (difference < 0) {
+            nibble = 8;
+            difference = -difference;
+        }
+        if (difference >= step) {
+            nibble |= 4;
+            difference -= step;
+        }
+        if (difference >= step >> 1) {
+            nibble |= 2;
+            difference -= step >> 1;
+        }
+        if (difference >= step >> 2) {
+            nibble |= 1;
+        }
+        decodeSample(channel, nibble); // The prediction must follow the decoded audio, not the original one
+        return nibble;
+    }
+
+    /**
+     * Decodes one 4-bit code and updates the predictor and the step index of the channel.
+     *
+     * @param channel Channel of the sample
+     * @param nibble  4-bit code
+     * @return Decoded 16-bit sample
+     */
+    private int decodeSample(int channel, int nibble) {
+        int index = indexes[channel];
+        int step = STEP_TABLE[index];
+        int difference = step >> 3;
+        if ((nibble & 4) != 0) {
+            difference += step;
+        }
+        if ((nibble & 2) != 0) {
+            difference += step >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            difference += step >> 2;
+        }
+        int predictor = predictors[channel] + ((nibble & 8) != 0 ? -difference : difference);
+        predictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+        predictors[channel] = predictor;
+        indexes[channel] = Math.max(0, Math.min(MAX_INDEX, index + INDEX_TABLE[nibble]));
+        return predictor;
+    }
+}
@@ -0,0 +1,316 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reorder buffer of the packets of a UDP stream, with packet-loss concealment.
+ * The packets are released in the order of their sequence numbers. When a packet is missing but later packets
+ * have arrived, the buffer waits for it for a short delay and then gives it up: its audio is replaced by the last
+ * packet, faded out, so the stream never stalls. Packets that arrive after they were given up are dropped, and so are
+ * the copies of packets that were already released (retransmissions or duplicates); only the first make the delay grow.
+ * The delay adapts to the network: it follows the interarrival jitter of the packets (estimated as in RFC 3550)
+ * and grows when packets arrive too late. The timing of the playback is left to the jitter buffer of the
+ * {@link AudioMixer}. Only the UDP ingest thread can use a jitter buffer.
+ */
+public class JitterBuffer {
+
+    private static final int CAPACITY = 32;                     // Packets kept while waiting for a missing one
+    private static final long MIN_DELAY_NANOS = 2_000_000L;     // Shortest wait for a missing packet
+    private static final long MAX_DELAY_NANOS = 80_000_000L;    // Longest wait for a missing packet
+    private static final int JITTER_FACTOR = 4;                 // Wait in multiples of the jitter
+    private static final int FADE_PACKETS = 4;                  // Concealed packets until the audio is silent
+    private static final byte NOT_DONE = 0;
+    private static final byte RELEASED = 1;
+    private static final byte GIVEN_UP = 2;
+
+    /**
+     * Result of adding a packet.
+     */
+    public enum Arrival {
+        /**
+         * The packet was added in order.
+         */
+        IN_ORDER,
+        /**
+         * The packet was added, but a packet with a higher sequence number arrived before it.
+         */
+        REORDERED,
+        /**
+         * The packet arrived after it was given up, and it was dropped.
+         */
+        LATE,
+        /**
+         * The packet had already arrived (it is waiting or it was released), and it was dropped.
+         */
+        DUPLICATE
+    }
+
+    private final PcmCodec codec;
+    private final int frameSize;
+    private final byte[][] packets = new byte[CAPACITY][];  // Audio of the waiting packets, by sequence number
+    private final ByteBuffer[] views = new ByteBuffer[CAPACITY]; // Buffers over the arrays of the packets
+    private final int[] lengths = new int[CAPACITY];
+    private final long[] arrivals = new long[CAPACITY];      // Time (System.nanoTime) when each packet arrived
+    private final boolean[] present = new boolean[CAPACITY];
+    private final int[] doneSequences = new int[CAPACITY]; // Last sequence number released or given up in each slot
+    private final byte[] doneStates = new byte[CAPACITY];  // NOT_DONE, RELEASED or GIVEN_UP
+    private int waiting;                    // Packets in the buffer
+    private boolean started;
+    private int next;                       // Sequence number of the next packet to release
+    private int highest;                    // Highest sequence number received
+
+    // Adaptive delay
+    private double jitterNanos;             // Interarrival jitter (RFC 3550)
+    private long lastTransitNanos;
+    private long extraDelayNanos;           // Added when packets arrive too late, decays with time
+
+    // Released audio and concealment
+    private byte[] concealment = new byte[0];
+    private ByteBuffer concealmentBuffer = ByteBuffer.wrap(concealment);
+    private byte[] last = new byte[0];      // Audio of the last released packet
+    private int lastLength;
+    private float[] samples = new float[0];
+    private int losses;                     // Consecutive concealed packets
+    private boolean concealed;
+
+    /**
+     * Creates the jitter buffer of a stream.
+     *
+     * @param format Audio format of the packets (PCM)
+     */
+    public JitterBuffer(AudioFormat format) {
+        this.codec = new PcmCodec(format);
+        this.frameSize = format.getFrameSize();
+    }
+
+    /**
+     * Adds a received packet.
+     *
+     * @param sequence   Sequence number of the packet
+     * @param sentMicros Time when the packet was sent, in microseconds (the clock of the device)
+     * @param audio      Audio of the packet, between the position and the limit (whole frames); it is copied
+     * @param now        Time (System.nanoTime) when the packet arrived
+     * @return What happened to the packet
+     */
+    public Arrival add(int sequence, long sentMicros, ByteBuffer audio, long now) {
+        updateJitter(sentMicros, now);
+        if (!started) {
+            started = true;
+            next = sequence;
+            highest = sequence - 1;
+        }
+        int ahead = sequence - next;
+        if (ahead < 0) {
+            int slot = sequence & (CAPACITY - 1);
+            if (doneSequences[slot] != sequence || doneStates[slot] == NOT_DONE) {
+                return Arrival.LATE; // Too old to know, and too old to tell anything about the current delay
+            }
+            if (doneStates[slot] == RELEASED) {
+                return Arrival.DUPLICATE;
+            }
+            doneStates[slot] = RELEASED; // A second copy of this packet is a duplicate
+            extraDelayNanos = Math.min(MAX_DELAY_NANOS, extraDelayNanos + MIN_DELAY_NANOS); // Wait longer next time
+            return Arrival.LATE;
+        }
+        if (ahead >= CAPACITY) {
+            restart(sequence); // Too far ahead: the device restarted or the network was down for a long time
+        }
+        int slot = sequence & (CAPACITY - 1);
+        if (present[slot]) {
+            return Arrival.DUPLICATE;
+        }
+        int length = audio.remaining();
+        if (packets[slot] == null || packets[slot].length < length) {
+            packets[slot] = new byte[length]; // Only until the largest packet has been seen
+            views[slot] = ByteBuffer.wrap(packets[slot]);
+        }
+        audio.get(packets[slot], 0, length);
+        lengths[slot] = length;
+        arrivals[slot] = now;
+        present[slot] = true;
+        waiting++;
+        if (sequence - highest > 0) {
+            highest = sequence;
+            return Arrival.IN_ORDER;
+        }
+        return Arrival.REORDERED;
+    }
+
+    /**
+     * Releases the next packet, if it arrived or if it has been given up.
+     * The buffer can be read until the next call.
+     *
+     * @param now Current time (System.nanoTime)
+     * @return Audio of the next packet (concealed if it was lost), or null if there is nothing to release yet
+     */
+    public ByteBuffer poll(long now) {
+        concealed = false;
+        if (waiting == 0) {
+            return null; // The next packet may still arrive
+        }
+        int slot = next & (CAPACITY - 1);
+        if (present[slot]) {
+            int length = lengths[slot];
+            present[slot] = false;
+            done(slot, RELEASED);
+            waiting--;
+            next++;
+            losses = 0;
+            if (extraDelayNanos > 0) {
+                extraDelayNanos -= extraDelayNanos >> 8; // Slow decay of the extra delay
+            }
+            remember(packets[slot], length);
+            return views[slot].clear().limit(length);
+        }
+        long firstArrival = Long.MAX_VALUE;
+        for (int i = 0; i < CAPACITY; i++) {
+            if (present[i] && arrivals[i] < firstArrival) {
+                firstArrival = arrivals[i];
+            }
+        }
+        // A later packet arrived: the missing one is given up if it does not arrive within the delay
+        if (now - firstArrival < getDelayNanos() && waiting < CAPACITY / 2) {
+            return null;
+        }
+        done(slot, GIVEN_UP);
+        next++;
+        concealed = true;
+        return conceal(lastLength > 0 ? lastLength : firstWaitingLength());
+    }
+
+    /**
+     * Returns true if the last packet released by {@link #poll(long)} was concealed.
+     *
+     * @return True for a lost packet
+     */
+    public boolean wasConcealed() {
+        return concealed;
+    }
+
+    /**
+     * Returns the time the buffer waits for a missing packet.
+     *
+     * @return Delay in nanoseconds
+     */
+    public long getDelayNanos() {
+        long delay = (long) (JITTER_FACTOR * jitterNanos) + extraDelayNanos;
+        return Math.max(MIN_DELAY_NANOS, Math.min(MAX_DELAY_NANOS, delay));
+    }
+
+    /**
+     * Returns the interarrival jitter of the packets.
+     *
+     * @return Jitter in nanoseconds
+     */
+    public long getJitterNanos() {
+        return (long) jitterNanos;
+    }
+
+    /**
+     * Updates the interarrival jitter: the mean deviation of the difference between arrival and send times.
+     * The clocks of the device and the server do not need to be synchronized.
+     *
+     * @param sentMicros Time when the packet was sent
+     * @param now        Time when the packet arrived
+     */
+    private void updateJitter(long sentMicros, long now) {
+        long transit = now - sentMicros * 1000;
+        if (started) {
+            long difference = Math.abs(transit - lastTransitNanos);
+            jitterNanos += (difference - jitterNanos) / 16;
+        }
+        lastTransitNanos = transit;
+    }
+
+    /**
+     * Remembers that the next packet was released or given up, to tell its late copies apart.
+     *
+     * @param slot  Slot of the next packet
+     * @param state RELEASED or GIVEN_UP
+     */
+    private void done(int slot, byte state) {
+        doneSequences[slot] = next;
+        doneStates[slot] = state;
+    }
+
+    /**
+     * Drops the waiting packets and starts again at a new sequence number.
+     *
+     * @param sequence Sequence number of the next packet
+     */
+    private void restart(int sequence) {
+        for (int i = 0; i < CAPACITY; i++) {
+            present[i] = false;
+            doneStates[i] = NOT_DONE;
+        }
+        waiting = 0;
+        next = sequence;
+        highest = sequence - 1;
+    }
+
+    /**
+     * Returns the length of the waiting packet that is released first.
+     *
+     * @return Length in bytes
+     */
+    private int firstWaitingLength() {
+        for (int i = 1; i < CAPACITY; i++) {
+            int slot = (next + i) & (CAPACITY - 1);
+            if (present[slot]) {
+                return lengths[slot];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Keeps a copy of the last released packet for the concealment.
+     *
+     * @param audio  Audio of the packet
+     * @param length Length in bytes
+     */
+    private void remember(byte[] audio, int length) {
+        if (last.length < length) {
+            last = new byte[length];
+        }
+        System.arraycopy(audio, 0, last, 0, length);
+        lastLength = length;
+    }
+
+    /**
+     * Creates the audio of a lost packet: the last packet, faded out over {@link #FADE_PACKETS} packets, or silence.
+     *
+     * @param length Length of the audio in bytes
+     * @return Concealed audio
+     */
+    private ByteBuffer conceal(int length) {
+        losses++;
+        int count = length / codec.getBytesPerSample();
+        if (samples.length < count) {
+            samples = new float[count];
+        }
+        if (lastLength >= length) {
+            codec.decode(last, 0, length, samples, 0);
+        } else {
+            Arrays.fill(samples, 0, count, 0f);
+        }
+        int channels = frameSize / codec.getBytesPerSample();
+        int frames = count / channels;
+        float startGain = Math.max(0f, 1f - (float) (losses - 1) / FADE_PACKETS);
+        float endGain = Math.max(0f, 1f - (float) losses / FADE_PACKETS);
+        for (int frame = 0, i = 0; frame < frames; frame++) {
+            float gain = startGain + (endGain - startGain) * frame / frames;
+            for (int channel = 0; channel < channels; channel++, i++) {
+                samples[i] *= gain;
+            }
+        }
+        if (concealment.length < length) {
+            concealment = new byte[length];
+            concealmentBuffer = ByteBuffer.wrap(concealment);
+        }
+        codec.encode(samples, 0, count, concealment, 0);
+        return concealmentBuffer.clear().limit(length);
+    }
+}
@@ -0,0 +1,156 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed memory size and a relative error below 1.6%.
+ * Values below 128 have their own bucket; larger values are grouped in 64 buckets per power of two, like an
+ * HdrHistogram with two significant digits. Recording a value does not allocate memory and does not lock, so it can
+ * be used in the audio threads, by many threads at the same time, while other threads read the percentiles.
+ * The percentiles read while values are being recorded are a close approximation.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;            // Buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one value.
+     *
+     * @param value Value in nanoseconds (negative values are recorded as 0)
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.getAndIncrement(bucket(value));
+        sum.getAndAdd(value);
+        count.getAndIncrement();
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get(); // Another thread recorded a value at the same time
+        }
+    }
+
+    /**
+     * Adds the values of another histogram to this one.
+     *
+     * @param other Histogram whose values are added
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long value = other.counts.get(i);
+            if (value != 0) {
+                counts.getAndAdd(i, value);
+            }
+        }
+        count.getAndAdd(other.count.get());
+        sum.getAndAdd(other.sum.get());
+        long otherMax = other.max.get();
+        long current = max.get();
+        while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Removes all the values. Values recorded at the same time may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return Number of values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     *
+     * @return Sum in nanoseconds
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return Maximum value in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which a percentage of the recorded values fall.
+     *
+     * @param percentile Percentile between 0 and 100
+     * @return Upper bound of the bucket of the percentile in nanoseconds, or 0 if the histogram is empty
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i); // The buckets may change while they are read, so they are counted again
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        long highest = max.get();
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), highest);
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value Value (not negative)
+     * @return Index of the bucket
+     */
+    private static int bucket(long value) {
+        int shift = (64 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS + 1);
+        if (shift <= 0) {
+            return (int) value; // Values below 128 have their own bucket
+        }
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the largest value of a bucket.
+     *
+     * @param bucket Index of the bucket
+     * @return Largest value that falls in the bucket
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        long top = bucket - ((long) shift << SUB_BUCKET_BITS);
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,332 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the level of every block of every stream as newline-delimited JSON to the clients connected to a local
+ * TCP port, for example:
+ * {"stream":3,"device":7,"time":1700000000000,"rms":-23.4,"peak":-6.1,"clipped":0,"zcr":812,"voice":true,"silent":false}
+ * The levels are in dBFS and "zcr" is the zero-crossing rate in crossings per second. It listens only on the loopback
+ * address. The ingest threads never wait: each one formats its lines in its own buffer and publishes them in its own
+ * {@link PcmRingBuffer}, and the level thread reads the rings every {@link #TICK_MILLIS} ms and sends the lines.
+ * Each client has a buffer of pending lines, and the lines that do not fit in it (the client is not reading) are
+ * dropped whole, so every line a client receives is complete.
+ */
+public class LevelEventServer implements LevelListener, Runnable {
+
+    /**
+     * Period of the level thread, in milliseconds: the lines are sent at most this late.
+     */
+    public static final long TICK_MILLIS = 10;
+
+    private static final int CLIENT_BUFFER_SIZE = 64 * 1024; // Pending lines of a client
+    private static final int LINE_BYTES = 256;               // Longest line
+    private static final int RING_LINES = 1024;              // Lines of an ingest thread not yet read by the level thread
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadLocal<Producer> producer = ThreadLocal.withInitial(this::newProducer);
+    private final byte[] line = new byte[LINE_BYTES];       // Level thread only
+    private volatile Producer[] producers = new Producer[0];
+    private volatile Client[] clients = new Client[0];      // Changed only by the level thread
+    private final AtomicLong events = new AtomicLong();
+    private volatile long droppedEvents;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Lines formatted by one ingest thread, waiting for the level thread.
+     */
+    private static final class Producer {
+        final StringBuilder text = new StringBuilder(LINE_BYTES);
+        final ByteBuffer bytes = ByteBuffer.allocate(LINE_BYTES);
+        final PcmRingBuffer ring = new PcmRingBuffer(RING_LINES, LINE_BYTES);
+        final PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, RING_LINES);
+    }
+
+    /**
+     * One connected client and the lines not yet sent to it.
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer pending = ByteBuffer.allocateDirect(CLIENT_BUFFER_SIZE);
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Creates the server. No client is accepted until {@link #start()} is called.
+     *
+     * @param port Local TCP port (0 to use any free port)
+     * @throws IOException If the port cannot be opened
+     */
+    public LevelEventServer(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        serverChannel.configureBlocking(false);
+        selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts accepting clients and sending the lines on a background thread.
+     */
+    public synchronized void start() {
+        running = true;
+        thread = new Thread(this, "audio-levels");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Level events available on localhost port " + getLocalPort());
+    }
+
+    /**
+     * Stops the level thread, which closes the port and all the clients.
+     */
+    public synchronized void stop() {
+        running = false;
+        selector.wakeup();
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (thread == null) {
+            closeAll();
+        }
+    }
+
+    /**
+     * Returns the port where the clients connect.
+     *
+     * @return Local TCP port
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     *
+     * @return Number of clients
+     */
+    public int getClientCount() {
+        return clients.length;
+    }
+
+    /**
+     * Returns the number of events published (each one sent to all the clients).
+     *
+     * @return Number of events
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * Returns the number of lines dropped because a client was not reading, or because the level thread fell behind.
+     *
+     * @return Number of lines
+     */
+    public long getDroppedEvents() {
+        long dropped = droppedEvents;
+        for (Producer p : producers) {
+            dropped += p.cursor.getDroppedFrames();
+        }
+        return dropped;
+    }
+
+    /**
+     * Level loop. Accepts the clients and sends them the lines published by the ingest threads.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(TICK_MILLIS);
+                if (!selector.selectedKeys().isEmpty()) {
+                    selector.selectedKeys().clear();
+                    accept();
+                }
+                for (Producer p : producers) {
+                    int length;
+                    while ((length = p.cursor.read(line, 0)) > 0) {
+                        queue(length);
+                    }
+                }
+                for (Client client : clients) {
+                    flush(client);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("Level event server stopped: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Sends the level of a block to all the clients. Nothing is formatted when no client is connected.
+     * The line is formatted in the buffer of the calling thread and published in its ring, without locks.
+     *
+     * @param stream Stream measured
+     * @param meter  Meter of the stream
+     */
+    @Override
+    public void levelMeasured(AudioStream stream, LevelMeter meter) {
+        if (clients.length == 0) {
+            return;
+        }
+        Producer p = producer.get();
+        StringBuilder text = p.text;
+        text.setLength(0);
+        text.append("{\"stream\":").append(stream != null ? stream.getId() : 0);
+        text.append(",\"device\":").append(stream != null ? stream.getDeviceStreamId() : 0);
+        text.append(",\"time\":").append(System.currentTimeMillis());
+        text.append(",\"rms\":");
+        appendDecibels(text, meter.getRmsDb());
+        text.append(",\"peak\":");
+        appendDecibels(text, meter.getPeakDb());
+        text.append(",\"clipped\":").append(meter.getClippedSamples());
+        text.append(",\"zcr\":").append(Math.round(meter.getZeroCrossingRate()));
+        text.append(",\"voice\":").append(meter.isVoice());
+        text.append(",\"silent\":").append(meter.isSilent()).append("}\n");
+        ByteBuffer bytes = p.bytes;
+        bytes.clear();
+        for (int i = 0; i < text.length(); i++) {
+            bytes.put((byte) text.charAt(i)); // The line is ASCII
+        }
+        p.ring.publish(bytes.flip(), bytes.limit()); // One line per slot
+        events.incrementAndGet();
+    }
+
+    /**
+     * Appends a level with one decimal to a line, without creating strings.
+     *
+     * @param text Line
+     * @param db   Level in dBFS
+     */
+    private static void appendDecibels(StringBuilder text, float db) {
+        long tenths = Math.round(db * 10.0);
+        if (tenths < 0) {
+            text.append('-');
+            tenths = -tenths;
+        }
+        text.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    /**
+     * Creates the ring of an ingest thread the first time it publishes a line.
+     *
+     * @return Producer of the calling thread
+     */
+    private synchronized Producer newProducer() {
+        Producer p = new Producer();
+        Producer[] current = producers;
+        Producer[] newProducers = new Producer[current.length + 1];
+        System.arraycopy(current, 0, newProducers, 0, current.length);
+        newProducers[current.length] = p;
+        producers = newProducers;
+        return p;
+    }
+
+    /**
+     * Queues the line read from a ring for every client, or drops it for the clients that are not reading.
+     *
+     * @param length Length of the line
+     */
+    private void queue(int length) {
+        for (Client client : clients) {
+            if (client.pending.remaining() >= length) {
+                client.pending.put(line, 0, length);
+            } else {
+                droppedEvents++;
+            }
+        }
+    }
+
+    /**
+     * Writes the pending lines of a client that its socket accepts.
+     *
+     * @param client Client
+     */
+    private void flush(Client client) {
+        ByteBuffer pending = client.pending;
+        if (pending.position() == 0) {
+            return;
+        }
+        try {
+            pending.flip();
+            client.channel.write(pending);
+            pending.compact();
+        } catch (IOException e) {
+            remove(client); // The client disconnected
+        }
+    }
+
+    /**
+     * Accepts the pending clients. Every accepted client is switched to non-blocking mode, so a write never waits.
+     *
+     * @throws IOException If the port fails
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Client[] current = clients;
+            Client[] newClients = new Client[current.length + 1];
+            System.arraycopy(current, 0, newClients, 0, current.length);
+            newClients[current.length] = new Client(channel);
+            clients = newClients;
+        }
+    }
+
+    /**
+     * Removes a client and closes its connection.
+     *
+     * @param client Client
+     */
+    private void remove(Client client) {
+        Client[] current = clients;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == client) {
+                Client[] newClients = new Client[current.length - 1];
+                System.arraycopy(current, 0, newClients, 0, i);
+                System.arraycopy(current, i + 1, newClients, i, current.length - i - 1);
+                clients = newClients;
+                break;
+            }
+        }
+        try {
+            client.channel.close();
+        } catch (IOException ignored) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Closes all the clients, the port and the selector.
+     */
+    private void closeAll() {
+        for (Client client : clients) {
+            remove(client);
+        }
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // Nothing else can be done while shutting down
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * Receives the level of the streams measured by their {@link LevelMeter}s.
+ * It is called from the ingest threads for every block of every stream, so it must return quickly and must not block.
+ */
+public interface LevelListener {
+
+    /**
+     * Called when a meter completes a block.
+     *
+     * @param stream Stream measured (null if the meter does not measure a stream)
+     * @param meter  Meter, whose getters return the values of the block
+     */
+    void levelMeasured(AudioStream stream, LevelMeter meter);
+}
@@ -0,0 +1,277 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the level of a stream on the ingest path, in blocks of {@link #DEFAULT_BLOCK_FRAMES} frames: the RMS and
+ * peak level in dBFS, the number of clipped samples and the zero-crossing rate. From them it decides if the block has
+ * voice (enough energy and a zero-crossing rate below the one of broadband noise) and if the stream is silent (the
+ * level stayed below the silence threshold for the hangover time, so the tails of the words are not cut).
+ * The listener is called from the thread that analyzes the audio at the end of each block; it reads the values of
+ * the block from the getters. A meter belongs to one thread and does not allocate memory once its buffers fit the
+ * largest chunk of audio; the getters can be read from any thread.
+ */
+public class LevelMeter {
+
+    /**
+     * Frames analyzed per block (about 23 ms at 44.1 kHz).
+     */
+    public static final int DEFAULT_BLOCK_FRAMES = 1024;
+
+    /**
+     * Level below which a block is silent, in dBFS.
+     */
+    public static final float SILENCE_THRESHOLD_DB = -60f;
+
+    /**
+     * Level above which a block can have voice, in dBFS.
+     */
+    public static final float VOICE_THRESHOLD_DB = -45f;
+
+    /**
+     * Zero-crossing rate above which a block is noise rather than voice, in crossings per second.
+     */
+    public static final float MAX_VOICE_CROSSINGS = 5000f;
+
+    /**
+     * Lowest level reported, in dBFS (the level of digital silence).
+     */
+    public static final float MIN_DB = -120f;
+
+    private static final int HANGOVER_MILLIS = 300;     // Time below the silence threshold before the stream is silent
+    private static final int CLIP_LEVEL = 32767;        // Largest 16-bit sample (the meter works on 16-bit samples)
+    private static final float FULL_SCALE = 32768f;
+
+    private final AudioStream stream;
+    private final LevelListener listener;
+    private final PcmCodec codec;
+    private final int channels;
+    private final float sampleRate;
+    private final int blockFrames;
+    private final int hangoverBlocks;
+    private byte[] bytes = new byte[0];
+    private short[] samples = new short[0];
+
+    // Block being measured (analyzing thread only)
+    private long sumSquares;
+    private int blockPeak;
+    private int blockClipped;
+    private int crossings;
+    private int frames;
+    private boolean positive = true;
+    private int quietBlocks;
+
+    // Last complete block
+    private volatile float rmsDb = MIN_DB;
+    private volatile float peakDb = MIN_DB;
+    private volatile int clippedSamples;
+    private volatile float zeroCrossingRate;
+    private volatile boolean voice;
+    private volatile boolean silent;
+    private volatile long blocks;
+    private volatile long totalClippedSamples;
+
+    /**
+     * Creates a meter with blocks of {@link #DEFAULT_BLOCK_FRAMES} frames.
+     *
+     * @param format   Format of the audio (PCM)
+     * @param stream   Stream measured, passed to the listener (may be null)
+     * @param listener Listener called at the end of each block, or null
+     */
+    public LevelMeter(AudioFormat format, AudioStream stream, LevelListener listener) {
+        this(format, stream, listener, DEFAULT_BLOCK_FRAMES);
+    }
+
+    /**
+     * Creates a meter.
+     *
+     * @param format      Format of the audio (PCM)
+     * @param stream      Stream measured, passed to the listener (may be null)
+     * @param listener    Listener called at the end of each block, or null
+     * @param blockFrames Frames per block
+     */
+    public LevelMeter(AudioFormat format, AudioStream stream, LevelListener listener, int blockFrames) {
+        this.stream = stream;
+        this.listener = listener;
+        this.codec = new PcmCodec(format);
+        this.channels = format.getChannels();
+        this.sampleRate = format.getSampleRate();
+        this.blockFrames = blockFrames;
+        this.hangoverBlocks = Math.max(1, Math.round(HANGOVER_MILLIS * sampleRate / 1000 / blockFrames));
+    }
+
+    /**
+     * Analyzes the audio between the position and the limit of a buffer, without moving its position.
+     *
+     * @param data Audio bytes (whole frames)
+     * @return True if the stream is silent after this audio
+     */
+    public boolean analyze(ByteBuffer data) {
+        int length = data.remaining();
+        if (data.hasArray()) {
+            return analyze(data.array(), data.arrayOffset() + data.position(), length);
+        }
+        if (bytes.length < length) {
+            bytes = new byte[length];
+        }
+        data.get(data.position(), bytes, 0, length);
+        return analyze(bytes, 0, length);
+    }
+
+    /**
+     * Analyzes audio bytes.
+     *
+     * @param data   Audio bytes (whole frames)
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     * @return True if the stream is silent after this audio
+     */
+    public boolean analyze(byte[] data, int offset, int length) {
+        int count = length / codec.getBytesPerSample();
+        if (samples.length < count) {
+            samples = new short[count];
+        }
+        codec.decode(data, offset, length, samples, 0);
+        int i = 0;
+        while (i + channels <= count) {
+            int segment = Math.min(blockFrames - frames, (count - i) / channels); // Frames up to the end of the block
+            long sum = sumSquares;
+            int peak = blockPeak;
+            int clipped = blockClipped;
+            int crossed = crossings;
+            boolean wasPositive = positive;
+            for (int end = i + segment * channels; i < end; i += channels) {
+                int mono = 0;
+                for (int c = 0; c < channels; c++) {
+                    int value = samples[i + c];
+                    int magnitude = Math.abs(value);
+                    sum += value * value;
+                    peak = Math.max(peak, magnitude);
+                    clipped += magnitude >= CLIP_LEVEL ? 1 : 0;
+                    mono += value;
+                }
+                boolean isPositive = mono >= 0;
+                crossed += isPositive != wasPositive ? 1 : 0;
+                wasPositive = isPositive;
+            }
+            sumSquares = sum;
+            blockPeak = peak;
+            blockClipped = clipped;
+            crossings = crossed;
+            positive = wasPositive;
+            frames += segment;
+            if (frames == blockFrames) {
+                endBlock();
+            }
+        }
+        return silent;
+    }
+
+    /**
+     * Publishes the values of the block that was just completed and starts a new one.
+     */
+    private void endBlock() {
+        float rms = (float) Math.sqrt((double) sumSquares / ((long) frames * channels)) / FULL_SCALE;
+        float level = toDb(rms);
+        rmsDb = level;
+        peakDb = toDb(blockPeak / FULL_SCALE);
+        clippedSamples = blockClipped;
+        totalClippedSamples += blockClipped;
+        zeroCrossingRate = crossings * sampleRate / frames;
+        voice = level > VOICE_THRESHOLD_DB && zeroCrossingRate < MAX_VOICE_CROSSINGS;
+        quietBlocks = level < SILENCE_THRESHOLD_DB ? quietBlocks + 1 : 0;
+        silent = quietBlocks >= hangoverBlocks;
+        blocks++;
+        sumSquares = 0;
+        blockPeak = 0;
+        blockClipped = 0;
+        crossings = 0;
+        frames = 0;
+        if (listener != null) {
+            listener.levelMeasured(stream, this);
+        }
+    }
+
+    /**
+     * Converts a linear level to dBFS.
+     *
+     * @param level Linear level (1 is full scale)
+     * @return Level in dBFS, at least {@link #MIN_DB}
+     */
+    private static float toDb(float level) {
+        return level > 0 ? Math.max(MIN_DB, (float) (20 * Math.log10(level))) : MIN_DB;
+    }
+
+    /**
+     * Returns the RMS level of the last block.
+     *
+     * @return Level in dBFS
+     */
+    public float getRmsDb() {
+        return rmsDb;
+    }
+
+    /**
+     * Returns the peak level of the last block.
+     *
+     * @return Level in dBFS
+     */
+    public float getPeakDb() {
+        return peakDb;
+    }
+
+    /**
+     * Returns the number of samples of the last block at the largest value (probably clipped by the device).
+     *
+     * @return Number of samples
+     */
+    public int getClippedSamples() {
+        return clippedSamples;
+    }
+
+    /**
+     * Returns the number of clipped samples since the meter was created.
+     *
+     * @return Number of samples
+     */
+    public long getTotalClippedSamples() {
+        return totalClippedSamples;
+    }
+
+    /**
+     * Returns the zero-crossing rate of the last block (of the sum of the channels).
+     *
+     * @return Crossings per second
+     */
+    public float getZeroCrossingRate() {
+        return zeroCrossingRate;
+    }
+
+    /**
+     * Tells if the last block has voice (or any other sound that is not silence or broadband noise).
+     *
+     * @return True if the block has voice
+     */
+    public boolean isVoice() {
+        return voice;
+    }
+
+    /**
+     * Tells if the stream has been silent for the hangover time.
+     *
+     * @return True if the stream is silent
+     */
+    public boolean isSilent() {
+        return silent;
+    }
+
+    /**
+     * Returns the number of blocks measured.
+     *
+     * @return Number of blocks
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+}
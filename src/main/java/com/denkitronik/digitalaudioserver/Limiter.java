@@ -0,0 +1,75 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * Peak limiter that keeps the audio below a ceiling, so a loud device does not clip the mix.
+ * When a frame is above the ceiling the gain drops at once to the gain that brings it to the ceiling (no look-ahead,
+ * so no latency is added), and then it recovers towards 1 exponentially in the release time.
+ */
+public class Limiter implements DspStage {
+
+    /**
+     * Default ceiling in decibels.
+     */
+    public static final float DEFAULT_CEILING_DB = -1f;
+
+    private static final float RELEASE_MILLIS = 50f;
+
+    private final int channels;
+    private final float ceiling;
+    private final float recovery;   // Fraction of the distance to the target gain recovered per frame
+    private float gain = 1f;
+    private long limitedFrames;
+
+    /**
+     * Creates the limiter.
+     *
+     * @param channels   Number of channels
+     * @param sampleRate Sample rate in hertz
+     * @param ceilingDb  Largest output level, in decibels relative to full scale
+     */
+    public Limiter(int channels, float sampleRate, float ceilingDb) {
+        this.channels = channels;
+        this.ceiling = DspChain.dbToLinear(ceilingDb);
+        this.recovery = (float) (1 - Math.exp(-1000.0 / (RELEASE_MILLIS * sampleRate)));
+    }
+
+    /**
+     * Returns the number of frames whose gain was reduced.
+     *
+     * @return Number of frames
+     */
+    public long getLimitedFrames() {
+        return limitedFrames;
+    }
+
+    @Override
+    public int process(float[] block, int frames) {
+        float g = gain;
+        int base = 0;
+        for (int frame = 0; frame < frames; frame++, base += channels) {
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                peak = Math.max(peak, Math.abs(block[base + c]));
+            }
+            float target = peak > ceiling ? ceiling / peak : 1f;
+            if (target < g) {
+                g = target;         // Instant attack: the frame never goes above the ceiling
+            } else {
+                g += (target - g) * recovery;
+            }
+            if (g < 1f) {
+                limitedFrames++;
+                for (int c = 0; c < channels; c++) {
+                    block[base + c] *= g;
+                }
+            }
+        }
+        gain = g > 0.99999f ? 1f : g;
+        return frames;
+    }
+
+    @Override
+    public void reset() {
+        gain = 1f;
+    }
+}
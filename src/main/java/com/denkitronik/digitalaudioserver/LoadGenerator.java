@@ -0,0 +1,412 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load generator for an audio server.
+ * It connects K simulated devices ({@link AudioDeviceSimulator}) to the server, each one on its own thread, and sends
+ * a 440Hz sin wave in real time or as fast as possible. All the devices share one precomputed wave buffer and nothing
+ * is allocated while sending. Every second it prints the throughput, and at the end it prints the percentiles of the
+ * time spent in each write and, in real time, of how late the writes were.
+ * With --local it starts its own ingest server on a free local port instead of loading a running server, so it can
+ * also measure the lag of each stream (audio sent by a device but not yet received by the server).
+ * With --timestamps the devices send timestamped packets, so the server measures their network latency.
+ * With --codec=adpcm or --codec=varint the devices compress the audio, and the report shows the compression ratio.
+ * With --udp the devices send their packets over UDP, losing (--loss) and reordering (--reorder) a fraction of them.
+ * Usage: java -jar digitalaudioserver.jar loadgen [ip] [port] [connections] [seconds] [--fast] [--timestamps]
+ * [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]
+ * or: java -jar digitalaudioserver.jar loadgen --local [connections] [seconds] [options]
+ */
+public class LoadGenerator {
+
+    static final int FAST_CHUNK_BYTES = 64 * 1024;  // Bytes per write when the audio is sent as fast as possible
+
+    private final String host;
+    private int port;
+    private final int connections;
+    private final int seconds;
+    private final boolean realTime;
+    private boolean timestamps;
+    private int codec = BlockCodec.PCM;
+    private boolean udp;
+    private double lossRate;
+    private double reorderRate;
+    private boolean local;
+
+    private AudioDeviceSimulator[] devices;
+    private CountDownLatch finished;
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Map<Integer, AudioStream> localStreams = new ConcurrentHashMap<>(); // By device stream identifier
+
+    /**
+     * Creates the load generator.
+     *
+     * @param host        Host name or IP address of the server
+     * @param port        TCP port of the server
+     * @param connections Number of simulated devices
+     * @param seconds     Duration of the test in seconds
+     * @param realTime    True to send the audio at its playback speed, false to send it as fast as possible
+     */
+    public LoadGenerator(String host, int port, int connections, int seconds, boolean realTime) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.seconds = seconds;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Makes the devices send timestamped packets instead of raw audio.
+     *
+     * @param timestamps True to send timestamped packets
+     */
+    public void setTimestamps(boolean timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Makes the devices compress the audio.
+     *
+     * @param codec Codec of the audio ({@link BlockCodec#PCM} for raw audio)
+     */
+    public void setCodec(int codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Makes the devices send their packets over UDP.
+     *
+     * @param lossRate    Fraction of the packets that each device does not send (0 to 1)
+     * @param reorderRate Fraction of the packets that each device sends after the next packet (0 to 1)
+     */
+    public void setUdp(double lossRate, double reorderRate) {
+        this.udp = true;
+        this.lossRate = lossRate;
+        this.reorderRate = reorderRate;
+    }
+
+    /**
+     * Makes {@link #run()} start its own ingest server on a free local port (the host and port are ignored) and
+     * report the lag of each stream.
+     *
+     * @param local True to load an ingest server in this process
+     */
+    public void setLocal(boolean local) {
+        this.local = local;
+    }
+
+    /**
+     * Runs the load generator from the command line.
+     *
+     * @param args [ip] [port] [connections] [seconds] [--fast] [--timestamps] [--codec=pcm|adpcm|varint] [--udp]
+     *             [--loss=FRACTION] [--reorder=FRACTION], or --local [connections] [seconds] and the same options
+     */
+    public static void main(String[] args) {
+        boolean realTime = true;
+        boolean timestamps = false;
+        int codec = BlockCodec.PCM;
+        boolean udp = false;
+        boolean local = false;
+        double lossRate = 0;
+        double reorderRate = 0;
+        String[] values = new String[4];
+        int count = 0;
+        for (String arg : args) {
+            if (arg.equals("--fast")) {
+                realTime = false;
+            } else if (arg.equals("--timestamps")) {
+                timestamps = true;
+            } else if (arg.startsWith("--codec=")) {
+                try {
+                    codec = BlockCodec.forName(arg.substring("--codec=".length()));
+                } catch (IllegalArgumentException e) {
+                    System.out.println(e.getMessage());
+                    printUsage();
+                    return;
+                }
+            } else if (arg.equals("--udp")) {
+                udp = true;
+            } else if (arg.equals("--local")) {
+                local = true;
+            } else if (arg.startsWith("--loss=")) {
+                lossRate = Double.parseDouble(arg.substring("--loss=".length()));
+            } else if (arg.startsWith("--reorder=")) {
+                reorderRate = Double.parseDouble(arg.substring("--reorder=".length()));
+            } else if (count < values.length) {
+                values[count++] = arg;
+            }
+        }
+        if (local) { // Only [connections] [seconds]
+            values = new String[]{null, null, values[0], values[1]};
+        }
+        String host = values[0] != null ? values[0] : "localhost";
+        int port = values[1] != null ? Integer.parseInt(values[1]) : 12345;
+        int connections = values[2] != null ? Integer.parseInt(values[2]) : 100;
+        int seconds = values[3] != null ? Integer.parseInt(values[3]) : 10;
+        try {
+            LoadGenerator generator = new LoadGenerator(host, port, connections, seconds, realTime);
+            generator.setTimestamps(timestamps);
+            generator.setCodec(codec);
+            generator.setLocal(local);
+            if (udp) {
+                generator.setUdp(lossRate, reorderRate);
+            }
+            generator.run();
+        } catch (IOException e) {
+            System.out.println("Load generator failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the load and prints the results. With {@link #setLocal(boolean)} the ingest server is started first and
+     * stopped at the end.
+     *
+     * @throws IOException          If the local ingest server cannot be started
+     * @throws InterruptedException If the test is interrupted
+     */
+    public void run() throws IOException, InterruptedException {
+        AudioIngestServer tcpServer = null;
+        UdpIngestServer udpServer = null;
+        if (local) {
+            AudioStreamListener listener = new AudioStreamListener() {
+                @Override
+                public void streamOpened(AudioStream stream) {
+                    localStreams.put(stream.getDeviceStreamId(), stream);
+                }
+
+                @Override
+                public void audioReceived(AudioStream stream, ByteBuffer data) {
+                    data.position(data.limit()); // Only the counters of the stream are used
+                }
+
+                @Override
+                public void streamClosed(AudioStream stream) {
+                }
+            };
+            if (udp) {
+                udpServer = new UdpIngestServer(0, listener);
+                udpServer.start();
+                port = udpServer.getLocalPort();
+            } else {
+                tcpServer = new AudioIngestServer(0, listener);
+                tcpServer.start();
+                port = tcpServer.getLocalPort();
+            }
+        }
+        try {
+            System.out.println("Load generator: " + connections + " connections to " + (local ? "a local ingest server"
+                    : host + ":" + port) + " for " + seconds + " s, " + (realTime ? "real time" : "as fast as possible")
+                    + (codec != BlockCodec.PCM ? ", " + BlockCodec.name(codec) + " codec" : "")
+                    + (udp ? ", UDP with " + lossRate * 100 + "% loss and " + reorderRate * 100 + "% reordering" : ""));
+            start();
+            long[] maxLagBytes = new long[connections];
+            long startNanos = System.nanoTime();
+            long lastBytes = 0;
+            long lastNanos = startNanos;
+            while (!awaitFinished(1, TimeUnit.SECONDS)) {
+                long now = System.nanoTime();
+                long totalBytes = getBytesSent();
+                double bytesPerSecond = (totalBytes - lastBytes) * 1e9 / (now - lastNanos);
+                System.out.printf("  %3ds  connections: %4d  throughput: %12.0f bytes/s (%.1f real-time streams)%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - startNanos), connected.get(), bytesPerSecond,
+                        bytesPerSecond / AudioDeviceSimulator.SIN_BYTES_PER_SECOND);
+                sampleLag(maxLagBytes);
+                lastBytes = totalBytes;
+                lastNanos = now;
+            }
+            sampleLag(maxLagBytes);
+            printReport(getBytesSent(), System.nanoTime() - startNanos, maxLagBytes);
+        } finally {
+            if (tcpServer != null) {
+                tcpServer.stop();
+            }
+            if (udpServer != null) {
+                udpServer.stop();
+            }
+        }
+    }
+
+    /**
+     * Connects the devices and starts sending, each device on its own thread, and returns at once.
+     * Use {@link #awaitFinished(long, TimeUnit)} to wait until all the devices finished.
+     */
+    public void start() {
+        int chunkBytes = realTime ? AudioDeviceSimulator.REAL_TIME_CHUNK_BYTES : FAST_CHUNK_BYTES;
+        ByteBuffer wave = AudioDeviceSimulator.sinWave(chunkBytes);
+        long durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        devices = new AudioDeviceSimulator[connections];
+        finished = new CountDownLatch(connections);
+        for (int i = 0; i < connections; i++) {
+            AudioDeviceSimulator device = new AudioDeviceSimulator(i + 1, timestamps, codec);
+            if (udp) {
+                device.setUdp(lossRate, reorderRate);
+            }
+            devices[i] = device;
+            Thread thread = new Thread(() -> {
+                try (GatheringByteChannel channel = device.connect(host, port)) {
+                    connected.incrementAndGet();
+                    device.sendSinWave(channel, wave, chunkBytes, durationNanos, realTime);
+                } catch (IOException e) {
+                    if (failed.getAndIncrement() == 0) {
+                        System.out.println("Load generator connection failed: " + e.getMessage());
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }, "loadgen-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Waits until all the devices finished sending.
+     *
+     * @param timeout Maximum time to wait
+     * @param unit    Unit of the timeout
+     * @return True if all the devices finished, false if the timeout expired
+     * @throws InterruptedException If the wait is interrupted
+     */
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * Returns the simulated devices, with their histograms and counters.
+     *
+     * @return Devices started by {@link #start()}
+     */
+    public AudioDeviceSimulator[] getDevices() {
+        return devices;
+    }
+
+    /**
+     * Returns the number of devices that connected to the server.
+     *
+     * @return Number of devices
+     */
+    public int getConnected() {
+        return connected.get();
+    }
+
+    /**
+     * Returns the number of devices whose connection failed (when connecting or while sending).
+     *
+     * @return Number of devices
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of audio bytes sent by all the devices.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesSent() {
+        long total = 0;
+        for (AudioDeviceSimulator device : devices) {
+            total += device.getBytesSent();
+        }
+        return total;
+    }
+
+    /**
+     * Updates the maximum lag observed for each stream of the local server.
+     *
+     * @param maxLagBytes Maximum lag of each device in bytes
+     */
+    private void sampleLag(long[] maxLagBytes) {
+        for (int i = 0; i < devices.length; i++) {
+            AudioStream stream = localStreams.get(i + 1);
+            if (stream != null) {
+                long lag = devices[i].getBytesSent() - stream.getBytesReceived();
+                maxLagBytes[i] = Math.max(maxLagBytes[i], lag);
+            }
+        }
+    }
+
+    /**
+     * Prints the final results of the load.
+     *
+     * @param totalBytes  Bytes sent by all the devices
+     * @param elapsed     Duration of the test in nanoseconds
+     * @param maxLagBytes Maximum lag of each device in bytes (only measured with a local server)
+     */
+    private void printReport(long totalBytes, long elapsed, long[] maxLagBytes) {
+        LatencyHistogram writeLatency = new LatencyHistogram();
+        LatencyHistogram lateness = new LatencyHistogram();
+        long wireBytes = 0;
+        for (AudioDeviceSimulator device : devices) {
+            writeLatency.add(device.getWriteLatency());
+            lateness.add(device.getLateness());
+            wireBytes += device.getWireBytesSent();
+        }
+        int connected = this.connected.get();
+        int failed = this.failed.get();
+        System.out.println("Load generator results:");
+        System.out.println("  connections:            " + connected + " of " + connections + " (" + failed + " failed)");
+        if (failed > 0) {
+            System.out.println("  FAILED: " + failed + " connections failed (see the first error above), so the"
+                    + " throughput and latencies are not valid");
+            return;
+        }
+        System.out.printf("  aggregate throughput:   %.0f bytes/s (%.1f real-time streams)%n",
+                totalBytes * 1e9 / elapsed, totalBytes * 1e9 / elapsed / AudioDeviceSimulator.SIN_BYTES_PER_SECOND);
+        System.out.printf("  bytes on the network:   %d (%.2f:1 compared to the audio, %.0f kbit/s per connection)%n",
+                wireBytes, wireBytes > 0 ? (double) totalBytes / wireBytes : 0,
+                connected > 0 ? wireBytes * 8e6 / elapsed / connected : 0);
+        System.out.printf("  write latency (us):     p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f  (%d writes)%n",
+                writeLatency.getPercentile(50) / 1e3, writeLatency.getPercentile(90) / 1e3,
+                writeLatency.getPercentile(99) / 1e3, writeLatency.getPercentile(99.9) / 1e3,
+                writeLatency.getMax() / 1e3, writeLatency.getCount());
+        if (realTime) {
+            System.out.printf("  write lateness (ms):    p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                    lateness.getPercentile(50) / 1e6, lateness.getPercentile(99) / 1e6,
+                    lateness.getPercentile(99.9) / 1e6, lateness.getMax() / 1e6);
+        }
+        if (local) {
+            double[] lagMs = new double[maxLagBytes.length];
+            for (int i = 0; i < lagMs.length; i++) {
+                lagMs[i] = maxLagBytes[i] * 1000.0 / AudioDeviceSimulator.SIN_BYTES_PER_SECOND;
+            }
+            Arrays.sort(lagMs);
+            System.out.printf("  per-stream lag (ms):    p50 %.1f  p99 %.1f  max %.1f%n",
+                    percentile(lagMs, 0.50), percentile(lagMs, 0.99), percentile(lagMs, 1.0));
+        }
+    }
+
+    /**
+     * Returns a percentile of a sorted array.
+     *
+     * @param sorted   Sorted values
+     * @param fraction Percentile between 0 and 1
+     * @return The value at the percentile
+     */
+    private static double percentile(double[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Prints how to use the load generator.
+     */
+    private static void printUsage() {
+        System.out.println("Usage: java -jar digitalaudioserver.jar loadgen [ip] [port] [connections] [seconds] [--fast] [--timestamps] [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]");
+        System.out.println("       java -jar digitalaudioserver.jar loadgen --local [connections] [seconds] [--fast] [--timestamps] [--codec=pcm|adpcm|varint] [--udp] [--loss=FRACTION] [--reorder=FRACTION]");
+    }
+}
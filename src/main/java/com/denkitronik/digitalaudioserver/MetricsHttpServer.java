@@ -0,0 +1,78 @@
+package com.denkitronik.digitalaudioserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Small HTTP server that publishes the {@link PipelineMetrics} in the Prometheus text format at /metrics.
+ * It listens only on the loopback address; a local Prometheus agent (or curl) can read it.
+ */
+public class MetricsHttpServer {
+
+    private final PipelineMetrics metrics;
+    private final HttpServer server;
+
+    /**
+     * Creates the HTTP server. Nothing is served until {@link #start()} is called.
+     *
+     * @param port    Local TCP port (0 to use any free port)
+     * @param metrics Metrics that are published
+     * @throws IOException If the port cannot be opened
+     */
+    public MetricsHttpServer(int port, PipelineMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+    }
+
+    /**
+     * Starts serving the metrics on a background thread.
+     */
+    public void start() {
+        server.start();
+        System.out.println("Metrics available at http://localhost:" + getLocalPort() + "/metrics");
+    }
+
+    /**
+     * Stops serving the metrics.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Returns the port where the metrics are served.
+     *
+     * @return Local TCP port
+     */
+    public int getLocalPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Answers a request with the current metrics.
+     *
+     * @param exchange HTTP request and response
+     * @throws IOException If the response cannot be sent
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.getPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        }
+    }
+}
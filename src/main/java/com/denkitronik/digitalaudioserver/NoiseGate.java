@@ -0,0 +1,95 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * Mutes the background noise of a device while it is not sending any useful audio.
+ * A peak envelope of all the channels opens the gate when it rises above the threshold and closes it when it falls
+ * 6 dB below the threshold (the hysteresis avoids chattering) and stays there for the hold time. The gain moves
+ * smoothly to 1 in the attack time and to 0 in the release time, so the gate does not click.
+ */
+public class NoiseGate implements DspStage {
+
+    /**
+     * Default threshold in decibels.
+     */
+    public static final float DEFAULT_THRESHOLD_DB = -50f;
+
+    private static final float ATTACK_MILLIS = 1f;
+    private static final float RELEASE_MILLIS = 100f;
+    private static final float HOLD_MILLIS = 50f;
+    private static final float HYSTERESIS = 0.5f;   // Closing threshold relative to the opening one (-6 dB)
+
+    private final int channels;
+    private final float openThreshold;
+    private final float closeThreshold;
+    private final float attack;         // Gain step per frame while opening
+    private final float release;        // Gain step per frame while closing
+    private final float envelopeDecay;  // Decay of the peak envelope per frame
+    private final int holdFrames;
+    private float envelope;
+    private float gain;
+    private int heldFrames;             // Frames below the closing threshold since the envelope fell
+    private boolean open;
+
+    /**
+     * Creates the gate, closed.
+     *
+     * @param channels    Number of channels
+     * @param sampleRate  Sample rate in hertz
+     * @param thresholdDb Level that opens the gate, in decibels relative to full scale
+     */
+    public NoiseGate(int channels, float sampleRate, float thresholdDb) {
+        this.channels = channels;
+        this.openThreshold = DspChain.dbToLinear(thresholdDb);
+        this.closeThreshold = openThreshold * HYSTERESIS;
+        this.attack = 1000f / (ATTACK_MILLIS * sampleRate);
+        this.release = 1000f / (RELEASE_MILLIS * sampleRate);
+        this.envelopeDecay = (float) Math.exp(-1000.0 / (HOLD_MILLIS * sampleRate));
+        this.holdFrames = Math.round(HOLD_MILLIS * sampleRate / 1000);
+    }
+
+    /**
+     * Tells if the gate let the audio through at the end of the last block.
+     *
+     * @return True if the gate is open
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public int process(float[] block, int frames) {
+        float env = envelope;
+        float g = gain;
+        int base = 0;
+        for (int frame = 0; frame < frames; frame++, base += channels) {
+            float peak = 0;
+            for (int c = 0; c < channels; c++) {
+                peak = Math.max(peak, Math.abs(block[base + c]));
+            }
+            env = Math.max(peak, env * envelopeDecay);
+            if (env >= openThreshold) {
+                open = true;
+                heldFrames = 0;
+            } else if (env >= closeThreshold) {
+                heldFrames = 0;
+            } else if (open && ++heldFrames > holdFrames) {
+                open = false;
+            }
+            g = open ? Math.min(1f, g + attack) : Math.max(0f, g - release);
+            for (int c = 0; c < channels; c++) {
+                block[base + c] *= g;
+            }
+        }
+        envelope = env < 1e-15f ? 0f : env;
+        gain = g;
+        return frames;
+    }
+
+    @Override
+    public void reset() {
+        envelope = 0;
+        gain = 0;
+        heldFrames = 0;
+        open = false;
+    }
+}
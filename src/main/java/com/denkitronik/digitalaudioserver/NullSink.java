@@ -0,0 +1,33 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Sink that discards the audio. It is useful to benchmark the server without a sound card.
+ */
+public class NullSink implements AudioSink {
+
+    private volatile long bytesWritten;
+
+    @Override
+    public void open(AudioFormat format) {
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        bytesWritten += length; // Single writer (mixer thread)
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Returns the number of bytes discarded so far.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,268 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts PCM audio bytes to samples and back, in bulk.
+ * It supports 8, 16 and 24-bit samples, signed or unsigned, little or big endian. The samples can be
+ * 16-bit values (short) or normalized values between -1 and 1 (float); 24-bit samples are reduced to their
+ * 16 most significant bits when they are decoded to short. Full scale is 32768 (8388608 for 24 bits) in both
+ * directions, so decoding and encoding again gives back the same samples. The 16-bit formats are converted through
+ * a {@link ShortBuffer} view of the audio bytes, so the byte order is handled by a bulk copy.
+ * The views and the scratch arrays are reused, so a codec does not allocate memory once it has seen its
+ * largest block, but it must be used by only one thread.
+ */
+public class PcmCodec {
+
+    private static final float SHORT_FULL_SCALE = 32768f;
+    private static final float INT24_FULL_SCALE = 8388608f;
+    private static final float SHORT_SCALE = 1.0f / SHORT_FULL_SCALE;
+    private static final float INT24_SCALE = 1.0f / INT24_FULL_SCALE;
+
+    private final AudioFormat format;
+    private final int bytesPerSample;
+    private final boolean signed;
+    private final boolean bigEndian;
+    private final ByteOrder order;
+
+    // Views of the last arrays used, so they are not wrapped again on each call
+    private final ArrayView source = new ArrayView();
+    private final ArrayView target = new ArrayView();
+    private short[] scratch = new short[0];
+
+    /**
+     * Creates a codec for an audio format.
+     *
+     * @param format Audio format of the bytes
+     * @throws IllegalArgumentException If the format is not 8, 16 or 24-bit PCM
+     */
+    public PcmCodec(AudioFormat format) {
+        AudioFormat.Encoding encoding = format.getEncoding();
+        int bits = format.getSampleSizeInBits();
+        if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding) && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported audio encoding: " + encoding);
+        }
+        if (bits != 8 && bits != 16 && bits != 24) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bits + " bits");
+        }
+        this.format = format;
+        this.bytesPerSample = bits / 8;
+        this.signed = AudioFormat.Encoding.PCM_SIGNED.equals(encoding);
+        this.bigEndian = format.isBigEndian();
+        this.order = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * Returns the audio format of the codec.
+     *
+     * @return Audio format
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the size of one sample (one channel) in bytes.
+     *
+     * @return Bytes per sample
+     */
+    public int getBytesPerSample() {
+        return bytesPerSample;
+    }
+
+    /**
+     * Decodes audio bytes to 16-bit samples. The channels stay interleaved.
+     *
+     * @param src       Audio bytes
+     * @param offset    Offset of the first byte
+     * @param length    Number of bytes (a multiple of the sample size)
+     * @param dst       Array where the samples are stored
+     * @param dstOffset Offset of the first sample
+     * @return Number of decoded samples
+     */
+    public int decode(byte[] src, int offset, int length, short[] dst, int dstOffset) {
+        int count = length / bytesPerSample;
+        switch (bytesPerSample) {
+            case 2:
+                if ((offset & 1) == 0) {
+                    source.of(src, order).shorts.get(offset >> 1, dst, dstOffset, count); // Bulk copy with the byte order
+                } else {
+                    ByteBuffer bytes = source.of(src, order).bytes;
+                    for (int i = 0; i < count; i++) {
+                        dst[dstOffset + i] = bytes.getShort(offset + 2 * i);
+                    }
+                }
+                if (!signed) {
+                    for (int i = dstOffset; i < dstOffset + count; i++) {
+                        dst[i] ^= (short) 0x8000; // Move the unsigned range to the signed range
+                    }
+                }
+                break;
+            case 1:
+                int flip = signed ? 0 : 0x80;
+                for (int i = 0; i < count; i++) {
+                    dst[dstOffset + i] = (short) ((byte) (src[offset + i] ^ flip) << 8);
+                }
+                break;
+            default:
+                int high = bigEndian ? 0 : 2;   // Position of the most significant byte
+                int middle = 1;
+                int flip24 = signed ? 0 : 0x8000;
+                for (int i = 0, p = offset; i < count; i++, p += 3) {
+                    dst[dstOffset + i] = (short) (((src[p + high] << 8) | (src[p + middle] & 0xFF)) ^ flip24);
+                }
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Decodes audio bytes to normalized samples between -1 and 1. The channels stay interleaved.
+     *
+     * @param src       Audio bytes
+     * @param offset    Offset of the first byte
+     * @param length    Number of bytes (a multiple of the sample size)
+     * @param dst       Array where the samples are stored
+     * @param dstOffset Offset of the first sample
+     * @return Number of decoded samples
+     */
+    public int decode(byte[] src, int offset, int length, float[] dst, int dstOffset) {
+        int count = length / bytesPerSample;
+        if (bytesPerSample == 3) { // Keep the 24 bits of precision
+            int high = bigEndian ? 0 : 2;
+            int low = bigEndian ? 2 : 0;
+            int flip = signed ? 0 : 0x800000;
+            for (int i = 0, p = offset; i < count; i++, p += 3) {
+                int value = (src[p + high] << 16) | ((src[p + 1] & 0xFF) << 8) | (src[p + low] & 0xFF);
+                dst[dstOffset + i] = (((value ^ flip) << 8) >> 8) * INT24_SCALE;
+            }
+            return count;
+        }
+        short[] samples = scratch(count);
+        decode(src, offset, length, samples, 0);
+        for (int i = 0; i < count; i++) { // 8-bit samples are already shifted to 16 bits
+            dst[dstOffset + i] = samples[i] * SHORT_SCALE;
+        }
+        return count;
+    }
+
+    /**
+     * Encodes 16-bit samples to audio bytes. 24-bit formats get a zero least significant byte.
+     *
+     * @param src       Samples
+     * @param offset    Offset of the first sample
+     * @param count     Number of samples
+     * @param dst       Array where the audio bytes are stored
+     * @param dstOffset Offset of the first byte
+     * @return Number of encoded bytes
+     */
+    public int encode(short[] src, int offset, int count, byte[] dst, int dstOffset) {
+        switch (bytesPerSample) {
+            case 2:
+                ArrayView view = target.of(dst, order);
+                if (signed && (dstOffset & 1) == 0) {
+                    view.shorts.put(dstOffset >> 1, src, offset, count); // Bulk copy with the byte order
+                } else {
+                    short flip = signed ? 0 : (short) 0x8000;
+                    for (int i = 0; i < count; i++) {
+                        view.bytes.putShort(dstOffset + 2 * i, (short) (src[offset + i] ^ flip));
+                    }
+                }
+                break;
+            case 1:
+                int flip = signed ? 0 : 0x80;
+                for (int i = 0; i < count; i++) {
+                    dst[dstOffset + i] = (byte) ((src[offset + i] >> 8) ^ flip);
+                }
+                break;
+            default:
+                int high = bigEndian ? 0 : 2;
+                int low = bigEndian ? 2 : 0;
+                int flip24 = signed ? 0 : 0x80;
+                for (int i = 0, p = dstOffset; i < count; i++, p += 3) {
+                    short value = src[offset + i];
+                    dst[p + high] = (byte) ((value >> 8) ^ flip24);
+                    dst[p + 1] = (byte) value;
+                    dst[p + low] = 0;
+                }
+                break;
+        }
+        return count * bytesPerSample;
+    }
+
+    /**
+     * Encodes normalized samples to audio bytes. The samples are clipped to the range between -1 and 1.
+     *
+     * @param src       Samples
+     * @param offset    Offset of the first sample
+     * @param count     Number of samples
+     * @param dst       Array where the audio bytes are stored
+     * @param dstOffset Offset of the first byte
+     * @return Number of encoded bytes
+     */
+    public int encode(float[] src, int offset, int count, byte[] dst, int dstOffset) {
+        if (bytesPerSample == 3) { // Keep the 24 bits of precision
+            int high = bigEndian ? 0 : 2;
+            int low = bigEndian ? 2 : 0;
+            int flip = signed ? 0 : 0x800000;
+            for (int i = 0, p = dstOffset; i < count; i++, p += 3) {
+                int value = Math.round(src[offset + i] * INT24_FULL_SCALE);
+                value = Math.max(-0x800000, Math.min(0x7FFFFF, value)) ^ flip;
+                dst[p + high] = (byte) (value >> 16);
+                dst[p + 1] = (byte) (value >> 8);
+                dst[p + low] = (byte) value;
+            }
+            return count * 3;
+        }
+        short[] samples = scratch(count);
+        for (int i = 0; i < count; i++) {
+            samples[i] = toShort(src[offset + i]);
+        }
+        return encode(samples, 0, count, dst, dstOffset);
+    }
+
+    /**
+     * Converts a normalized sample to a 16-bit sample, clipping it to the 16-bit range.
+     *
+     * @param sample Normalized sample
+     * @return 16-bit sample
+     */
+    public static short toShort(float sample) {
+        int value = Math.round(sample * SHORT_FULL_SCALE);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    /**
+     * Returns the scratch array, making it larger if necessary.
+     *
+     * @param length Number of samples needed
+     * @return Scratch array
+     */
+    private short[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new short[length];
+        }
+        return scratch;
+    }
+
+    /**
+     * Byte and short views of an array, created again only when the array changes.
+     */
+    private static final class ArrayView {
+        private byte[] array;
+        ByteBuffer bytes;
+        ShortBuffer shorts;
+
+        ArrayView of(byte[] newArray, ByteOrder order) {
+            if (array != newArray) {
+                array = newArray;
+                bytes = ByteBuffer.wrap(newArray).order(order);
+                shorts = bytes.asShortBuffer();
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring buffer of PCM frames with one producer and many consumers.
+ * The producer (the ingest thread) never waits: when the ring is full it overwrites the oldest frames.
+ * Each consumer (playback, visualization, ...) reads through its own {@link Cursor}, so a slow consumer
+ * only loses frames itself, according to its {@link OverrunPolicy}, and never delays the ingest of the stream.
+ * Each slot is protected by a sequence number (seqlock): a consumer copies the slot and then checks that
+ * the sequence did not change, so it never returns a frame that was overwritten while it was being copied.
+ */
+public class PcmRingBuffer {
+
+    private static final long BUSY = -1;    // Sequence of a slot that is being written
+
+    /**
+     * What a consumer does when it falls behind the producer.
+     */
+    public enum OverrunPolicy {
+        /**
+         * Drop only the oldest frames, so the consumer continues with the oldest frame still in the ring
+         * (or with the frame that keeps its lag at the maximum lag). Best for playback continuity.
+         */
+        DROP_OLDEST,
+        /**
+         * Skip everything and continue with the newest frame. Best for visualization, which only shows the present.
+         */
+        SKIP_TO_LATEST
+    }
+
+    private final int slots;                // Number of slots (power of two)
+    private final int mask;                 // Mask to convert a sequence to a slot index
+    private final int slotBytes;            // Capacity of each slot in bytes
+    private final byte[] data;              // Audio data of all the slots
+    private final int[] lengths;            // Number of bytes stored in each slot
+    private final long[] timestamps;        // Time (System.nanoTime) when each slot was published
+    private final AtomicLongArray sequences; // Sequence stored in each slot
+    private final AtomicLong head = new AtomicLong(); // Sequence of the next frame that will be published
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile Cursor[] cursors = new Cursor[0];
+    private volatile boolean closed;
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param slots     Number of frames that the ring can hold (rounded up to a power of two)
+     * @param slotBytes Maximum size of each frame in bytes
+     * @throws IllegalArgumentException If the number of slots is not between 1 and 2^30
+     */
+    public PcmRingBuffer(int slots, int slotBytes) {
+        if (slots < 1 || slots > 1 << 30) {
+            throw new IllegalArgumentException("Invalid number of slots: " + slots);
+        }
+        this.slots = slots == 1 ? 1 : Integer.highestOneBit(slots - 1) << 1; // Next power of two (or the same)
+        this.mask = this.slots - 1;
+        this.slotBytes = slotBytes;
+        this.data = new byte[this.slots * slotBytes];
+        this.lengths = new int[this.slots];
+        this.timestamps = new long[this.slots];
+        this.sequences = new AtomicLongArray(this.slots);
+        for (int i = 0; i < this.slots; i++) {
+            sequences.set(i, BUSY); // No slot holds a frame yet
+        }
+    }
+
+    /**
+     * Publishes the audio data between the position and the limit of the buffer. The data is split into frames
+     * of at most one slot, without cutting audio frames. Only the producer thread can call this method.
+     *
+     * @param src       Buffer with the audio data (its position is moved to its limit)
+     * @param frameSize Size of one audio frame in bytes
+     */
+    public void publish(ByteBuffer src, int frameSize) {
+        int chunk = slotBytes - slotBytes % frameSize;
+        long now = System.nanoTime();
+        while (src.hasRemaining()) {
+            long sequence = head.get();
+            int index = (int) sequence & mask;
+            int length = Math.min(chunk, src.remaining());
+            sequences.set(index, BUSY);     // Consumers reading this slot will see that it changed
+            VarHandle.storeStoreFence();    // The slot is marked busy before its data changes
+            src.get(data, index * slotBytes, length);
+            lengths[index] = length;
+            timestamps[index] = now;
+            sequences.setRelease(index, sequence);
+            head.setRelease(sequence + 1);
+        }
+        wakeUpConsumers();
+    }
+
+    /**
+     * Marks the end of the stream. The consumers can read the remaining frames and then see the ring as finished.
+     */
+    public void close() {
+        closed = true;
+        wakeUpConsumers();
+    }
+
+    /**
+     * Returns true if the producer closed the ring.
+     *
+     * @return True if the stream finished
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the maximum size of one frame.
+     *
+     * @return Slot size in bytes
+     */
+    public int getSlotBytes() {
+        return slotBytes;
+    }
+
+    /**
+     * Returns the number of times a consumer fell behind and had to drop or skip frames.
+     *
+     * @return Number of overruns of all the consumers
+     */
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    /**
+     * Returns the number of frames dropped or skipped by all the consumers.
+     *
+     * @return Number of dropped frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames published so far.
+     *
+     * @return Number of published frames
+     */
+    public long getPublishedFrames() {
+        return head.get();
+    }
+
+    /**
+     * Creates a new consumer that starts with the next published frame.
+     *
+     * @param policy What the consumer does when it falls behind
+     * @param maxLag Maximum number of frames the consumer may fall behind before frames are dropped
+     *               (it is limited to the size of the ring)
+     * @return The cursor of the new consumer
+     */
+    public synchronized Cursor newCursor(OverrunPolicy policy, int maxLag) {
+        Cursor cursor = new Cursor(policy, Math.max(1, Math.min(maxLag, slots - 1)), head.get());
+        Cursor[] newCursors = new Cursor[cursors.length + 1];
+        System.arraycopy(cursors, 0, newCursors, 0, cursors.length);
+        newCursors[cursors.length] = cursor;
+        cursors = newCursors;
+        return cursor;
+    }
+
+    /**
+     * Removes a consumer, so the producer stops waking it up.
+     *
+     * @param cursor The cursor of the consumer
+     */
+    public synchronized void removeCursor(Cursor cursor) {
+        Cursor[] current = cursors;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == cursor) {
+                Cursor[] newCursors = new Cursor[current.length - 1];
+                System.arraycopy(current, 0, newCursors, 0, i);
+                System.arraycopy(current, i + 1, newCursors, i, current.length - i - 1);
+                cursors = newCursors;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wakes up the consumers that are waiting for data.
+     */
+    private void wakeUpConsumers() {
+        for (Cursor cursor : cursors) {
+            Thread waiter = cursor.waiter;
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    /**
+     * Read position of one consumer. A cursor must be used by only one thread.
+     */
+    public final class Cursor {
+        private final OverrunPolicy policy;
+        private final int maxLag;
+        private long next;                  // Sequence of the next frame to read
+        private long timestamp;             // Publication time of the last frame read
+        private volatile Thread waiter;     // Consumer thread waiting for data
+        private volatile long overrunCount;
+        private volatile long droppedCount;
+
+        private Cursor(OverrunPolicy policy, int maxLag, long next) {
+            this.policy = policy;
+            this.maxLag = maxLag;
+            this.next = next;
+        }
+
+        /**
+         * Copies the next frame into the destination array without waiting.
+         *
+         * @param dst    Destination array (at least one slot long from the offset)
+         * @param offset Offset in the destination array
+         * @return Number of bytes copied, 0 if there is no new frame, or -1 if the ring is closed and empty
+         */
+        public int read(byte[] dst, int offset) {
+            while (true) {
+                boolean finished = closed;  // Read before the head, so no frame published before closing is missed
+                long available = head.getAcquire();
+                if (next >= available) {
+                    return finished ? -1 : 0;
+                }
+                if (available - next > maxLag) {
+                    skip(available);        // The consumer is too far behind
+                    continue;
+                }
+                int index = (int) next & mask;
+                if (sequences.getAcquire(index) != next) {
+                    skip(head.getAcquire()); // The slot was overwritten before we could read it
+                    continue;
+                }
+                int length = lengths[index];
+                long published = timestamps[index];
+                System.arraycopy(data, index * slotBytes, dst, offset, length);
+                VarHandle.loadLoadFence();  // The copy is finished before the sequence is checked again
+                if (sequences.getAcquire(index) != next) {
+                    skip(head.getAcquire()); // The slot was overwritten while it was copied
+                    continue;
+                }
+                next++;
+                timestamp = published;
+                return length;
+            }
+        }
+
+        /**
+         * Copies the next frame into the destination array, waiting for it if necessary.
+         *
+         * @param dst          Destination array (at least one slot long from the offset)
+         * @param offset       Offset in the destination array
+         * @param timeoutNanos Maximum time to wait in nanoseconds
+         * @return Number of bytes copied, 0 if the timeout expired, or -1 if the ring is closed and empty
+         */
+        public int read(byte[] dst, int offset, long timeoutNanos) {
+            int length = read(dst, offset);
+            if (length != 0) {
+                return length;
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            waiter = Thread.currentThread();
+            try {
+                while ((length = read(dst, offset)) == 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            } finally {
+                waiter = null;
+            }
+            return length;
+        }
+
+        /**
+         * Returns the time when the last frame read by this consumer was published, to measure the latency of the
+         * consumer.
+         *
+         * @return Publication time (System.nanoTime), or 0 if no frame was read
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the number of frames published but not yet read by this consumer.
+         *
+         * @return Lag in frames
+         */
+        public long getLag() {
+            return head.get() - next;
+        }
+
+        /**
+         * Returns the number of times this consumer fell behind.
+         *
+         * @return Number of overruns
+         */
+        public long getOverruns() {
+            return overrunCount;
+        }
+
+        /**
+         * Returns the number of frames dropped or skipped by this consumer.
+         *
+         * @return Number of dropped frames
+         */
+        public long getDroppedFrames() {
+            return droppedCount;
+        }
+
+        /**
+         * Moves the cursor forward according to the overrun policy and updates the counters.
+         *
+         * @param available Sequence of the next frame that will be published
+         */
+        private void skip(long available) {
+            long target = policy == OverrunPolicy.SKIP_TO_LATEST
+                    ? available - 1
+                    : available - maxLag;
+            target = Math.max(target, next + 1); // Always move forward, so an overwritten slot is never read again
+            long dropped = target - next;
+            next = target;
+            overrunCount++;
+            droppedCount += dropped;
+            overruns.incrementAndGet();
+            droppedFrames.addAndGet(dropped);
+        }
+    }
+}
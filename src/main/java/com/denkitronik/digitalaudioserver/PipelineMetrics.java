@@ -0,0 +1,316 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Counters and latency histograms of the audio pipeline, from the socket of the devices to the sound card and the
+ * waveform window. The values are read from the ingest server and the mixer when they are requested, so collecting
+ * them costs nothing to the audio threads. They are published through JMX and in the Prometheus text format
+ * ({@link MetricsHttpServer}), so an alert can fire when the pipeline starts falling behind.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+    private static final String PREFIX = "digitalaudioserver_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final AudioIngestServer ingestServer;
+    private final UdpIngestServer udpServer;    // Null if the server does not receive UDP streams
+    private final AudioMixer mixer;
+    private final LatencyHistogram renderLag = new LatencyHistogram();
+    private volatile RelayServer relayServer;   // Null until the relay is started
+    private volatile SoundCardSink soundCard;   // Null if the mix is not played on the sound card
+    private ObjectName objectName;
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param ingestServer Ingest server of the devices
+     * @param mixer        Mixer of the streams
+     */
+    public PipelineMetrics(AudioIngestServer ingestServer, AudioMixer mixer) {
+        this(ingestServer, null, mixer);
+    }
+
+    /**
+     * Creates the metrics of a server that also receives UDP streams.
+     *
+     * @param ingestServer Ingest server of the TCP devices
+     * @param udpServer    Ingest server of the UDP devices, or null
+     * @param mixer        Mixer of the streams
+     */
+    public PipelineMetrics(AudioIngestServer ingestServer, UdpIngestServer udpServer, AudioMixer mixer) {
+        this.ingestServer = ingestServer;
+        this.udpServer = udpServer;
+        this.mixer = mixer;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, named after the port of the server.
+     *
+     * @param port TCP port of the server
+     */
+    public synchronized void register(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("com.denkitronik.digitalaudioserver:type=PipelineMetrics,port=" + port);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            System.out.println("The metrics could not be published in JMX: " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // Already removed
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Adds the counters of the relay to the metrics.
+     *
+     * @param relayServer Relay of the listener clients
+     */
+    public void setRelayServer(RelayServer relayServer) {
+        this.relayServer = relayServer;
+    }
+
+    /**
+     * Adds the fill level and the counters of the sound card line to the metrics.
+     *
+     * @param soundCard Sink of the sound card
+     */
+    public void setSoundCard(SoundCardSink soundCard) {
+        this.soundCard = soundCard;
+    }
+
+    /**
+     * Returns the histogram where the GUI records the age of the waveform when it is shown.
+     *
+     * @return Render lag in nanoseconds
+     */
+    public LatencyHistogram getRenderLag() {
+        return renderLag;
+    }
+
+    /**
+     * Returns the histogram of the time from the devices to the ingest thread (only timestamped packets).
+     *
+     * @return Network latency in nanoseconds
+     */
+    public LatencyHistogram getNetworkLatency() {
+        return ingestServer.getNetworkLatency();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return ingestServer.getActiveStreamCount() + (udpServer != null ? udpServer.getActiveStreamCount() : 0);
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return ingestServer.getBytesReceived() + (udpServer != null ? udpServer.getBytesReceived() : 0);
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return ingestServer.getFramesReceived() + (udpServer != null ? udpServer.getFramesReceived() : 0);
+    }
+
+    @Override
+    public long getPacketsLost() {
+        return ingestServer.getPacketsLost();
+    }
+
+    @Override
+    public long getConcealedPackets() {
+        return udpServer != null ? udpServer.getPacketsConcealed() : 0;
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return mixer.getDroppedFrames();
+    }
+
+    @Override
+    public long getOverruns() {
+        return mixer.getOverruns();
+    }
+
+    @Override
+    public long getUnderruns() {
+        return mixer.getUnderruns();
+    }
+
+    @Override
+    public long getLateBlocks() {
+        return mixer.getLateBlocks();
+    }
+
+    @Override
+    public double getNetworkToIngestP99Micros() {
+        return ingestServer.getNetworkLatency().getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getIngestToPlaybackP99Micros() {
+        return mixer.getPlaybackLatency().getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getRenderLagP99Micros() {
+        return renderLag.getPercentile(99) / 1e3;
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "active_connections", "Devices currently connected", getActiveConnections());
+        counter(text, "connections_total", "Connections accepted", ingestServer.getConnectionsAccepted());
+        counter(text, "received_bytes_total", "Audio bytes received from the devices", getBytesReceived());
+        counter(text, "received_encoded_bytes_total", "Bytes received from the compressed streams, before decoding",
+                ingestServer.getEncodedBytesReceived());
+        counter(text, "received_frames_total", "Audio frames received from the devices", getFramesReceived());
+        counter(text, "received_packets_total", "Timestamped packets received", ingestServer.getPacketsReceived());
+        counter(text, "lost_packets_total", "Timestamped packets that never arrived", getPacketsLost());
+        counter(text, "mixer_blocks_total", "Blocks mixed", mixer.getBlocks());
+        counter(text, "mixer_late_blocks_total", "Mixer blocks more than one period late", getLateBlocks());
+        counter(text, "mixer_underruns_total", "Stream blocks with no audio when they were due", getUnderruns());
+        counter(text, "mixer_overruns_total", "Times the mixer fell behind the ring of a stream", getOverruns());
+        counter(text, "mixer_dropped_frames_total", "Frames dropped because a stream sent too fast", getDroppedFrames());
+        gauge(text, "mixer_inputs", "Streams in the mix", mixer.getInputCount());
+        summary(text, "network_to_ingest_seconds", "Time from the device to the ingest thread", ingestServer.getNetworkLatency());
+        if (udpServer != null) {
+            gauge(text, "udp_active_streams", "UDP streams currently active", udpServer.getActiveStreamCount());
+            counter(text, "udp_received_packets_total", "UDP packets received", udpServer.getPacketsReceived());
+            counter(text, "udp_reordered_packets_total", "UDP packets put back in order", udpServer.getPacketsReordered());
+            counter(text, "udp_late_packets_total", "UDP packets dropped because they arrived after they were concealed",
+                    udpServer.getPacketsLate());
+            counter(text, "udp_concealed_packets_total", "UDP packets lost and concealed", getConcealedPackets());
+            counter(text, "udp_concealed_frames_total", "Audio frames generated by the concealment",
+                    udpServer.getFramesConcealed());
+            counter(text, "udp_invalid_datagrams_total", "UDP datagrams not valid or from unknown devices",
+                    udpServer.getInvalidDatagrams());
+            summary(text, "udp_network_to_ingest_seconds", "Time from the device to the UDP ingest thread",
+                    udpServer.getNetworkLatency());
+        }
+        PlaybackScheduler playback = soundCard != null ? soundCard.getScheduler() : null;
+        if (playback != null) {
+            double frameRate = mixer.getFormat().getFrameRate();
+            gauge(text, "playback_fill_seconds", "Audio queued in the sound card line", playback.getFillFrames() / frameRate);
+            gauge(text, "playback_target_seconds", "Audio the scheduler keeps queued in the line",
+                    playback.getTargetFrames() / frameRate);
+            gauge(text, "playback_rate", "Playback speed applied to hold the target latency", playback.getRate());
+            counter(text, "playback_underruns_total", "Times the sound card line ran dry", playback.getUnderruns());
+            counter(text, "playback_overruns_total", "Writes that did not fit in the sound card line", playback.getOverruns());
+            counter(text, "playback_dropped_frames_total", "Frames dropped because the line was full",
+                    playback.getDroppedFrames());
+        }
+        RelayServer relay = relayServer;
+        if (relay != null) {
+            gauge(text, "relay_listeners", "Listener clients receiving audio from the relay", relay.getListenerCount());
+            counter(text, "relay_connections_total", "Listener connections accepted by the relay", relay.getListenersAccepted());
+            counter(text, "relay_sent_bytes_total", "Audio bytes sent to all the listeners", relay.getBytesSent());
+            counter(text, "relay_skipped_frames_total", "Ring frames skipped by slow listeners", relay.getSkippedChunks());
+            counter(text, "relay_stalled_listeners_total", "Listeners disconnected because they stopped receiving",
+                    relay.getStalledListeners());
+            counter(text, "relay_request_timeouts_total", "Clients disconnected because they sent no request in time",
+                    relay.getTimedOutRequests());
+        }
+        summary(text, "ingest_to_playback_seconds", "Time from the ingest thread to the write to the sink", mixer.getPlaybackLatency());
+        summary(text, "render_lag_seconds", "Age of the waveform when the GUI thread shows it", renderLag);
+        return text.toString();
+    }
+
+    /**
+     * Writes the HELP and TYPE lines and the value line of a gauge with a whole value.
+     *
+     * @param text  Text of the metrics
+     * @param name  Name of the metric, without the prefix
+     * @param help  Description of the metric
+     * @param value Value of the gauge
+     */
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes the HELP and TYPE lines and the value line of a gauge with a decimal value.
+     *
+     * @param text  Text of the metrics
+     * @param name  Name of the metric, without the prefix
+     * @param help  Description of the metric
+     * @param value Value of the gauge
+     */
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, help, "gauge");
+        text.append(PREFIX).append(name).append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+    }
+
+    /**
+     * Writes the HELP and TYPE lines and the value line of a counter.
+     *
+     * @param text  Text of the metrics
+     * @param name  Name of the metric, without the prefix
+     * @param help  Description of the metric
+     * @param value Total counted since the server started
+     */
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Writes the HELP and TYPE lines of a summary, one line per quantile in seconds, and the _sum and _count lines.
+     *
+     * @param text      Text of the metrics
+     * @param name      Name of the metric, without the prefix
+     * @param help      Description of the metric
+     * @param histogram Latencies measured
+     */
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        header(text, name, help, "summary");
+        for (double quantile : QUANTILES) {
+            text.append(PREFIX).append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getPercentile(quantile * 100))).append('\n');
+        }
+        text.append(PREFIX).append(name).append("_sum ").append(seconds(histogram.getSum())).append('\n');
+        text.append(PREFIX).append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    /**
+     * Writes the # HELP and # TYPE lines of a metric.
+     *
+     * @param text Text of the metrics
+     * @param name Name of the metric, without the prefix
+     * @param help Description of the metric
+     * @param type Prometheus type: gauge, counter or summary
+     */
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Converts nanoseconds to seconds, the unit of the Prometheus metrics.
+     *
+     * @param nanos Time in nanoseconds
+     * @return Time in seconds, with 9 decimals
+     */
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
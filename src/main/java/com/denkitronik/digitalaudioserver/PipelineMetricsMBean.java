@@ -0,0 +1,98 @@
+package com.denkitronik.digitalaudioserver;
+
+/**
+ * JMX view of the {@link PipelineMetrics} of the audio server. The latencies are in microseconds.
+ */
+public interface PipelineMetricsMBean {
+
+    /**
+     * Returns the number of devices currently connected.
+     *
+     * @return Number of connections
+     */
+    int getActiveConnections();
+
+    /**
+     * Returns the number of audio bytes received from all the streams.
+     *
+     * @return Number of bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * Returns the number of audio frames received from all the streams.
+     *
+     * @return Number of frames
+     */
+    long getFramesReceived();
+
+    /**
+     * Returns the number of timestamped packets that never arrived.
+     *
+     * @return Number of lost packets
+     */
+    long getPacketsLost();
+
+    /**
+     * Returns the number of UDP packets that never arrived in time and were concealed.
+     *
+     * @return Number of packets
+     */
+    long getConcealedPackets();
+
+    /**
+     * Returns the number of frames dropped by the mixer because a stream sent faster than it was played.
+     *
+     * @return Number of frames
+     */
+    long getDroppedFrames();
+
+    /**
+     * Returns the number of times the mixer fell behind the ring buffer of a stream.
+     *
+     * @return Number of overruns
+     */
+    long getOverruns();
+
+    /**
+     * Returns the number of times a stream had no audio when its block was due.
+     *
+     * @return Number of underruns
+     */
+    long getUnderruns();
+
+    /**
+     * Returns the number of mixer blocks that were more than one period late.
+     *
+     * @return Number of late blocks
+     */
+    long getLateBlocks();
+
+    /**
+     * Returns the 99th percentile of the time from the device to the ingest thread.
+     *
+     * @return Latency in microseconds
+     */
+    double getNetworkToIngestP99Micros();
+
+    /**
+     * Returns the 99th percentile of the time from the ingest thread to the write of the mix to the sink.
+     *
+     * @return Latency in microseconds
+     */
+    double getIngestToPlaybackP99Micros();
+
+    /**
+     * Returns the 99th percentile of the age of the waveform when the GUI thread shows it.
+     *
+     * @return Latency in microseconds
+     */
+    double getRenderLagP99Micros();
+
+    /**
+     * Returns all the metrics in the Prometheus text format.
+     *
+     * @return Metrics text
+     */
+    String getPrometheusText();
+}
@@ -0,0 +1,239 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Arrays;
+
+/**
+ * Feeds a {@link SourceDataLine} without ever blocking and keeps its fill level at a target latency.
+ * The mixer clock (System.nanoTime) and the clock of the sound card are never exactly the same, so a line fed at the
+ * mixer rate slowly fills up (the writes block and the latency grows) or runs dry (it clicks). Before each write the
+ * scheduler measures the audio queued in the line from {@link SourceDataLine#available()}, smooths the error against
+ * the target and resamples the block by at most {@link #MAX_RATE_ADJUSTMENT} (linear interpolation) to bring the fill
+ * level back to the target; such small changes of speed cannot be heard.
+ * An underrun (the frame position of the line reached the frames written) is counted and the line is filled again
+ * with silence up to the target. An overrun (the block does not fit in the free space of the line) is counted and
+ * the frames that do not fit are dropped instead of waiting. Only the mixer thread can use a scheduler.
+ */
+public class PlaybackScheduler {
+
+    /**
+     * Largest relative change of the playback speed.
+     */
+    public static final double MAX_RATE_ADJUSTMENT = 0.005;
+
+    static final double RATE_GAIN = 0.05;       // Speed change per unit of relative fill error
+    static final int ERROR_SMOOTHING = 32;      // Writes averaged by the fill error filter
+
+    private final SourceDataLine line;
+    private final PcmCodec codec;
+    private final int channels;
+    private final int frameSize;
+    private final int bufferBytes;
+    private final int targetFrames;
+    private final float[] previous;     // Last input frame of the previous block
+    private float[] input = new float[0];
+    private float[] output = new float[0];
+    private byte[] bytes = new byte[0];
+    private double position = -1;       // Position of the next output frame, in input frames from the block start
+    private double smoothedError;       // Fill error in frames
+    private long framesWritten;
+    private boolean primed;
+
+    // Statistics (written only by the mixer thread)
+    private volatile long underruns;
+    private volatile long overruns;
+    private volatile long droppedFrames;
+    private volatile int fillFrames;
+    private volatile double rate = 1;
+
+    /**
+     * Creates the scheduler of an open line.
+     *
+     * @param line          Line, already opened with its buffer size
+     * @param format        Format of the audio (PCM)
+     * @param targetLatency Target fill level of the line, in milliseconds
+     */
+    public PlaybackScheduler(SourceDataLine line, AudioFormat format, int targetLatency) {
+        this.line = line;
+        this.codec = new PcmCodec(format);
+        this.channels = format.getChannels();
+        this.frameSize = format.getFrameSize();
+        this.bufferBytes = line.getBufferSize();
+        int bufferFrames = bufferBytes / frameSize;
+        this.targetFrames = Math.min(Math.round(format.getSampleRate() * targetLatency / 1000), bufferFrames / 2);
+        this.previous = new float[channels];
+    }
+
+    /**
+     * Writes one block of audio to the line, resampled to hold the target latency. It never blocks.
+     *
+     * @param data   Audio bytes (whole frames)
+     * @param offset Offset of the first byte
+     * @param length Number of bytes
+     */
+    public void write(byte[] data, int offset, int length) {
+        if (length < frameSize) {
+            return;
+        }
+        int queued = (bufferBytes - line.available()) / frameSize;
+        if (!primed || line.getLongFramePosition() >= framesWritten) {
+            if (primed) {
+                underruns++; // The line played everything that was written
+            }
+            queued += writeSilence(targetFrames - queued);
+            smoothedError = 0;
+            primed = true;
+        }
+        fillFrames = queued;
+        smoothedError += (queued - targetFrames - smoothedError) / ERROR_SMOOTHING;
+        double adjustment = Math.max(-MAX_RATE_ADJUSTMENT,
+                Math.min(MAX_RATE_ADJUSTMENT, RATE_GAIN * smoothedError / Math.max(1, targetFrames)));
+        rate = 1 + adjustment;  // Faster when the line is too full
+        int frames = resample(data, offset, length / frameSize, rate);
+        writeFrames(codec.encode(output, 0, frames * channels, bytes(frames), 0));
+    }
+
+    /**
+     * Returns the number of times the line ran dry.
+     *
+     * @return Number of underruns
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Returns the number of writes that did not fit in the line.
+     *
+     * @return Number of overruns
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Returns the number of frames dropped by the overruns.
+     *
+     * @return Number of frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the audio that was queued in the line before the last write.
+     *
+     * @return Fill level in frames
+     */
+    public int getFillFrames() {
+        return fillFrames;
+    }
+
+    /**
+     * Returns the fill level that the scheduler holds.
+     *
+     * @return Target in frames
+     */
+    public int getTargetFrames() {
+        return targetFrames;
+    }
+
+    /**
+     * Returns the playback speed of the last block, relative to the mixer clock.
+     *
+     * @return Speed (1 when no adjustment is needed)
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Resamples a block with linear interpolation into the output array. The interpolation continues from the last
+     * frame of the previous block, so the blocks join without clicks.
+     *
+     * @param data   Audio bytes
+     * @param offset Offset of the first byte
+     * @param frames Number of input frames
+     * @param speed  Input frames consumed per output frame
+     * @return Number of output frames
+     */
+    private int resample(byte[] data, int offset, int frames, double speed) {
+        int count = frames * channels;
+        int maxOutput = ((int) (frames / (1 - MAX_RATE_ADJUSTMENT)) + 2) * channels;
+        if (input.length < count) {
+            input = new float[count];
+        }
+        if (output.length < maxOutput) {
+            output = new float[maxOutput];
+        }
+        codec.decode(data, offset, frames * frameSize, input, 0);
+        int out = 0;
+        double t = position;
+        while (t < frames - 1) {
+            int index = (int) Math.floor(t);
+            float fraction = (float) (t - index);
+            for (int channel = 0; channel < channels; channel++) {
+                float a = index < 0 ? previous[channel] : input[index * channels + channel];
+                float b = input[(index + 1) * channels + channel];
+                output[out++] = a + (b - a) * fraction;
+            }
+            t += speed;
+        }
+        position = t - frames; // Relative to the next block, where this block's last frame is at -1
+        System.arraycopy(input, (frames - 1) * channels, previous, 0, channels);
+        return out / channels;
+    }
+
+    /**
+     * Writes silence to the line.
+     *
+     * @param frames Number of frames (nothing is written if it is not positive)
+     * @return Number of frames written
+     */
+    private int writeSilence(int frames) {
+        if (frames <= 0) {
+            return 0;
+        }
+        int count = frames * channels;
+        if (output.length < count) {
+            output = new float[count];
+        }
+        Arrays.fill(output, 0, count, 0f);
+        int length = codec.encode(output, 0, count, bytes(frames), 0); // Unsigned formats are not silent at 0
+        return writeFrames(length) / frameSize;
+    }
+
+    /**
+     * Writes the first bytes of the byte buffer to the line, dropping the frames that do not fit.
+     *
+     * @param length Number of bytes (whole frames)
+     * @return Number of bytes written
+     */
+    private int writeFrames(int length) {
+        int free = line.available() / frameSize * frameSize;
+        if (length > free) {
+            overruns++;
+            droppedFrames += (length - free) / frameSize;
+            length = free;
+        }
+        if (length > 0) {
+            line.write(bytes, 0, length);
+            framesWritten += length / frameSize;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the byte buffer, large enough for some frames.
+     *
+     * @param frames Number of frames
+     * @return Byte buffer
+     */
+    private byte[] bytes(int frames) {
+        if (bytes.length < frames * frameSize) {
+            bytes = new byte[frames * frameSize];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,144 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.util.Arrays;
+
+/**
+ * Sample rate converter with a polyphase FIR filter, for a fixed ratio of two integer rates (for example 48 kHz to
+ * 44.1 kHz, that is 147/160). Conceptually the input is upsampled by L (zeros inserted), low-pass filtered and
+ * downsampled by M; the polyphase form computes only the output samples, each one with a single phase of the
+ * windowed-sinc filter ({@link #TAPS} multiplications per sample). Unlike the linear interpolation of the mixer,
+ * it removes the frequencies that would alias. The last input frames are kept between blocks, so the blocks join
+ * without clicks; the filter delays the audio by {@link #TAPS} / 2 input frames.
+ */
+public class PolyphaseResampler implements DspStage {
+
+    /**
+     * Number of filter taps per phase (input frames that contribute to each output frame).
+     */
+    public static final int TAPS = 24;
+
+    private static final double CUTOFF = 0.45; // Cutoff relative to the lower of the two rates
+
+    private final int channels;
+    private final int outputRate;
+    private final int up;               // L: phases of the filter
+    private final int down;             // M: input step per output frame, in phases
+    private final float[] coefficients; // Phase p uses coefficients[p * TAPS .. p * TAPS + TAPS - 1]
+    private float[] history = new float[0]; // Last TAPS - 1 input frames followed by the current block
+    private int index;                  // Input frame of the next output frame, relative to the history start
+    private int phase;                  // Phase of the next output frame
+
+    /**
+     * Creates the converter.
+     *
+     * @param channels   Number of channels
+     * @param inputRate  Sample rate of the input in hertz
+     * @param outputRate Sample rate of the output in hertz
+     * @throws IllegalArgumentException If a rate is not positive or the ratio needs too many phases
+     */
+    public PolyphaseResampler(int channels, int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rates: " + inputRate + " Hz to " + outputRate + " Hz");
+        }
+        int gcd = gcd(inputRate, outputRate);
+        this.channels = channels;
+        this.outputRate = outputRate;
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+        if (up > 1024) {
+            throw new IllegalArgumentException("The ratio " + inputRate + ":" + outputRate + " needs too many phases");
+        }
+        this.coefficients = design(up, down);
+        reset();
+    }
+
+    @Override
+    public int process(float[] block, int frames) {
+        int kept = (TAPS - 1) * channels;
+        int needed = kept + frames * channels;
+        if (history.length < needed) {
+            history = Arrays.copyOf(history, needed); // Only when the blocks grow
+        }
+        System.arraycopy(block, 0, history, kept, frames * channels);
+        int available = TAPS - 1 + frames;
+        int out = 0;
+        int i = index;
+        int p = phase;
+        while (i < available) {
+            int base = p * TAPS;
+            int newest = i * channels;
+            for (int c = 0; c < channels; c++) {
+                float sum = 0;
+                int from = newest + c;
+                for (int k = 0; k < TAPS; k++, from -= channels) {
+                    sum += coefficients[base + k] * history[from];
+                }
+                block[out++] = sum;
+            }
+            p += down;
+            i += p / up;
+            p %= up;
+        }
+        index = i - frames;
+        phase = p;
+        System.arraycopy(history, frames * channels, history, 0, kept); // Keep the newest input frames
+        return out / channels;
+    }
+
+    @Override
+    public int getMaxOutputFrames(int frames) {
+        return (int) ((long) frames * up / down) + 2;
+    }
+
+    @Override
+    public float getOutputSampleRate(float sampleRate) {
+        return outputRate;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(history, 0f);
+        index = TAPS - 1;
+        phase = 0;
+    }
+
+    /**
+     * Designs the prototype low-pass filter (a sinc with a Blackman window) and splits it in phases.
+     *
+     * @param up   Upsampling factor L
+     * @param down Downsampling factor M
+     * @return Coefficients grouped by phase, each phase ordered from the newest input frame to the oldest
+     */
+    private static float[] design(int up, int down) {
+        int length = up * TAPS;
+        double cutoff = CUTOFF / Math.max(up, down); // In cycles per sample of the upsampled signal
+        double center = (length - 1) / 2.0;
+        float[] phases = new float[length];
+        for (int n = 0; n < length; n++) {
+            double t = n - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+            int p = n % up;
+            int k = n / up;
+            phases[p * TAPS + k] = (float) (up * sinc * window); // Gain L makes up for the inserted zeros
+        }
+        return phases;
+    }
+
+    /**
+     * Returns the greatest common divisor of two numbers.
+     *
+     * @param a First number
+     * @param b Second number
+     * @return Greatest common divisor
+     */
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,211 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a recording written by a {@link StreamRecorder}, even while it is still being recorded.
+ * Any time range can be sent to a channel (a socket, a file, ...) with {@link FileChannel#transferTo}, so the audio
+ * goes from the page cache to the channel without being loaded on the Java heap.
+ * The time ranges are resolved with the index of the segments, with a resolution of about 100 ms.
+ */
+public class Recording {
+
+    private static final int REPLAY_CHUNK_MILLIS = 100; // Audio sent at once when the replay is paced in real time
+
+    /**
+     * One segment file and its index.
+     */
+    private static final class Segment {
+        final Path path;
+        final long[] times;     // Time when the audio was received (epoch milliseconds)
+        final long[] offsets;   // Offset of that audio in the segment data
+        final long end;         // End of the readable audio data
+
+        Segment(Path path, long[] times, long[] offsets, long end) {
+            this.path = path;
+            this.times = times;
+            this.offsets = offsets;
+            this.end = end;
+        }
+    }
+
+    private final AudioFormat format;
+    private final List<Segment> segments;
+
+    private Recording(AudioFormat format, List<Segment> segments) {
+        this.format = format;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens a recording directory and reads the index of its segments.
+     *
+     * @param directory Recording directory
+     * @return The recording
+     * @throws IOException If the directory has no readable segments
+     */
+    public static Recording open(Path directory) throws IOException {
+        AudioFormat format = null;
+        List<Segment> segments = new ArrayList<>();
+        for (int number = 1; ; number++) {
+            Path path = StreamRecorder.segmentPath(directory, number, "wav");
+            Path indexPath = StreamRecorder.segmentPath(directory, number, "idx");
+            if (!Files.exists(path) || !Files.exists(indexPath)) {
+                break;
+            }
+            WavFile wav;
+            try (InputStream input = Files.newInputStream(path)) {
+                wav = WavFile.open(input);
+            }
+            format = wav.getFormat();
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            int count = 0;
+            while (count < index.capacity() / StreamRecorder.INDEX_ENTRY_BYTES
+                    && index.getLong(count * StreamRecorder.INDEX_ENTRY_BYTES) != 0) {
+                count++; // A live index ends with empty entries
+            }
+            if (count == 0) {
+                continue;
+            }
+            long[] times = new long[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = index.getLong(i * StreamRecorder.INDEX_ENTRY_BYTES);
+                offsets[i] = index.getLong(i * StreamRecorder.INDEX_ENTRY_BYTES + 8);
+            }
+            long fileData = Files.size(path) - StreamRecorder.HEADER_BYTES;
+            boolean closed = wav.getDataLength() < fileData // Final header of a segment that could not be trimmed
+                    || fileData == wav.getDataLength() && index.capacity() == count * StreamRecorder.INDEX_ENTRY_BYTES;
+            // The audio of a live segment is known to be written only up to its last index entry
+            segments.add(new Segment(path, times, offsets, closed ? wav.getDataLength() : offsets[count - 1]));
+        }
+        if (segments.isEmpty()) {
+            throw new IOException("No recorded segments in " + directory);
+        }
+        return new Recording(format, segments);
+    }
+
+    /**
+     * Returns the audio format of the recording.
+     *
+     * @return Audio format
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the time when the recording started.
+     *
+     * @return Start time (epoch milliseconds)
+     */
+    public long getStartMillis() {
+        return segments.get(0).times[0];
+    }
+
+    /**
+     * Returns the time of the last indexed audio.
+     *
+     * @return End time (epoch milliseconds)
+     */
+    public long getEndMillis() {
+        Segment last = segments.get(segments.size() - 1);
+        return last.times[last.times.length - 1];
+    }
+
+    /**
+     * Sends the audio received between two times to a channel.
+     *
+     * @param fromMillis Start time (epoch milliseconds)
+     * @param toMillis   End time (epoch milliseconds)
+     * @param target     Channel that receives the audio
+     * @param realTime   True to send the audio at its playback speed, false to send it as fast as possible
+     * @return Number of bytes sent
+     * @throws IOException If the audio cannot be read or sent
+     */
+    public long transferTo(long fromMillis, long toMillis, WritableByteChannel target, boolean realTime) throws IOException {
+        int frameSize = format.getFrameSize();
+        long chunk = (long) (format.getFrameRate() * REPLAY_CHUNK_MILLIS / 1000) * frameSize;
+        double bytesPerNano = format.getFrameRate() * frameSize / 1e9;
+        long sent = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            long nextStart = i + 1 < segments.size() ? segments.get(i + 1).times[0] : Long.MAX_VALUE;
+            if (nextStart <= fromMillis) {
+                continue; // The whole segment is before the range
+            }
+            if (segment.times[0] >= toMillis) {
+                break;
+            }
+            long position = offsetAt(segment, fromMillis);
+            long end = toMillis >= nextStart ? segment.end : offsetAt(segment, toMillis, segment.end);
+            try (FileChannel channel = FileChannel.open(segment.path)) {
+                while (position < end) {
+                    long count = realTime ? Math.min(chunk, end - position) : end - position;
+                    long transferred = channel.transferTo(StreamRecorder.HEADER_BYTES + position, count, target);
+                    if (transferred <= 0) {
+                        throw new IOException("The channel does not accept more audio");
+                    }
+                    position += transferred;
+                    sent += transferred;
+                    if (realTime) {
+                        long wait = start + (long) (sent / bytesPerNano) - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait); // Wait until the audio sent so far has been played
+                        }
+                    }
+                }
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Finds the offset of the audio received at a given time: the offset of the last index entry before that time.
+     *
+     * @param segment    Segment of the recording
+     * @param timeMillis Time (epoch milliseconds)
+     * @return Offset in the segment data
+     */
+    private static long offsetAt(Segment segment, long timeMillis) {
+        int low = 0;
+        int high = segment.times.length - 1;
+        while (low < high) { // Last entry with a time lower than or equal to the given time
+            int middle = (low + high + 1) >>> 1;
+            if (segment.times[middle] <= timeMillis) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return Math.min(segment.offsets[low], segment.end);
+    }
+
+    /**
+     * Finds the offset of the first audio received at or after a given time.
+     *
+     * @param segment     Segment of the recording
+     * @param timeMillis  Time (epoch milliseconds)
+     * @param afterOffset Offset returned if the time is after the last entry of the segment
+     * @return Offset in the segment data
+     */
+    private static long offsetAt(Segment segment, long timeMillis, long afterOffset) {
+        for (int i = 0; i < segment.times.length; i++) { // Only used once per replay
+            if (segment.times[i] >= timeMillis) {
+                return Math.min(segment.offsets[i], segment.end);
+            }
+        }
+        return afterOffset;
+    }
+}
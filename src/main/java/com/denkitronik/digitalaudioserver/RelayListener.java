@@ -0,0 +1,80 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client of the {@link RelayServer}: it subscribes to the mix or to one stream of a server and writes the audio it
+ * receives to an {@link AudioSink}, so the server can be heard from another machine.
+ */
+public class RelayListener {
+
+    private static final int READ_BYTES = 4096;
+
+    private final String host;
+    private final int port;
+    private final String source;
+
+    /**
+     * Creates the listener.
+     *
+     * @param host   Host name or IP address of the server
+     * @param port   Relay port of the server
+     * @param source "mix", or the identifier of a stream
+     */
+    public RelayListener(String host, int port, String source) {
+        this.host = host;
+        this.port = port;
+        this.source = source;
+    }
+
+    /**
+     * Receives the audio and writes it to the sink until the stream ends or the connection fails.
+     *
+     * @param sink Sink where the audio is written (it is opened with the format announced by the relay)
+     * @throws IOException If the server cannot be reached, the stream header is not valid or the sink fails
+     */
+    public void listen(AudioSink sink) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream outputStream = socket.getOutputStream();
+            String request = source.equalsIgnoreCase("mix") ? "mix\n" : "stream " + source + "\n";
+            outputStream.write(request.getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+
+            InputStream inputStream = socket.getInputStream();
+            byte[] headerBytes = new byte[StreamHeader.SIZE];
+            try {
+                new DataInputStream(inputStream).readFully(headerBytes);
+            } catch (IOException e) {
+                throw new ProtocolException("The relay refused the request: " + request.trim());
+            }
+            AudioFormat format = StreamHeader.read(ByteBuffer.wrap(headerBytes)).getFormat();
+            System.out.println("Listening to " + (source.equalsIgnoreCase("mix") ? "the mix" : "stream " + source)
+                    + " from " + host + ":" + port + " (" + format + ")");
+            sink.open(format);
+            try {
+                int frameSize = format.getFrameSize();
+                byte[] buffer = new byte[READ_BYTES - READ_BYTES % frameSize + frameSize];
+                int pending = 0; // Bytes of an incomplete frame kept at the start of the buffer
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer, pending, buffer.length - pending)) > 0) {
+                    int available = pending + bytesRead;
+                    int whole = available - available % frameSize;
+                    sink.write(buffer, 0, whole);
+                    pending = available - whole;
+                    System.arraycopy(buffer, whole, buffer, 0, pending);
+                }
+            } finally {
+                sink.close();
+            }
+            System.out.println("Relay stream finished.");
+        }
+    }
+}
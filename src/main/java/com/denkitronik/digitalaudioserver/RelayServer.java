@@ -0,0 +1,673 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class rebroadcasts the audio of the server to many listener clients.
+ * A listener connects to the relay port and sends one line: {@code mix} to receive the mix, or
+ * {@code stream ID} to receive one stream (the identifier that the server prints when the stream starts). The relay
+ * answers with a {@link StreamHeader} that describes the audio format and then sends the PCM audio, live, until the
+ * stream ends or the listener disconnects.
+ * <p>
+ * Each source (the mix or a stream) is read once from its ring buffer, by one cursor, into a small backlog of direct
+ * buffers shared by all its listeners. Each listener only has its own position in the backlog, and its audio is sent
+ * with gathering writes of read-only views over the shared buffers, so the audio is never copied per listener.
+ * All the sockets are non-blocking and served by one thread, and the relay only reads the rings, so a slow listener
+ * never delays the ingest or the mixer. A listener that falls more than half the backlog behind skips to the newest
+ * audio (completing its last frame with silence, so it stays aligned), and a listener that accepts nothing for
+ * {@link #STALLED_NANOS} is disconnected, like a client that does not send its request within
+ * {@link #REQUEST_TIMEOUT_NANOS}.
+ */
+public class RelayServer implements Runnable {
+
+    /**
+     * Time without accepting any byte after which a listener is disconnected.
+     */
+    public static final long STALLED_NANOS = 5_000_000_000L;
+
+    /**
+     * Time after the connection within which a listener must send its request line.
+     */
+    public static final long REQUEST_TIMEOUT_NANOS = 5_000_000_000L;
+
+    private static final int BACKLOG_CHUNKS = 64;                   // Ring frames kept per source (power of two)
+    private static final int BACKLOG_MASK = BACKLOG_CHUNKS - 1;
+    private static final int MAX_LAG_CHUNKS = BACKLOG_CHUNKS / 2;   // Lag after which a listener skips ahead
+    private static final int MAX_GATHER = 16;                       // Buffers in one gathering write
+    private static final int MAX_REQUEST_BYTES = 64;
+    private static final int MAX_FRAME_BYTES = 256;                 // Largest audio frame (32 channels of 32 bits)
+    private static final int ACCEPT_BACKLOG = 512;                  // Listeners connect in bursts
+    private static final long TICK_MILLIS = 2;                      // Period of the ring checks
+
+    private final int port;
+    private final Map<Integer, AudioStream> streams;
+    private final PcmRingBuffer mixRing;
+    private final AudioFormat mixFormat;
+    private final Map<Integer, Source> sources = new HashMap<>();   // Relay thread only (key -1 for the mix)
+    private final ByteBuffer discard = ByteBuffer.allocateDirect(MAX_REQUEST_BYTES);
+    private final ByteBuffer zeros = ByteBuffer.allocateDirect(MAX_FRAME_BYTES).asReadOnlyBuffer();
+    private final ArrayDeque<Listener> pending = new ArrayDeque<>(); // Listeners waiting for their request, oldest first
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean running;
+
+    // Metrics (written only by the relay thread)
+    private volatile int listeners;
+    private volatile long listenersAccepted;
+    private volatile long bytesSent;
+    private volatile long skippedChunks;
+    private volatile long stalledListeners;
+    private volatile long timedOutRequests;
+
+    /**
+     * Creates the relay server.
+     *
+     * @param port      TCP port where the listeners connect (0 to use any free port)
+     * @param streams   Streams of the server by identifier, updated by the server while the relay runs
+     * @param mixRing   Output ring of the mixer
+     * @param mixFormat Format of the mix
+     */
+    public RelayServer(int port, Map<Integer, AudioStream> streams, PcmRingBuffer mixRing, AudioFormat mixFormat) {
+        this.port = port;
+        this.streams = streams;
+        this.mixRing = mixRing;
+        this.mixFormat = mixFormat;
+    }
+
+    /**
+     * Opens the listening socket and starts the relay thread.
+     *
+     * @throws IOException If the port cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        open();
+        running = true;
+        thread = new Thread(this, "audio-relay");
+        thread.start();
+    }
+
+    /**
+     * Stops the relay thread and disconnects all the listeners.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the port where the listeners connect.
+     *
+     * @return Local TCP port
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of listeners currently receiving audio.
+     *
+     * @return Number of listeners
+     */
+    public int getListenerCount() {
+        return listeners;
+    }
+
+    /**
+     * Returns the number of listener connections accepted since the relay started.
+     *
+     * @return Number of connections
+     */
+    public long getListenersAccepted() {
+        return listenersAccepted;
+    }
+
+    /**
+     * Returns the number of bytes sent to all the listeners, with the stream headers.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of ring frames that slow listeners skipped.
+     *
+     * @return Number of skipped frames
+     */
+    public long getSkippedChunks() {
+        return skippedChunks;
+    }
+
+    /**
+     * Returns the number of listeners disconnected because they stopped accepting audio.
+     *
+     * @return Number of listeners
+     */
+    public long getStalledListeners() {
+        return stalledListeners;
+    }
+
+    /**
+     * Returns the number of clients disconnected because they did not send their request in time.
+     *
+     * @return Number of clients
+     */
+    public long getTimedOutRequests() {
+        return timedOutRequests;
+    }
+
+    /**
+     * Relay loop. Serves the listeners and sends them the new audio of their sources until the relay is stopped.
+     */
+    @Override
+    public void run() {
+        System.out.println("Audio relay listening on port " + getLocalPort() + "...");
+        try {
+            while (running) {
+                tick(TICK_MILLIS);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("Audio relay stopped: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Opens the listening socket, without starting the relay thread.
+     *
+     * @throws IOException If the port cannot be opened
+     */
+    void open() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs one iteration of the relay: serves the ready sockets, reads the new audio of the sources and sends it.
+     * Only the relay thread (or a benchmark that did not start it) can call this method.
+     *
+     * @param timeoutMillis Maximum time to wait for a ready socket, or 0 to not wait
+     * @throws IOException If the listening socket fails
+     */
+    void tick(long timeoutMillis) throws IOException {
+        if (timeoutMillis > 0) {
+            selector.select(timeoutMillis);
+        } else {
+            selector.selectNow();
+        }
+        long now = System.nanoTime();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept(now);
+                continue;
+            }
+            Listener listener = (Listener) key.attachment();
+            if (key.isReadable()) {
+                read(listener, now);
+            }
+            if (key.isValid() && key.isWritable()) {
+                listener.blocked = false;
+                key.interestOps(SelectionKey.OP_READ);
+                send(listener, now);
+            }
+        }
+        expireRequests(now);
+        Iterator<Source> iterator = sources.values().iterator();
+        while (iterator.hasNext()) {
+            Source source = iterator.next();
+            pump(source, now);
+            if (source.listeners.isEmpty()) {
+                source.ring.removeCursor(source.cursor);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Accepts all the pending connections and waits for their requests.
+     *
+     * @param now Current time
+     * @throws IOException If the listening socket fails
+     */
+    private void accept(long now) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Listener listener = new Listener(channel, now);
+                listener.key = channel.register(selector, SelectionKey.OP_READ, listener);
+                pending.addLast(listener);
+                listenersAccepted++;
+            } catch (IOException e) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Disconnects the listeners that did not send their request in time, so idle connections do not pile up.
+     * The pending listeners are in the order they connected, so only the oldest ones are checked.
+     *
+     * @param now Current time
+     */
+    private void expireRequests(long now) {
+        Listener listener;
+        while ((listener = pending.peekFirst()) != null) {
+            if (listener.source != null || !listener.channel.isOpen()) {
+                pending.pollFirst(); // Subscribed or already closed
+            } else if (now - listener.lastProgressNanos > REQUEST_TIMEOUT_NANOS) {
+                pending.pollFirst();
+                timedOutRequests++;
+                System.out.println("Relay listener " + listener + " disconnected: no request received");
+                close(listener);
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads from a listener: its request, or nothing but the end of the connection once it is subscribed.
+     *
+     * @param listener Listener
+     * @param now      Current time
+     */
+    private void read(Listener listener, long now) {
+        ByteBuffer buffer = listener.source == null ? listener.request : discard.clear();
+        int bytesRead;
+        try {
+            bytesRead = listener.channel.read(buffer);
+        } catch (IOException e) {
+            bytesRead = -1;
+        }
+        if (bytesRead < 0) {
+            close(listener);
+        } else if (listener.source == null) {
+            readRequest(listener, now);
+        }
+    }
+
+    /**
+     * Subscribes a listener to the source named in its request, once the whole line has arrived.
+     *
+     * @param listener Listener
+     * @param now      Current time
+     */
+    private void readRequest(Listener listener, long now) {
+        ByteBuffer request = listener.request;
+        int end = -1;
+        for (int i = 0; i < request.position(); i++) {
+            if (request.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (!request.hasRemaining()) {
+                System.out.println("Invalid relay request from " + listener + ": line too long");
+                close(listener);
+            }
+            return; // Wait for the rest of the line
+        }
+        String line = new String(request.array(), 0, end, StandardCharsets.US_ASCII).trim();
+        Source source = findSource(line);
+        if (source == null) {
+            System.out.println("Invalid relay request from " + listener + ": " + line);
+            close(listener);
+            return;
+        }
+        listener.subscribe(source, now);
+        source.listeners.add(listener);
+        listeners++;
+        System.out.println("Relay listener " + listener + " subscribed to " + source.name);
+        send(listener, now);
+    }
+
+    /**
+     * Returns the source named in a request, creating it if it has no listeners yet.
+     *
+     * @param line Request line: "mix" or "stream ID"
+     * @return The source, or null if the request is not valid or the stream does not exist
+     */
+    private Source findSource(String line) {
+        int id;
+        if (line.equalsIgnoreCase("mix")) {
+            id = -1;
+        } else if (line.regionMatches(true, 0, "stream ", 0, 7)) {
+            try {
+                id = Integer.parseInt(line.substring(7).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        Source source = sources.get(id);
+        if (source != null) {
+            return source;
+        }
+        if (id == -1) {
+            source = new Source("the mix", mixRing, new StreamHeader(mixFormat, 0).toBytes(), mixFormat.getFrameSize());
+        } else {
+            AudioStream stream = streams.get(id);
+            if (stream == null || stream.getRing() == null || stream.getRing().isClosed()) {
+                return null;
+            }
+            source = new Source("stream " + id, stream.getRing(),
+                    new StreamHeader(stream.getFormat(), stream.getDeviceStreamId()).toBytes(), stream.getFrameSize());
+        }
+        sources.put(id, source);
+        return source;
+    }
+
+    /**
+     * Reads the new frames of a source into its backlog and sends them to its listeners.
+     * At most half the backlog is read in one iteration and, at the end, no listener is more than half the backlog
+     * behind, so the frames that a listener is sending are never overwritten.
+     *
+     * @param source Source
+     * @param now    Current time
+     */
+    private void pump(Source source, long now) {
+        for (int i = 0; i < MAX_LAG_CHUNKS; i++) {
+            int index = (int) source.head & BACKLOG_MASK;
+            ByteBuffer chunk = source.chunks[index];
+            int length = source.cursor.read(source.frame, 0);
+            if (length < 0) {
+                source.finished = true;
+                break;
+            } else if (length == 0) {
+                break;
+            }
+            chunk.clear();
+            chunk.put(source.frame, 0, length); // The only copy of the audio, shared by all the listeners
+            source.lengths[index] = length;
+            source.head++;
+        }
+        List<Listener> sourceListeners = source.listeners;
+        for (int i = sourceListeners.size() - 1; i >= 0; i--) {
+            Listener listener = sourceListeners.get(i);
+            if (source.head - listener.next > MAX_LAG_CHUNKS) {
+                skip(listener);
+            }
+            if (!listener.blocked) {
+                send(listener, now);
+                if (!listener.channel.isOpen()) {
+                    continue; // The connection failed
+                }
+            } else if (now - listener.lastProgressNanos > STALLED_NANOS) {
+                stalledListeners++;
+                System.out.println("Relay listener " + listener + " disconnected: it stopped receiving audio");
+                close(listener);
+                continue;
+            }
+            if (source.finished && listener.isIdle()) {
+                close(listener); // The stream ended and the listener received all its audio
+            }
+        }
+    }
+
+    /**
+     * Moves a slow listener to the newest audio of its source. If it was in the middle of an audio frame, the frame
+     * is completed with silence, so the listener stays aligned on the frames.
+     *
+     * @param listener Listener that fell behind
+     */
+    private void skip(Listener listener) {
+        Source source = listener.source;
+        int partial = listener.offset % source.frameSize;
+        listener.padding.clear().limit(partial == 0 ? 0 : source.frameSize - partial);
+        skippedChunks += source.head - listener.next;
+        listener.next = source.head;
+        listener.offset = 0;
+    }
+
+    /**
+     * Sends to a listener everything it has not received yet: the header, the padding after a skip and the frames of
+     * the backlog, with as few gathering writes as possible. If the socket is full, the listener waits until it is
+     * writable again.
+     *
+     * @param listener Listener
+     * @param now      Current time
+     */
+    private void send(Listener listener, long now) {
+        Source source = listener.source;
+        if (source == null) {
+            return;
+        }
+        try {
+            if (!write(listener, listener.header, now) || !write(listener, listener.padding, now)) {
+                return;
+            }
+            ByteBuffer[] gather = listener.gather;
+            while (listener.next < source.head) {
+                int count = 0;
+                for (long sequence = listener.next; count < MAX_GATHER && sequence < source.head; sequence++) {
+                    int index = (int) sequence & BACKLOG_MASK;
+                    ByteBuffer view = listener.views[index];
+                    view.limit(source.lengths[index]).position(count == 0 ? listener.offset : 0);
+                    gather[count++] = view;
+                }
+                long written = listener.channel.write(gather, 0, count);
+                if (written > 0) {
+                    bytesSent += written;
+                    listener.lastProgressNanos = now;
+                }
+                for (int i = 0; i < count; i++) {
+                    if (gather[i].hasRemaining()) {
+                        listener.offset = gather[i].position();
+                        block(listener); // The socket is full
+                        return;
+                    }
+                    listener.next++;
+                    listener.offset = 0;
+                }
+            }
+            listener.lastProgressNanos = now; // Up to date
+        } catch (IOException e) {
+            close(listener);
+        }
+    }
+
+    /**
+     * Writes a small buffer to a listener.
+     *
+     * @param listener Listener
+     * @param buffer   Data to write
+     * @param now      Current time
+     * @return True if the whole buffer was written
+     * @throws IOException If the connection fails
+     */
+    private boolean write(Listener listener, ByteBuffer buffer, long now) throws IOException {
+        if (buffer.hasRemaining()) {
+            int written = listener.channel.write(buffer);
+            if (written > 0) {
+                bytesSent += written;
+                listener.lastProgressNanos = now;
+            }
+            if (buffer.hasRemaining()) {
+                block(listener);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the socket of a listener to be writable before sending it more audio.
+     *
+     * @param listener Listener whose socket is full
+     */
+    private void block(Listener listener) {
+        listener.blocked = true;
+        listener.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Disconnects a listener.
+     *
+     * @param listener Listener
+     */
+    private void close(Listener listener) {
+        listener.key.cancel();
+        try {
+            listener.channel.close();
+        } catch (IOException ignored) {
+            // The listener is gone anyway
+        }
+        if (listener.source != null && listener.source.listeners.remove(listener)) {
+            listeners--;
+        }
+    }
+
+    /**
+     * Disconnects all the listeners and closes the listening socket. Only the relay thread (or a benchmark that did
+     * not start it) can call this method.
+     */
+    void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Listener) {
+                close((Listener) key.attachment());
+            }
+        }
+        for (Source source : sources.values()) {
+            source.ring.removeCursor(source.cursor);
+        }
+        sources.clear();
+        pending.clear();
+        try {
+            selector.close();
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // Nothing else can be done while shutting down
+        }
+    }
+
+    /**
+     * Audio of one ring buffer (the mix or a stream) and the listeners that receive it (relay thread only).
+     */
+    private final class Source {
+        final String name;
+        final PcmRingBuffer ring;
+        final PcmRingBuffer.Cursor cursor;
+        final byte[] header;            // Stream header sent to each listener
+        final int frameSize;
+        final byte[] frame;             // Frame read from the ring
+        final ByteBuffer[] chunks = new ByteBuffer[BACKLOG_CHUNKS]; // Backlog of frames shared by the listeners
+        final int[] lengths = new int[BACKLOG_CHUNKS];
+        final List<Listener> listeners = new ArrayList<>();
+        long head;                      // Sequence of the next frame of the backlog
+        boolean finished;               // True when the ring was closed and read to the end
+
+        Source(String name, PcmRingBuffer ring, byte[] header, int frameSize) {
+            this.name = name;
+            this.ring = ring;
+            this.cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, Integer.MAX_VALUE);
+            this.header = header;
+            this.frameSize = frameSize;
+            this.frame = new byte[ring.getSlotBytes()];
+            for (int i = 0; i < BACKLOG_CHUNKS; i++) {
+                chunks[i] = ByteBuffer.allocateDirect(ring.getSlotBytes());
+            }
+        }
+    }
+
+    /**
+     * Connection of one listener client and its position in the backlog of its source (relay thread only).
+     */
+    private final class Listener {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        SelectionKey key;
+        Source source;                  // Null until the request is received
+        ByteBuffer header;              // Stream header not yet sent
+        ByteBuffer padding;             // Silence that completes the last frame after a skip
+        ByteBuffer[] views;             // Own positions and limits over the shared backlog
+        long next;                      // Sequence of the next frame to send
+        int offset;                     // Bytes of that frame already sent
+        boolean blocked;                // True while the socket is full
+        long lastProgressNanos;         // Last time the listener accepted data or was up to date
+
+        Listener(SocketChannel channel, long now) {
+            this.channel = channel;
+            this.lastProgressNanos = now;
+        }
+
+        /**
+         * Starts sending the live audio of a source.
+         *
+         * @param source Source
+         * @param now    Current time
+         */
+        void subscribe(Source source, long now) {
+            this.source = source;
+            this.header = ByteBuffer.wrap(source.header);
+            this.padding = zeros.duplicate().limit(0);
+            this.views = new ByteBuffer[BACKLOG_CHUNKS];
+            for (int i = 0; i < BACKLOG_CHUNKS; i++) {
+                views[i] = source.chunks[i].asReadOnlyBuffer();
+            }
+            this.next = source.head;
+            this.lastProgressNanos = now;
+        }
+
+        /**
+         * Returns true if the listener received everything its source has.
+         *
+         * @return True if there is nothing to send
+         */
+        boolean isIdle() {
+            return !blocked && next == source.head && !header.hasRemaining() && !padding.hasRemaining();
+        }
+
+        @Override
+        public String toString() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "(closed)";
+            }
+        }
+    }
+}
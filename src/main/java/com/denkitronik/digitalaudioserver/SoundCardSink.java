@@ -0,0 +1,90 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Sink that plays back the audio on the sound card through a {@link SourceDataLine}.
+ * The line is opened with an explicit buffer size and fed by a {@link PlaybackScheduler}, which never blocks the
+ * mixer and keeps the audio queued in the line at a target latency. Both can be tuned for each deployment: a lower
+ * latency needs a machine whose mixer thread is never late.
+ * If the machine has no line for the format, the audio is discarded, so the server still runs.
+ */
+public class SoundCardSink implements AudioSink {
+
+    /**
+     * Default audio kept queued in the line, in milliseconds.
+     */
+    public static final int DEFAULT_LATENCY_MILLIS = 40;
+
+    private static final int MIN_BUFFER_MILLIS = 100;   // The line buffer holds at least this much audio
+
+    private final int latencyMillis;
+    private final int bufferMillis;
+    private volatile PlaybackScheduler scheduler;
+    private SourceDataLine line;
+
+    /**
+     * Creates the sink with the default latency.
+     */
+    public SoundCardSink() {
+        this(DEFAULT_LATENCY_MILLIS, 0);
+    }
+
+    /**
+     * Creates the sink.
+     *
+     * @param latencyMillis Audio kept queued in the line, in milliseconds
+     * @param bufferMillis  Size of the line buffer in milliseconds, or 0 to use four times the latency (at least
+     *                      {@value #MIN_BUFFER_MILLIS} ms)
+     */
+    public SoundCardSink(int latencyMillis, int bufferMillis) {
+        this.latencyMillis = latencyMillis;
+        this.bufferMillis = bufferMillis > 0 ? bufferMillis : Math.max(MIN_BUFFER_MILLIS, 4 * latencyMillis);
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        try {
+            // Create the object that will be used to play back the received audio
+            line = AudioSystem.getSourceDataLine(format);
+            // Open the object with a buffer of the configured size (whole frames)
+            int bufferBytes = Math.round(format.getFrameRate() * bufferMillis / 1000) * format.getFrameSize();
+            line.open(format, bufferBytes);
+            scheduler = new PlaybackScheduler(line, format, latencyMillis);
+            System.out.println("Sound card line opened: " + line.getBufferSize() / format.getFrameSize() * 1000
+                    / Math.round(format.getFrameRate()) + " ms buffer, " + latencyMillis + " ms target latency");
+            // Start playing back the audio
+            line.start();
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.out.println("Audio line not available: " + e.getMessage());
+            line = null;
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        if (line != null) {
+            scheduler.write(data, offset, length);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (line != null) {
+            line.drain();
+            line.close();
+        }
+    }
+
+    /**
+     * Returns the scheduler that feeds the line, to read its fill level and counters.
+     *
+     * @return The scheduler, or null if the line is not open
+     */
+    public PlaybackScheduler getScheduler() {
+        return scheduler;
+    }
+}
@@ -0,0 +1,116 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Scrolling spectrogram: time from left to right, frequency (logarithmic) from bottom to top, level as color.
+ * The columns are drawn by the analyzer thread straight into the pixels of one reused {@link BufferedImage}, used as a
+ * circular buffer of columns, so the image is never copied or scrolled. The GUI thread only draws the image in two
+ * parts, oldest columns first. The column that will be overwritten next is never shown, so the GUI does not show a
+ * column while it is being drawn.
+ */
+public class SpectrogramView extends JComponent {
+
+    private static final int COLUMNS = 600;             // Columns kept in the image (about 14 s at 2048 points)
+    private static final int ROWS = 256;                // Frequency rows of the image
+    private static final double MIN_FREQUENCY = 20;     // Frequency of the bottom row in Hz
+    private static final int[] PALETTE = createPalette();
+
+    private final BufferedImage image;
+    private final int[] pixels;         // Pixels of the image, row by row
+    private final int[] rowFirstBin;    // Range of FFT bins shown in each row
+    private final int[] rowLastBin;
+    private volatile long columnsWritten;
+
+    /**
+     * Creates the view.
+     *
+     * @param fftSize    Number of samples of each FFT frame
+     * @param sampleRate Sample rate of the audio in Hz
+     */
+    public SpectrogramView(int fftSize, float sampleRate) {
+        image = new BufferedImage(COLUMNS, ROWS, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        rowFirstBin = new int[ROWS];
+        rowLastBin = new int[ROWS];
+        double binHertz = sampleRate / fftSize;
+        int lastBin = fftSize / 2;
+        double ratio = sampleRate / 2 / MIN_FREQUENCY;
+        for (int row = 0; row < ROWS; row++) {
+            int fromBottom = ROWS - 1 - row;
+            double low = MIN_FREQUENCY * Math.pow(ratio, (double) fromBottom / ROWS);
+            double high = MIN_FREQUENCY * Math.pow(ratio, (double) (fromBottom + 1) / ROWS);
+            int first = Math.min((int) Math.round(low / binHertz), lastBin);
+            rowFirstBin[row] = first;
+            rowLastBin[row] = Math.max(first, Math.min((int) Math.round(high / binHertz) - 1, lastBin));
+        }
+        setPreferredSize(new Dimension(800, 200));
+        setToolTipText("Spectrogram: " + (int) MIN_FREQUENCY + " Hz - " + (int) (sampleRate / 2) + " Hz");
+    }
+
+    /**
+     * Draws a new column at the right of the spectrogram. Only the analyzer thread can call this method.
+     *
+     * @param levels Level of each FFT bin in dBFS
+     */
+    public void addColumn(double[] levels) {
+        int column = (int) (columnsWritten % COLUMNS);
+        double scale = (PALETTE.length - 1) / -SpectrumAnalyzer.MIN_LEVEL_DB;
+        for (int row = 0, pixel = column; row < ROWS; row++, pixel += COLUMNS) {
+            double level = SpectrumAnalyzer.MIN_LEVEL_DB;
+            for (int bin = rowFirstBin[row]; bin <= rowLastBin[row]; bin++) {
+                level = Math.max(level, levels[bin]); // Loudest bin of the row
+            }
+            int color = (int) ((level - SpectrumAnalyzer.MIN_LEVEL_DB) * scale);
+            pixels[pixel] = PALETTE[Math.min(Math.max(color, 0), PALETTE.length - 1)];
+        }
+        columnsWritten++; // Publishes the column to the GUI thread
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        g.setColor(Color.BLACK);
+        g.fillRect(0, 0, width, height);
+        long written = columnsWritten;
+        int visible = (int) Math.min(written, COLUMNS - 1); // The next column to be overwritten is not shown
+        if (visible == 0) {
+            return;
+        }
+        int first = (int) ((written - visible) % COLUMNS);
+        double columnWidth = (double) width / (COLUMNS - 1);
+        int left = width - (int) Math.round(visible * columnWidth);
+        int firstPart = Math.min(visible, COLUMNS - first); // Columns before the end of the image
+        int middle = left + (int) Math.round(firstPart * columnWidth);
+        g.drawImage(image, left, 0, middle, height, first, 0, first + firstPart, ROWS, null);
+        if (firstPart < visible) {
+            g.drawImage(image, middle, 0, width, height, 0, 0, visible - firstPart, ROWS, null);
+        }
+    }
+
+    /**
+     * Creates the colors of the levels, from black (silence) through blue, red and yellow to white (full scale).
+     *
+     * @return 256 RGB colors
+     */
+    private static int[] createPalette() {
+        int[][] stops = {{0, 0, 0}, {0, 0, 160}, {160, 0, 160}, {230, 40, 0}, {255, 220, 0}, {255, 255, 255}};
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            double position = (double) i / (palette.length - 1) * (stops.length - 1);
+            int stop = Math.min((int) position, stops.length - 2);
+            double fraction = position - stop;
+            int rgb = 0;
+            for (int component = 0; component < 3; component++) {
+                double value = stops[stop][component] + (stops[stop + 1][component] - stops[stop][component]) * fraction;
+                rgb = (rgb << 8) | (int) Math.round(value);
+            }
+            palette[i] = rgb;
+        }
+        return palette;
+    }
+}
@@ -0,0 +1,211 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streaming spectrum analysis of the audio of a ring buffer, on its own thread (never on the GUI thread).
+ * The audio is mixed to mono and cut in overlapping frames (half a frame apart). Each frame is multiplied by a Hann
+ * window and transformed with a real {@link Fft}; its level in dBFS (0 dB is a full-scale sine) is published to the
+ * GUI through a triple buffer, like the pages of the {@link WaveformDecimator}, and added as a column to a
+ * {@link SpectrogramView}. All the arrays are allocated when the analyzer is created, so it does not produce garbage.
+ */
+public class SpectrumAnalyzer implements Runnable {
+
+    /**
+     * Default number of samples of each frame: 2048 (46 ms at 44.1 kHz, 21.5 Hz per bin).
+     */
+    public static final int DEFAULT_FFT_SIZE = 2048;
+
+    /**
+     * Lowest level shown, in dBFS. Lower levels are shown at this level.
+     */
+    public static final double MIN_LEVEL_DB = -120;
+
+    private static final int MAX_LAG = 8;                           // Frames the analyzer may fall behind the ring
+    private static final long READ_TIMEOUT_NANOS = 100_000_000L;    // Maximum time the analyzer waits for a frame
+
+    /**
+     * One published spectrum.
+     */
+    public static final class Spectrum {
+        final double[] levels;  // Level of each bin in dBFS
+        long version;           // Publication number of the spectrum
+        long timestamp;         // Time (System.nanoTime) when the newest audio of the frame was produced
+
+        private Spectrum(int bins) {
+            levels = new double[bins];
+        }
+    }
+
+    private final PcmRingBuffer ring;
+    private final AudioFormat format;
+    private final SpectrogramView spectrogram;
+    private final Fft fft;
+    private final int size;
+    private final int hop;                  // Samples between the start of two frames
+    private final double[] window;          // Hann window, scaled to convert the 16-bit samples to full scale
+    private final double levelOffset;       // Converts the power of a bin to dBFS
+    private final double binHertz;
+
+    // Analysis state (analyzer thread only)
+    private final double[] history;         // Last FFT size mono samples, circular
+    private final double[] input;           // Windowed frame
+    private final double[] power;           // Power of each bin
+    private int historyPosition;
+    private int sinceLastFrame;
+    private Spectrum back;
+    private long version;
+    private volatile boolean skipSilence;
+
+    // Latest published spectrum
+    private final AtomicReference<Spectrum> middle;
+
+    // Spectrum shown by the GUI (GUI thread only)
+    private Spectrum front;
+
+    /**
+     * Creates the analyzer.
+     *
+     * @param ring        Ring buffer with the audio to analyze
+     * @param format      Audio format of the ring
+     * @param size        Number of samples of each frame (a power of two)
+     * @param spectrogram View that receives one column per frame, or null
+     */
+    public SpectrumAnalyzer(PcmRingBuffer ring, AudioFormat format, int size, SpectrogramView spectrogram) {
+        this.ring = ring;
+        this.format = format;
+        this.spectrogram = spectrogram;
+        this.fft = new Fft(size);
+        this.size = size;
+        this.hop = size / 2;
+        this.window = new double[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size)) / 32768.0;
+        }
+        // A full-scale sine has a peak of size / 4 with the Hann window (half of size / 2)
+        this.levelOffset = -20 * Math.log10(size / 4.0);
+        this.binHertz = format.getSampleRate() / size;
+        int bins = size / 2 + 1;
+        this.history = new double[size];
+        this.input = new double[size];
+        this.power = new double[bins];
+        this.back = new Spectrum(bins);
+        this.middle = new AtomicReference<>(new Spectrum(bins));
+        this.front = new Spectrum(bins);
+        Arrays.fill(front.levels, MIN_LEVEL_DB);
+    }
+
+    /**
+     * Sets whether the frames of the ring are skipped while the audio is silent, to save CPU. The spectrum and the
+     * spectrogram then keep showing the last sound.
+     *
+     * @param skipSilence True to skip the silent audio
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        this.skipSilence = skipSilence;
+    }
+
+    /**
+     * Analysis loop. Reads the ring until the thread is interrupted or the ring is closed.
+     * If the analyzer cannot keep up, it skips to the newest audio.
+     */
+    @Override
+    public void run() {
+        byte[] frame = new byte[ring.getSlotBytes()];
+        short[] samples = new short[ring.getSlotBytes()];
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.SKIP_TO_LATEST, MAX_LAG);
+        PcmCodec codec = new PcmCodec(format);
+        LevelMeter meter = new LevelMeter(format, null, null);
+        int channels = format.getChannels();
+        while (!Thread.currentThread().isInterrupted()) {
+            int bytesRead = cursor.read(frame, 0, READ_TIMEOUT_NANOS);
+            if (bytesRead < 0) {
+                return;
+            } else if (bytesRead > 0 && !(skipSilence && meter.analyze(frame, 0, bytesRead))) {
+                int count = codec.decode(frame, 0, bytesRead, samples, 0);
+                add(samples, count, channels, cursor.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Adds interleaved samples to the analysis and analyzes every complete frame. Only the analyzer thread can call
+     * this method.
+     *
+     * @param samples   Interleaved 16-bit samples
+     * @param count     Number of samples
+     * @param channels  Number of channels
+     * @param timestamp Time (System.nanoTime) when the samples were produced
+     */
+    public void add(short[] samples, int count, int channels, long timestamp) {
+        int mask = size - 1;
+        for (int i = 0; i + channels <= count; i += channels) {
+            int sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += samples[i + channel];
+            }
+            history[historyPosition] = (double) sum / channels; // Mono
+            historyPosition = (historyPosition + 1) & mask;
+            if (++sinceLastFrame == hop) {
+                sinceLastFrame = 0;
+                analyze(timestamp);
+            }
+        }
+    }
+
+    /**
+     * Returns the newest published spectrum. Only the GUI thread can call this method, and the spectrum can be read
+     * until the next call.
+     *
+     * @return The newest spectrum
+     */
+    public Spectrum acquire() {
+        if (middle.get().version > front.version) {
+            front = middle.getAndSet(front); // Take the newest spectrum and give back the old one
+        }
+        return front;
+    }
+
+    /**
+     * Returns the number of bins of each spectrum.
+     *
+     * @return Number of bins (FFT size / 2 + 1)
+     */
+    public int getBins() {
+        return power.length;
+    }
+
+    /**
+     * Returns the frequency width of one bin.
+     *
+     * @return Width in Hz
+     */
+    public double getBinHertz() {
+        return binHertz;
+    }
+
+    /**
+     * Transforms the last frame and publishes its spectrum.
+     *
+     * @param timestamp Time when the newest audio of the frame was produced
+     */
+    private void analyze(long timestamp) {
+        for (int i = 0, j = historyPosition; i < size; i++, j = (j + 1) & (size - 1)) {
+            input[i] = history[j] * window[i]; // Oldest sample first
+        }
+        fft.powerSpectrum(input, power);
+        double[] levels = back.levels;
+        for (int k = 0; k < levels.length; k++) {
+            double level = power[k] > 0 ? 10 * Math.log10(power[k]) + levelOffset : MIN_LEVEL_DB;
+            levels[k] = Math.max(level, MIN_LEVEL_DB);
+        }
+        if (spectrogram != null) {
+            spectrogram.addColumn(levels);
+        }
+        back.version = ++version;
+        back.timestamp = timestamp;
+        back = middle.getAndSet(back);
+    }
+}
@@ -0,0 +1,72 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.jfree.data.xy.AbstractXYDataset;
+
+/**
+ * Chart dataset that reads the newest spectrum of a {@link SpectrumAnalyzer} directly from its primitive array.
+ * The DC bin is not shown, so the frequency axis can be logarithmic. The chart is notified once per refresh.
+ * All the methods must be called from the GUI thread.
+ */
+public class SpectrumDataset extends AbstractXYDataset {
+
+    private static final String SERIES_KEY = "Level (dBFS)";
+
+    private final SpectrumAnalyzer analyzer;
+    private SpectrumAnalyzer.Spectrum spectrum;
+
+    /**
+     * Creates the dataset.
+     *
+     * @param analyzer Analyzer that produces the spectra
+     */
+    public SpectrumDataset(SpectrumAnalyzer analyzer) {
+        this.analyzer = analyzer;
+        this.spectrum = analyzer.acquire();
+    }
+
+    /**
+     * Takes the newest spectrum of the analyzer and notifies the chart if it changed.
+     */
+    public void refresh() {
+        long version = spectrum.version;
+        spectrum = analyzer.acquire();
+        if (spectrum.version != version) {
+            fireDatasetChanged();
+        }
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return 1;
+    }
+
+    @Override
+    public Comparable<String> getSeriesKey(int series) {
+        return SERIES_KEY;
+    }
+
+    @Override
+    public int getItemCount(int series) {
+        return spectrum.levels.length - 1;
+    }
+
+    @Override
+    public Number getX(int series, int item) {
+        return getXValue(series, item);
+    }
+
+    @Override
+    public double getXValue(int series, int item) {
+        return (item + 1) * analyzer.getBinHertz();
+    }
+
+    @Override
+    public Number getY(int series, int item) {
+        return getYValue(series, item);
+    }
+
+    @Override
+    public double getYValue(int series, int item) {
+        return spectrum.levels[item + 1];
+    }
+}
@@ -0,0 +1,38 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sink that writes the raw PCM audio to the standard output, so it can be piped to another program
+ * (for example: ... | aplay -f cd). The messages of the server are moved to the standard error, so they do not
+ * get mixed with the audio.
+ */
+public class StdoutSink implements AudioSink {
+
+    private OutputStream outputStream;
+
+    @Override
+    public void open(AudioFormat format) {
+        outputStream = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 16384);
+        System.setOut(System.err);
+        System.err.println("Writing raw audio to the standard output: " + format);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        outputStream.write(data, offset, length);
+        outputStream.flush(); // The reader gets each block without delay
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (outputStream != null) {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * Header that a device sends before its audio, so the server knows the format of the stream.
+ * The header has 20 bytes in network byte order (big endian):
+ * <pre>
+ *  0  magic          4 bytes  "DASP"
+ *  4  version        1 byte   1
+ *  5  encoding       1 byte   0 = signed PCM, 1 = unsigned PCM
+ *  6  bits           1 byte   bits per sample (8, 16 or 24)
+ *  7  channels       1 byte   number of channels
+ *  8  sample rate    4 bytes  samples per second
+ * 12  frame size     2 bytes  bytes per frame (bits / 8 * channels)
+ * 14  flags          2 bytes  bit 0: the samples are big endian, bit 1: the audio is sent in timestamped packets,
+ *                             bits 4-7: codec of the audio ({@link BlockCodec#PCM}, {@link BlockCodec#IMA_ADPCM} or
+ *                             {@link BlockCodec#DELTA_VARINT})
+ * 16  stream id      4 bytes  identifier chosen by the device (0 if none)
+ * </pre>
+ * When bit 1 of the flags is set, the audio is sent in packets, each one with a 16-byte header before its audio,
+ * so the server can measure the network latency and detect lost packets:
+ * <pre>
+ *  0  sequence       4 bytes  number of the packet, starting at 0
+ *  4  length         4 bytes  bytes of audio in the packet (whole frames)
+ *  8  send time      8 bytes  time when the packet was sent, in microseconds since the epoch ({@link #currentTimeMicros()})
+ * </pre>
+ * A compressed stream is always sent in packets (bit 1 is set), and each packet holds one encoded block of at most
+ * {@link #MAX_BLOCK_BYTES} bytes; its length is the length of the block. The format of the header describes the
+ * decoded audio, which must be 16-bit signed little endian PCM.
+ * Devices that send raw audio without a header are still accepted, with the {@link AudioStream#LEGACY_FORMAT}.
+ */
+public final class StreamHeader {
+
+    public static final int MAGIC = 0x44415350;     // "DASP"
+    public static final int VERSION = 1;
+    public static final int SIZE = 20;
+    public static final int PACKET_HEADER_SIZE = 16;
+    public static final int MAX_PACKET_BYTES = 1 << 20;
+    public static final int MAX_BLOCK_BYTES = 8192;
+
+    private static final int ENCODING_SIGNED = 0;
+    private static final int ENCODING_UNSIGNED = 1;
+    private static final int FLAG_BIG_ENDIAN = 1;
+    private static final int FLAG_TIMESTAMPS = 2;
+    private static final int CODEC_SHIFT = 4;
+    private static final int CODEC_MASK = 0xF;
+    private static final int MAX_CHANNELS = 32;
+    private static final int MAX_SAMPLE_RATE = 768000;
+
+    private final AudioFormat format;
+    private final int streamId;
+    private final boolean timestamped;
+    private final int codec;
+
+    // Wall clock in microseconds, computed from System.nanoTime so it is precise and does not allocate
+    private static final long EPOCH_MICROS_OFFSET = epochMicrosOffset();
+
+    /**
+     * Creates a header for a stream of raw audio.
+     *
+     * @param format   Audio format of the stream (8, 16 or 24-bit PCM)
+     * @param streamId Identifier of the stream chosen by the device
+     */
+    public StreamHeader(AudioFormat format, int streamId) {
+        this(format, streamId, false);
+    }
+
+    /**
+     * Creates a header.
+     *
+     * @param format      Audio format of the stream (8, 16 or 24-bit PCM)
+     * @param streamId    Identifier of the stream chosen by the device
+     * @param timestamped True if the audio is sent in timestamped packets
+     */
+    public StreamHeader(AudioFormat format, int streamId, boolean timestamped) {
+        this(format, streamId, timestamped, BlockCodec.PCM);
+    }
+
+    /**
+     * Creates a header. A compressed stream is always sent in timestamped packets.
+     *
+     * @param format      Audio format of the stream (8, 16 or 24-bit PCM; 16-bit signed little endian with a codec)
+     * @param streamId    Identifier of the stream chosen by the device
+     * @param timestamped True if the audio is sent in timestamped packets
+     * @param codec       Codec of the audio ({@link BlockCodec#PCM} for raw audio)
+     */
+    public StreamHeader(AudioFormat format, int streamId, boolean timestamped, int codec) {
+        this.format = format;
+        this.streamId = streamId;
+        this.timestamped = timestamped || codec != BlockCodec.PCM;
+        this.codec = codec;
+    }
+
+    /**
+     * Returns the current time as it is written in the packets. Devices and server must have synchronized clocks
+     * (NTP) for the network latency to be meaningful.
+     *
+     * @return Time in microseconds since the epoch
+     */
+    public static long currentTimeMicros() {
+        return EPOCH_MICROS_OFFSET + System.nanoTime() / 1000;
+    }
+
+    /**
+     * Returns the difference between the wall clock and System.nanoTime, in microseconds.
+     *
+     * @return Offset in microseconds
+     */
+    private static long epochMicrosOffset() {
+        Instant now = Instant.now(); // Microsecond precision, unlike System.currentTimeMillis
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000 - System.nanoTime() / 1000;
+    }
+
+    /**
+     * Returns the audio format of the stream.
+     *
+     * @return Audio format
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the identifier of the stream chosen by the device.
+     *
+     * @return Stream identifier
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Returns true if the audio is sent in timestamped packets.
+     *
+     * @return True for packets, false for raw audio
+     */
+    public boolean isTimestamped() {
+        return timestamped;
+    }
+
+    /**
+     * Returns the codec of the audio.
+     *
+     * @return Codec identifier ({@link BlockCodec#PCM} for raw audio)
+     */
+    public int getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns true if the buffer starts with the magic number of the header.
+     * The buffer must have at least 4 bytes remaining; its position does not change.
+     *
+     * @param buffer Received data
+     * @return True if the data starts with a header
+     */
+    public static boolean startsWithMagic(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position()) == MAGIC; // ByteBuffers are big endian unless changed
+    }
+
+    /**
+     * Reads and validates a header. The buffer must have at least {@link #SIZE} bytes remaining.
+     *
+     * @param buffer Received data (its position is moved after the header)
+     * @return The header
+     * @throws ProtocolException If the header is not valid
+     */
+    public static StreamHeader read(ByteBuffer buffer) throws ProtocolException {
+        int magic = buffer.getInt();
+        int version = buffer.get() & 0xFF;
+        int encoding = buffer.get() & 0xFF;
+        int bits = buffer.get() & 0xFF;
+        int channels = buffer.get() & 0xFF;
+        int sampleRate = buffer.getInt();
+        int frameSize = buffer.getShort() & 0xFFFF;
+        int flags = buffer.getShort() & 0xFFFF;
+        int streamId = buffer.getInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new ProtocolException("Unsupported stream header version: " + version);
+        }
+        if (encoding != ENCODING_SIGNED && encoding != ENCODING_UNSIGNED) {
+            throw new ProtocolException("Unsupported encoding: " + encoding);
+        }
+        if (bits != 8 && bits != 16 && bits != 24) {
+            throw new ProtocolException("Unsupported sample size: " + bits + " bits");
+        }
+        if (channels < 1 || channels > MAX_CHANNELS || sampleRate < 1 || sampleRate > MAX_SAMPLE_RATE) {
+            throw new ProtocolException("Unsupported format: " + channels + " channels, " + sampleRate + " Hz");
+        }
+        if (frameSize != bits / 8 * channels) {
+            throw new ProtocolException("Frame size " + frameSize + " does not match the format");
+        }
+        int codec = (flags >> CODEC_SHIFT) & CODEC_MASK;
+        if (codec != BlockCodec.PCM) {
+            if (codec != BlockCodec.IMA_ADPCM && codec != BlockCodec.DELTA_VARINT) {
+                throw new ProtocolException("Unsupported codec: " + codec);
+            }
+            if (bits != 16 || encoding != ENCODING_SIGNED || (flags & FLAG_BIG_ENDIAN) != 0
+                    || (flags & FLAG_TIMESTAMPS) == 0) {
+                throw new ProtocolException("The codec needs 16-bit signed little endian audio sent in packets");
+            }
+        }
+        AudioFormat format = new AudioFormat(
+                encoding == ENCODING_SIGNED ? AudioFormat.Encoding.PCM_SIGNED : AudioFormat.Encoding.PCM_UNSIGNED,
+                sampleRate, bits, channels, frameSize, sampleRate, (flags & FLAG_BIG_ENDIAN) != 0);
+        return new StreamHeader(format, streamId, (flags & FLAG_TIMESTAMPS) != 0, codec);
+    }
+
+    /**
+     * Returns the bytes of the header.
+     *
+     * @return The header as it is sent to the server
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) (AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding()) ? ENCODING_UNSIGNED : ENCODING_SIGNED));
+        buffer.put((byte) format.getSampleSizeInBits());
+        buffer.put((byte) format.getChannels());
+        buffer.putInt(Math.round(format.getSampleRate()));
+        buffer.putShort((short) format.getFrameSize());
+        buffer.putShort((short) ((format.isBigEndian() ? FLAG_BIG_ENDIAN : 0) | (timestamped ? FLAG_TIMESTAMPS : 0)
+                | codec << CODEC_SHIFT));
+        buffer.putInt(streamId);
+        return buffer.array();
+    }
+}
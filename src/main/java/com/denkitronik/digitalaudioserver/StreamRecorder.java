@@ -0,0 +1,329 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the audio of one stream in a directory of fixed-size, memory-mapped segment files.
+ * Each segment is a WAV file ("segment-000001.wav") with an index file ("segment-000001.idx") that maps the time
+ * when the audio was received to its offset in the segment. The audio is copied straight from the direct ingest
+ * buffer to the mapped file, so it never passes through the Java heap. The WAV header of a segment is written with its
+ * full size when it is created (so a live segment can already be read) and with the real size when it is closed.
+ * A closed segment is unmapped before its files are trimmed to their content, because some systems (Windows) do not
+ * allow changing the size of a mapped file. If the mapping cannot be released, the files keep their full size and the
+ * WAV header and the index tell where the audio ends.
+ * Audio that is skipped ({@link #skip(ByteBuffer)}) is not recorded, but its last {@link #PRE_ROLL_FRAMES} frames are
+ * kept and written before the next audio, so the start of a phrase that the level meter detects late is not cut.
+ * Only the ingest thread can use a recorder.
+ */
+public class StreamRecorder {
+
+    /**
+     * Default size of a segment: 32 MiB (about 3 minutes of 16-bit 44.1 kHz stereo audio).
+     */
+    public static final int DEFAULT_SEGMENT_BYTES = 32 << 20;
+
+    /**
+     * Frames of skipped audio kept before the next audio: one block of the level meter, the longest time the meter
+     * takes to notice that a phrase started.
+     */
+    public static final int PRE_ROLL_FRAMES = LevelMeter.DEFAULT_BLOCK_FRAMES;
+
+    static final int HEADER_BYTES = 44;             // Size of the WAV header at the beginning of each segment
+    static final int INDEX_ENTRY_BYTES = 16;        // Time (epoch milliseconds) and offset of the audio data, big endian
+    static final int INDEX_ENTRIES = 4096;          // A new segment is started when its index is full
+    private static final long INDEX_INTERVAL_MILLIS = 100; // Time between two entries of the index
+    private static final Object UNSAFE;             // Releases a mapping without waiting for the garbage collector
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Recorded segments will not be trimmed: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final Path directory;
+    private final AudioFormat format;       // Format of the segments (WAV order: little endian, unsigned 8-bit samples)
+    private final int bytesPerSample;
+    private final boolean swapBytes;        // The stream is big endian
+    private final boolean flipSign;         // The stream uses the other signedness
+    private final int segmentDataBytes;     // Audio bytes in one segment (whole frames)
+    private final ByteBuffer preRoll;       // Last skipped audio, circular (stream format, whole frames)
+
+    private int segmentNumber;
+    private FileChannel segmentChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer segment;
+    private MappedByteBuffer index;
+    private int dataLength;                 // Audio bytes written in the current segment
+    private int indexCount;
+    private long nextIndexMillis;
+    private int preRollStart;               // Oldest byte of the pre-roll
+    private int preRollLength;              // Bytes in the pre-roll
+
+    /**
+     * Creates the recorder and its first segment.
+     *
+     * @param directory    Directory of the recording (it is created if needed)
+     * @param streamFormat Audio format of the stream
+     * @param segmentBytes Size of each segment file in bytes
+     * @throws IOException If the directory or the first segment cannot be created
+     */
+    public StreamRecorder(Path directory, AudioFormat streamFormat, int segmentBytes) throws IOException {
+        int bits = streamFormat.getSampleSizeInBits();
+        boolean signed = streamFormat.getEncoding() == AudioFormat.Encoding.PCM_SIGNED;
+        if (bits % 8 != 0 || bits < 8 || bits > 32
+                || !(signed || streamFormat.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED)) {
+            throw new IllegalArgumentException("Unsupported audio format for recording: " + streamFormat);
+        }
+        this.directory = directory;
+        this.bytesPerSample = bits / 8;
+        this.swapBytes = bytesPerSample > 1 && streamFormat.isBigEndian();
+        this.flipSign = bytesPerSample == 1 ? signed : !signed; // WAV: 8-bit samples are unsigned, the others signed
+        this.format = new AudioFormat(bytesPerSample == 1 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED,
+                streamFormat.getSampleRate(), bits, streamFormat.getChannels(), streamFormat.getFrameSize(),
+                streamFormat.getFrameRate(), false);
+        int frameSize = streamFormat.getFrameSize();
+        this.segmentDataBytes = (segmentBytes - HEADER_BYTES) / frameSize * frameSize;
+        if (segmentDataBytes <= 0) {
+            throw new IllegalArgumentException("The segment is too small: " + segmentBytes + " bytes");
+        }
+        this.preRoll = ByteBuffer.allocateDirect(PRE_ROLL_FRAMES * frameSize);
+        Files.createDirectories(directory);
+        openSegment();
+    }
+
+    /**
+     * Appends audio to the recording, after the pre-roll kept from the skipped audio. The position of the buffer does
+     * not change.
+     *
+     * @param data Whole frames of audio, between the position and the limit of the buffer
+     * @throws IOException If a new segment cannot be created
+     */
+    public void write(ByteBuffer data) throws IOException {
+        long now = System.currentTimeMillis();
+        if (preRollLength > 0) {
+            int first = Math.min(preRollLength, preRoll.capacity() - preRollStart);
+            append(preRoll, preRollStart, preRollStart + first, now);
+            append(preRoll, 0, preRollLength - first, now); // The part that wrapped around
+            preRollLength = 0;
+        }
+        append(data, data.position(), data.limit(), now);
+    }
+
+    /**
+     * Skips audio that is not recorded, keeping its last {@link #PRE_ROLL_FRAMES} frames for the next write.
+     * The position of the buffer does not change.
+     *
+     * @param data Whole frames of audio, between the position and the limit of the buffer
+     * @return Number of bytes dropped for good from the pre-roll
+     */
+    public int skip(ByteBuffer data) {
+        int capacity = preRoll.capacity();
+        int length = data.remaining();
+        int kept = Math.min(length, capacity);
+        int from = data.limit() - kept;
+        int dropped = Math.max(0, preRollLength + length - capacity);
+        if (kept == capacity) {
+            preRollStart = 0;
+            preRollLength = 0;
+        } else if (preRollLength + kept > capacity) {
+            int overflow = preRollLength + kept - capacity; // The oldest audio leaves the pre-roll
+            preRollStart = (preRollStart + overflow) % capacity;
+            preRollLength -= overflow;
+        }
+        int to = (preRollStart + preRollLength) % capacity;
+        int first = Math.min(kept, capacity - to);
+        preRoll.put(to, data, from, first);
+        preRoll.put(0, data, from + first, kept - first);
+        preRollLength += kept;
+        return dropped;
+    }
+
+    /**
+     * Appends a part of a buffer to the recording.
+     *
+     * @param data     Audio of the stream
+     * @param position Position of the first byte
+     * @param end      Position after the last byte
+     * @param now      Time when the audio was received (epoch milliseconds)
+     * @throws IOException If a new segment cannot be created
+     */
+    private void append(ByteBuffer data, int position, int end, long now) throws IOException {
+        while (position < end) {
+            if (dataLength == segmentDataBytes || (indexCount == INDEX_ENTRIES && now >= nextIndexMillis)) {
+                closeSegment();
+                openSegment();
+            }
+            int length = Math.min(end - position, segmentDataBytes - dataLength);
+            int offset = dataLength;
+            if (swapBytes || flipSign) {
+                convert(data, position, offset, length);
+            } else {
+                segment.put(HEADER_BYTES + offset, data, position, length); // Direct buffer to mapped file
+            }
+            dataLength += length;
+            position += length;
+            if (now >= nextIndexMillis || offset == 0) {
+                addIndexEntry(now, offset); // After the copy, so a reader never sees an entry before its audio
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment with its final size.
+     *
+     * @throws IOException If the segment cannot be closed
+     */
+    public void close() throws IOException {
+        if (segment != null) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Returns the directory of the recording.
+     *
+     * @return Recording directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the audio format of the recorded segments.
+     *
+     * @return Audio format in WAV order
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the path of a segment file.
+     *
+     * @param directory Recording directory
+     * @param number    Number of the segment
+     * @param extension "wav" for the audio, "idx" for the index
+     * @return Path of the file
+     */
+    static Path segmentPath(Path directory, int number, String extension) {
+        return directory.resolve(String.format("segment-%06d.%s", number, extension));
+    }
+
+    /**
+     * Creates and maps the next segment and its index.
+     *
+     * @throws IOException If the files cannot be created
+     */
+    private void openSegment() throws IOException {
+        segmentNumber++;
+        segmentChannel = FileChannel.open(segmentPath(directory, segmentNumber, "wav"), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(segmentPath(directory, segmentNumber, "idx"), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) segmentDataBytes);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) INDEX_ENTRIES * INDEX_ENTRY_BYTES);
+        segment.put(0, WavFile.header(format, segmentDataBytes)); // Readable while it is recorded
+        dataLength = 0;
+        indexCount = 0;
+        nextIndexMillis = 0;
+    }
+
+    /**
+     * Writes the final WAV header of the current segment, unmaps it, trims the files to their content and closes them.
+     *
+     * @throws IOException If the files cannot be written
+     */
+    private void closeSegment() throws IOException {
+        segment.put(0, WavFile.header(format, dataLength));
+        segment.force();
+        index.force();
+        boolean unmapped = unmap(segment) & unmap(index);
+        segment = null; // The buffers must not be used once they are unmapped
+        index = null;
+        try {
+            if (unmapped) {
+                segmentChannel.truncate(HEADER_BYTES + (long) dataLength);
+                indexChannel.truncate((long) indexCount * INDEX_ENTRY_BYTES);
+            }
+        } finally {
+            segmentChannel.close();
+            indexChannel.close();
+        }
+    }
+
+    /**
+     * Releases a mapping now, instead of when the garbage collector frees the buffer.
+     *
+     * @param buffer Mapped buffer, which must not be used afterwards
+     * @return True if the mapping was released
+     */
+    private static boolean unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds an entry to the index of the current segment.
+     *
+     * @param timeMillis Time when the audio was received (epoch milliseconds)
+     * @param offset     Offset of the audio in the segment data
+     */
+    private void addIndexEntry(long timeMillis, int offset) {
+        if (indexCount == INDEX_ENTRIES) {
+            return; // A new segment is started with the next audio
+        }
+        index.putLong(indexCount * INDEX_ENTRY_BYTES, timeMillis);
+        index.putLong(indexCount * INDEX_ENTRY_BYTES + 8, offset);
+        indexCount++;
+        nextIndexMillis = timeMillis + INDEX_INTERVAL_MILLIS;
+    }
+
+    /**
+     * Copies audio to the segment converting its samples to the WAV order (little endian, unsigned 8-bit samples).
+     *
+     * @param data     Audio of the stream
+     * @param position Position of the first byte in the buffer
+     * @param offset   Offset of the first byte in the segment data
+     * @param length   Number of bytes (whole samples)
+     */
+    private void convert(ByteBuffer data, int position, int offset, int length) {
+        int to = HEADER_BYTES + offset;
+        for (int i = 0; i < length; i += bytesPerSample) {
+            for (int b = 0; b < bytesPerSample; b++) {
+                int from = position + i + (swapBytes ? bytesPerSample - 1 - b : b);
+                byte value = data.get(from);
+                if (flipSign && b == bytesPerSample - 1) {
+                    value ^= (byte) 0x80; // Most significant byte
+                }
+                segment.put(to + i + b, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This class receives audio streams over UDP, for devices on lossy networks (Wi-Fi) where a lost TCP segment would
+ * stall the whole stream. One datagram channel and one thread receive all the devices; each source address is one
+ * stream. A stream starts with a datagram that holds only its {@link StreamHeader}, which the device repeats from
+ * time to time in case it is lost. Every other datagram is one packet: the 16-byte packet header of the
+ * {@link StreamHeader} (sequence, length, send time) followed by its audio, raw or encoded with the codec of the
+ * stream. The packets go through a {@link JitterBuffer} that puts them back in order and conceals the lost ones, and
+ * the audio is delivered to the same {@link AudioStreamListener} as the TCP streams. A stream is closed when no
+ * datagram arrives for {@link #STREAM_TIMEOUT_NANOS}.
+ */
+public class UdpIngestServer implements Runnable {
+
+    /**
+     * Time without datagrams after which a stream is closed.
+     */
+    public static final long STREAM_TIMEOUT_NANOS = 3_000_000_000L;
+
+    private static final int DATAGRAM_BUFFER_SIZE = 65536;  // Largest UDP datagram
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20; // Socket buffer for bursts of many devices
+    private static final long TICK_MILLIS = 2;              // Period of the jitter buffer checks
+
+    private final int port;
+    private final AudioStreamListener listener;
+    private final Map<SocketAddress, AudioStream> streams = new HashMap<>(); // UDP ingest thread only
+    private final ByteBuffer datagram = ByteBuffer.allocateDirect(DATAGRAM_BUFFER_SIZE);
+
+    private Selector selector;
+    private DatagramChannel channel;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int activeStreams;
+
+    // Metrics (written only by the UDP ingest thread)
+    private final LatencyHistogram networkLatency = new LatencyHistogram();
+    private volatile long bytesReceived;
+    private volatile long framesReceived;
+    private volatile long packetsReceived;
+    private volatile long packetsReordered;
+    private volatile long packetsLate;
+    private volatile long packetsConcealed;
+    private volatile long framesConcealed;
+    private volatile long invalidDatagrams;
+
+    /**
+     * Creates the UDP ingest server.
+     *
+     * @param port     UDP port where the devices send their datagrams (0 to use any free port)
+     * @param listener Listener that receives the audio of all the streams
+     */
+    public UdpIngestServer(int port, AudioStreamListener listener) {
+        this.port = port;
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the datagram channel and starts the UDP ingest thread.
+     *
+     * @throws IOException If the port cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        running = true;
+        thread = new Thread(this, "audio-udp-ingest");
+        thread.start();
+    }
+
+    /**
+     * Stops the UDP ingest thread and closes all the streams.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the port where the server receives the datagrams.
+     *
+     * @return Local UDP port
+     */
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the number of UDP streams currently active.
+     *
+     * @return Number of active streams
+     */
+    public int getActiveStreamCount() {
+        return activeStreams;
+    }
+
+    /**
+     * Returns the histogram of the time from the moment a device sent a packet to the moment it was received.
+     *
+     * @return Network latency in nanoseconds
+     */
+    public LatencyHistogram getNetworkLatency() {
+        return networkLatency;
+    }
+
+    /**
+     * Returns the number of audio bytes received, after decoding, without the concealed audio.
+     *
+     * @return Number of bytes
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the number of audio frames received, without the concealed audio.
+     *
+     * @return Number of frames
+     */
+    public long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Returns the number of packets received.
+     *
+     * @return Number of packets
+     */
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    /**
+     * Returns the number of packets that arrived after a packet with a higher sequence number.
+     *
+     * @return Number of packets put back in order
+     */
+    public long getPacketsReordered() {
+        return packetsReordered;
+    }
+
+    /**
+     * Returns the number of packets dropped because they arrived after they had been concealed.
+     *
+     * @return Number of late packets
+     */
+    public long getPacketsLate() {
+        return packetsLate;
+    }
+
+    /**
+     * Returns the number of packets that never arrived in time and were concealed.
+     *
+     * @return Number of concealed packets
+     */
+    public long getPacketsConcealed() {
+        return packetsConcealed;
+    }
+
+    /**
+     * Returns the number of audio frames generated by the concealment.
+     *
+     * @return Number of frames
+     */
+    public long getFramesConcealed() {
+        return framesConcealed;
+    }
+
+    /**
+     * Returns the number of datagrams that were not valid or came from an unknown device.
+     *
+     * @return Number of datagrams
+     */
+    public long getInvalidDatagrams() {
+        return invalidDatagrams;
+    }
+
+    /**
+     * UDP ingest loop. Receives the datagrams, releases the packets of the jitter buffers and closes the silent
+     * streams until the server is stopped.
+     */
+    @Override
+    public void run() {
+        System.out.println("Audio server receiving UDP streams on port " + getLocalPort() + "...");
+        try {
+            while (running) {
+                selector.select(TICK_MILLIS);
+                selector.selectedKeys().clear();
+                long now = System.nanoTime();
+                SocketAddress address;
+                while ((address = channel.receive(datagram.clear())) != null) { // Drain all the queued datagrams
+                    datagram.flip();
+                    receive(address, datagram, now);
+                }
+                release(now);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.out.println("UDP audio server stopped: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Handles one datagram: a stream header or a packet.
+     *
+     * @param address Address of the device
+     * @param data    Datagram
+     * @param now     Time when the datagram was received
+     */
+    private void receive(SocketAddress address, ByteBuffer data, long now) {
+        AudioStream stream = streams.get(address);
+        try {
+            if (data.remaining() == StreamHeader.SIZE && StreamHeader.startsWithMagic(data)) {
+                StreamHeader header = StreamHeader.read(data);
+                if (stream == null) {
+                    open(address, header, now);
+                } else {
+                    stream.lastReceivedNanos = now; // Repeated header
+                }
+            } else if (stream == null || data.remaining() < StreamHeader.PACKET_HEADER_SIZE) {
+                invalidDatagrams++; // Audio of a device whose header was lost (it will be repeated)
+            } else {
+                stream.lastReceivedNanos = now;
+                readPacket(stream, data, now);
+            }
+        } catch (ProtocolException e) {
+            if (invalidDatagrams++ == 0) {
+                System.out.println("Invalid datagram from " + address + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts a new UDP stream and tells the listener.
+     *
+     * @param address Address of the device
+     * @param header  Stream header sent by the device
+     * @param now     Time when the header was received
+     */
+    private void open(SocketAddress address, StreamHeader header, long now) {
+        AudioStream stream = new AudioStream(AudioStream.nextId(), null, address, null);
+        stream.setFormat(header.getFormat());
+        stream.setDeviceStreamId(header.getStreamId());
+        if (header.getCodec() != BlockCodec.PCM) {
+            stream.codec = BlockCodec.create(header.getCodec(), header.getFormat().getChannels());
+            stream.block = new byte[StreamHeader.MAX_BLOCK_BYTES];
+            stream.decoded = ByteBuffer.wrap(new byte[stream.codec.maxDecodedBytes(StreamHeader.MAX_BLOCK_BYTES)]);
+        }
+        stream.jitter = new JitterBuffer(header.getFormat());
+        stream.lastReceivedNanos = now;
+        stream.started = true;
+        streams.put(address, stream);
+        activeStreams = streams.size();
+        System.out.println("UDP audio streaming started: " + stream + " " + stream.getFormat()
+                + (stream.codec != null ? ", " + BlockCodec.name(stream.codec.getId()) + " codec" : ""));
+        try {
+            listener.streamOpened(stream);
+        } catch (RuntimeException e) { // A failing listener must not stop the other streams
+            System.out.println("UDP audio stream failed: " + stream + " " + e);
+            streams.remove(address);
+            activeStreams = streams.size();
+            closed(stream);
+        }
+    }
+
+    /**
+     * Reads a packet, decodes it if the stream has a codec and adds it to the jitter buffer of the stream.
+     *
+     * @param stream Audio stream of the device
+     * @param data   Datagram, with the packet header
+     * @param now    Time when the datagram was received
+     * @throws ProtocolException If the packet is not valid
+     */
+    private void readPacket(AudioStream stream, ByteBuffer data, long now) throws ProtocolException {
+        int sequence = data.getInt();
+        int length = data.getInt();
+        long sentMicros = data.getLong();
+        if (length != data.remaining() || length <= 0 || length > StreamHeader.MAX_BLOCK_BYTES
+                || (stream.codec == null && length % stream.getFrameSize() != 0)) {
+            throw new ProtocolException("Invalid packet length: " + length);
+        }
+        networkLatency.record((StreamHeader.currentTimeMicros() - sentMicros) * 1000);
+        packetsReceived++;
+        ByteBuffer audio = data;
+        if (stream.codec != null) {
+            data.get(stream.block, 0, length);
+            int decoded = stream.codec.decode(stream.block, 0, length, stream.decoded.array(), 0);
+            audio = stream.decoded.clear().limit(decoded);
+        }
+        switch (stream.jitter.add(sequence, sentMicros, audio, now)) {
+            case REORDERED:
+                packetsReordered++;
+                break;
+            case LATE:
+                packetsLate++;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Delivers the packets that the jitter buffers release and closes the streams that stopped sending.
+     *
+     * @param now Current time
+     */
+    private void release(long now) {
+        Iterator<AudioStream> iterator = streams.values().iterator();
+        while (iterator.hasNext()) {
+            AudioStream stream = iterator.next();
+            boolean failed = false;
+            try {
+                deliver(stream, now);
+            } catch (RuntimeException e) { // A failing listener must not stop the other streams
+                System.out.println("UDP audio stream failed: " + stream + " " + e);
+                failed = true;
+            }
+            if (failed || now - stream.lastReceivedNanos > STREAM_TIMEOUT_NANOS) {
+                iterator.remove();
+                activeStreams = streams.size();
+                System.out.println("UDP audio streaming finished: " + stream);
+                closed(stream);
+            }
+        }
+    }
+
+    /**
+     * Delivers the packets that the jitter buffer of a stream releases.
+     *
+     * @param stream Audio stream of the device
+     * @param now    Current time
+     */
+    private void deliver(AudioStream stream, long now) {
+        ByteBuffer audio;
+        while ((audio = stream.jitter.poll(now)) != null) {
+            int bytes = audio.remaining();
+            if (bytes == 0) {
+                continue;
+            }
+            if (stream.jitter.wasConcealed()) {
+                packetsConcealed++;
+                framesConcealed += bytes / stream.getFrameSize();
+            } else {
+                stream.addBytesReceived(bytes);
+                bytesReceived += bytes;
+                framesReceived += bytes / stream.getFrameSize();
+            }
+            listener.audioReceived(stream, audio);
+        }
+    }
+
+    /**
+     * Tells the listener that a stream finished. An exception of the listener is logged, so the other streams are
+     * still closed.
+     *
+     * @param stream Audio stream of the device
+     */
+    private void closed(AudioStream stream) {
+        try {
+            listener.streamClosed(stream);
+        } catch (RuntimeException e) {
+            System.out.println("UDP audio stream failed while closing: " + stream + " " + e);
+        }
+    }
+
+    /**
+     * Closes all the streams and the datagram channel.
+     */
+    private void closeAll() {
+        for (AudioStream stream : streams.values()) {
+            closed(stream);
+        }
+        streams.clear();
+        activeStreams = 0;
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing else can be done while shutting down
+        }
+    }
+}
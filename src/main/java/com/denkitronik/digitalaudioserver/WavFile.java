@@ -0,0 +1,167 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the header of a WAV (RIFF) file.
+ * It walks through the chunks of the file until the "data" chunk, reading the format from the "fmt " chunk
+ * and skipping the other chunks (LIST, fact, ...), so headers of any size are supported.
+ * After {@link #open(InputStream)} the input stream is positioned at the first audio byte.
+ */
+public final class WavFile {
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final AudioFormat format;
+    private final long dataLength;
+
+    private WavFile(AudioFormat format, long dataLength) {
+        this.format = format;
+        this.dataLength = dataLength;
+    }
+
+    /**
+     * Returns the audio format of the file.
+     *
+     * @return Audio format
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the length of the audio data in bytes.
+     *
+     * @return Length of the "data" chunk
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Reads the header of a WAV file and leaves the stream at the beginning of the audio data.
+     *
+     * @param inputStream Stream of the WAV file
+     * @return The format and the length of the audio data
+     * @throws IOException If the file is not a PCM WAV file
+     */
+    public static WavFile open(InputStream inputStream) throws IOException {
+        DataInputStream input = new DataInputStream(inputStream);
+        if (readTag(input) != tag("RIFF")) {
+            throw new IOException("Not a RIFF file");
+        }
+        readIntLE(input); // Size of the file
+        if (readTag(input) != tag("WAVE")) {
+            throw new IOException("Not a WAVE file");
+        }
+        AudioFormat format = null;
+        while (true) {
+            int chunkId = readTag(input);
+            long chunkSize = readIntLE(input) & 0xFFFFFFFFL;
+            if (chunkId == tag("fmt ")) {
+                format = readFormat(input, chunkSize);
+            } else if (chunkId == tag("data")) {
+                if (format == null) {
+                    throw new IOException("The data chunk is before the fmt chunk");
+                }
+                return new WavFile(format, chunkSize);
+            } else {
+                skip(input, chunkSize + (chunkSize & 1)); // Chunks are padded to an even size
+            }
+        }
+    }
+
+    /**
+     * Returns a 44-byte WAV header for PCM audio.
+     *
+     * @param format     Audio format (PCM, little endian for 16 and 24-bit samples)
+     * @param dataLength Length of the audio data in bytes
+     * @return The header
+     */
+    public static byte[] header(AudioFormat format, long dataLength) {
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        int sampleRate = Math.round(format.getSampleRate());
+        header.putInt(Integer.reverseBytes(tag("RIFF")));
+        header.putInt((int) Math.min(0xFFFFFFFFL, 36 + dataLength));
+        header.putInt(Integer.reverseBytes(tag("WAVE")));
+        header.putInt(Integer.reverseBytes(tag("fmt ")));
+        header.putInt(16);
+        header.putShort((short) WAVE_FORMAT_PCM);
+        header.putShort((short) format.getChannels());
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * format.getFrameSize());
+        header.putShort((short) format.getFrameSize());
+        header.putShort((short) format.getSampleSizeInBits());
+        header.putInt(Integer.reverseBytes(tag("data")));
+        header.putInt((int) Math.min(0xFFFFFFFFL, dataLength));
+        return header.array();
+    }
+
+    /**
+     * Reads the "fmt " chunk.
+     *
+     * @param input     Stream positioned at the content of the chunk
+     * @param chunkSize Size of the chunk
+     * @return Audio format
+     * @throws IOException If the format is not PCM
+     */
+    private static AudioFormat readFormat(DataInputStream input, long chunkSize) throws IOException {
+        int formatTag = readShortLE(input);
+        int channels = readShortLE(input);
+        int sampleRate = readIntLE(input);
+        readIntLE(input);                   // Byte rate
+        int blockAlign = readShortLE(input);
+        int bits = readShortLE(input);
+        long read = 16;
+        if (formatTag == WAVE_FORMAT_EXTENSIBLE && chunkSize >= 26) {
+            readShortLE(input);             // Size of the extension
+            readShortLE(input);             // Valid bits per sample
+            readIntLE(input);               // Channel mask
+            formatTag = readShortLE(input); // First two bytes of the sub format GUID
+            read += 10;
+        }
+        skip(input, chunkSize - read + (chunkSize & 1));
+        if (formatTag != WAVE_FORMAT_PCM) {
+            throw new IOException("Only PCM WAV files are supported (format " + formatTag + ")");
+        }
+        // 8-bit WAV samples are unsigned, larger samples are signed; WAV data is always little endian
+        return new AudioFormat(bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED,
+                sampleRate, bits, channels, blockAlign, sampleRate, false);
+    }
+
+    private static int tag(String name) {
+        return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+    }
+
+    private static int readTag(DataInputStream input) throws IOException {
+        return input.readInt();
+    }
+
+    private static int readIntLE(DataInputStream input) throws IOException {
+        return Integer.reverseBytes(input.readInt());
+    }
+
+    private static int readShortLE(DataInputStream input) throws IOException {
+        return Short.reverseBytes(input.readShort()) & 0xFFFF;
+    }
+
+    private static void skip(DataInputStream input, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = input.skip(bytes);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("Unexpected end of the WAV file");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Sink that records the audio in a WAV file. The sizes in the header are written when the sink is closed.
+ */
+public class WavFileSink implements AudioSink {
+
+    private final String fileName;
+    private AudioFormat format;
+    private OutputStream outputStream;
+    private long dataLength;
+
+    /**
+     * Creates the sink.
+     *
+     * @param fileName Path of the WAV file (it is overwritten)
+     */
+    public WavFileSink(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public void open(AudioFormat format) throws IOException {
+        this.format = format;
+        outputStream = new BufferedOutputStream(new FileOutputStream(fileName), 65536);
+        outputStream.write(WavFile.header(format, 0)); // The sizes are unknown until the end
+        System.out.println("Recording the audio in " + fileName);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        outputStream.write(data, offset, length);
+        dataLength += length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (outputStream == null) {
+            return;
+        }
+        outputStream.close();
+        outputStream = null;
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            file.write(WavFile.header(format, dataLength)); // Rewrite the header with the final sizes
+        }
+        System.out.println("Recording finished: " + fileName + " (" + dataLength + " bytes)");
+    }
+}
@@ -0,0 +1,89 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.jfree.data.xy.AbstractXYDataset;
+
+/**
+ * Chart dataset that reads the columns of a {@link WaveformDecimator} directly from its primitive arrays.
+ * The chart is notified once per refresh, instead of once per added point as with an XYSeries.
+ * It has three series: the value chosen by the visualization style, and the maximum and minimum of each column.
+ * All the methods must be called from the GUI thread.
+ */
+public class WaveformDataset extends AbstractXYDataset {
+
+    private static final String[] SERIES_KEYS = {"Amplitude (units)", "Maximum", "Minimum"};
+
+    private final WaveformDecimator decimator;
+    private final double columnSeconds;
+    private final LatencyHistogram renderLag;
+    private WaveformDecimator.Page page;
+
+    /**
+     * Creates the dataset.
+     *
+     * @param decimator     Decimator that produces the columns
+     * @param columnSeconds Duration of one column in seconds
+     * @param renderLag     Histogram where the age of each new page is recorded, or null
+     */
+    public WaveformDataset(WaveformDecimator decimator, double columnSeconds, LatencyHistogram renderLag) {
+        this.decimator = decimator;
+        this.columnSeconds = columnSeconds;
+        this.renderLag = renderLag;
+        this.page = decimator.acquire();
+    }
+
+    /**
+     * Takes the newest page of the decimator and notifies the chart if it changed.
+     */
+    public void refresh() {
+        long version = page.version;
+        page = decimator.acquire();
+        if (page.version != version) {
+            if (renderLag != null) {
+                renderLag.record(System.nanoTime() - page.timestamp); // Age of the audio when it is shown
+            }
+            fireDatasetChanged(); // One notification for the whole page
+        }
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return SERIES_KEYS.length;
+    }
+
+    @Override
+    public Comparable<String> getSeriesKey(int series) {
+        return SERIES_KEYS[series];
+    }
+
+    @Override
+    public int getItemCount(int series) {
+        return page.columns;
+    }
+
+    @Override
+    public Number getX(int series, int item) {
+        return getXValue(series, item);
+    }
+
+    @Override
+    public double getXValue(int series, int item) {
+        return (item + 1) * columnSeconds;
+    }
+
+    @Override
+    public Number getY(int series, int item) {
+        return getYValue(series, item);
+    }
+
+    @Override
+    public double getYValue(int series, int item) {
+        switch (series) {
+            case 1:
+                return page.maxs[item];
+            case 2:
+                return page.mins[item];
+            default:
+                return page.values[item];
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.denkitronik.digitalaudioserver;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reduces the audio samples to one value per pixel column of the waveform chart, outside the GUI thread.
+ * For each column it keeps the minimum, the maximum and the value chosen by the visualization {@link Style}.
+ * The columns are written in preallocated arrays and handed to the GUI thread through a triple buffer,
+ * so neither side allocates memory or waits for the other.
+ */
+public class WaveformDecimator {
+
+    /**
+     * Value shown for each column of the waveform.
+     */
+    public enum Style {
+        /**
+         * Show only the average of the values received in the column.
+         */
+        AVG,
+        /**
+         * Show the average of the average and the current value of the column.
+         */
+        AVG_AND_CURRENT,
+        /**
+         * Show only the current (last) value of the column.
+         */
+        UNIQUE_VALUE
+    }
+
+    /**
+     * One page of decimated columns.
+     */
+    public static final class Page {
+        final double[] values;  // Value of each column, according to the style
+        final double[] mins;    // Minimum value of each column
+        final double[] maxs;    // Maximum value of each column
+        int columns;            // Number of columns with data
+        long version;           // Publication number of the page
+        long timestamp;         // Time (System.nanoTime) when the newest audio of the page was produced
+
+        private Page(int width) {
+            values = new double[width];
+            mins = new double[width];
+            maxs = new double[width];
+        }
+    }
+
+    private final int width;
+    private double samplesPerColumn;
+    private final Style style;
+    private final boolean livePage;
+
+    // Columns being decimated (decimation thread only)
+    private final Page work;
+    private Page back;
+    private long version;
+    private long timestamp;         // Time when the newest added audio was produced
+    private long sampleIndex;       // Index of the next sample in the page
+    private double columnEnd;       // Sample index where the current column ends
+    private long sum;
+    private int count;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    // Latest published page
+    private final AtomicReference<Page> middle;
+
+    // Page shown by the GUI (GUI thread only)
+    private Page front;
+
+    /**
+     * Creates the decimator.
+     *
+     * @param width            Number of columns of one page
+     * @param samplesPerColumn Number of audio samples in one column
+     * @param style            Value shown for each column
+     * @param livePage         True to publish the page while it is being filled, false to publish only complete pages
+     */
+    public WaveformDecimator(int width, double samplesPerColumn, Style style, boolean livePage) {
+        this.width = width;
+        this.samplesPerColumn = samplesPerColumn;
+        this.style = style;
+        this.livePage = livePage;
+        this.work = new Page(width);
+        this.back = new Page(width);
+        this.middle = new AtomicReference<>(new Page(width));
+        this.front = new Page(width);
+        this.columnEnd = samplesPerColumn;
+    }
+
+    /**
+     * Adds audio samples to the waveform. Only the decimation thread can call this method.
+     *
+     * @param samples Audio samples
+     * @param length  Number of samples to add
+     */
+    public void add(short[] samples, int length) {
+        add(samples, length, System.nanoTime());
+    }
+
+    /**
+     * Adds audio samples to the waveform. Only the decimation thread can call this method.
+     *
+     * @param samples   Audio samples
+     * @param length    Number of samples to add
+     * @param timestamp Time (System.nanoTime) when the samples were produced, to measure the render lag
+     */
+    public void add(short[] samples, int length, long timestamp) {
+        this.timestamp = timestamp;
+        for (int i = 0; i < length; i++) {
+            int value = samples[i];
+            sum += value;
+            count++;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            if (++sampleIndex >= columnEnd) {
+                closeColumn(value);
+            }
+        }
+        if (livePage) {
+            publish();
+        }
+    }
+
+    /**
+     * Starts a new page with another number of samples per column, for example when the sample rate changes.
+     * Only the decimation thread can call this method.
+     *
+     * @param samplesPerColumn Number of audio samples in one column
+     */
+    public void reset(double samplesPerColumn) {
+        this.samplesPerColumn = samplesPerColumn;
+        work.columns = 0;
+        sampleIndex = 0;
+        columnEnd = samplesPerColumn;
+        sum = 0;
+        count = 0;
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the newest published page. Only the GUI thread can call this method, and the page
+     * can be read until the next call.
+     *
+     * @return The newest page
+     */
+    public Page acquire() {
+        if (middle.get().version > front.version) {
+            front = middle.getAndSet(front); // Take the newest page and give back the old one
+        }
+        return front;
+    }
+
+    /**
+     * Returns the number of columns of one page.
+     *
+     * @return Page width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Stores the value of the current column and starts the next one.
+     *
+     * @param current The last value of the column
+     */
+    private void closeColumn(int current) {
+        double average = (double) sum / count;
+        double value;
+        switch (style) { // Selected visualization style
+            case AVG:
+                value = average;
+                break;
+            case AVG_AND_CURRENT:
+                value = (average + current) / 2;
+                break;
+            default:
+                value = current;
+                break;
+        }
+        int column = work.columns++;
+        work.values[column] = value;
+        work.mins[column] = min;
+        work.maxs[column] = max;
+        sum = 0;
+        count = 0;
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+        columnEnd += samplesPerColumn;
+        if (work.columns == width) { // The page is complete
+            publish();
+            work.columns = 0;
+            sampleIndex = 0;
+            columnEnd = samplesPerColumn;
+        }
+    }
+
+    /**
+     * Copies the columns to the back page and makes it the newest published page.
+     */
+    private void publish() {
+        int columns = work.columns;
+        System.arraycopy(work.values, 0, back.values, 0, columns);
+        System.arraycopy(work.mins, 0, back.mins, 0, columns);
+        System.arraycopy(work.maxs, 0, back.maxs, 0, columns);
+        back.columns = columns;
+        back.version = ++version;
+        back.timestamp = timestamp;
+        back = middle.getAndSet(back);
+    }
+}
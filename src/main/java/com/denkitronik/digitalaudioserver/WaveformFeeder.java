@@ -0,0 +1,87 @@
+package com.denkitronik.digitalaudioserver;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Waveform loop: reads the audio of a ring buffer on its own thread (never on the GUI thread), mixes it to mono and
+ * adds it to a {@link WaveformDecimator}. It does not use Swing, so the same loop feeds the window and the headless
+ * benchmarks. Each frame is copied from the ring before it is decoded, so the waveform never shows a frame that is
+ * being overwritten. If the thread cannot keep up, it skips to the newest frame.
+ */
+public class WaveformFeeder implements Runnable {
+
+    private static final int MAX_LAG = 8;                           // Frames the waveform may fall behind the ring
+    private static final long READ_TIMEOUT_NANOS = 100_000_000L;    // Maximum time the loop waits for a frame
+
+    private final PcmRingBuffer ring;
+    private final AudioFormat format;
+    private final WaveformDecimator decimator;
+    private volatile boolean skipSilence;
+
+    /**
+     * Creates the waveform loop.
+     *
+     * @param ring      Ring buffer with the audio to show
+     * @param format    Audio format of the ring (16-bit)
+     * @param decimator Decimator that receives the mono samples
+     */
+    public WaveformFeeder(PcmRingBuffer ring, AudioFormat format, WaveformDecimator decimator) {
+        this.ring = ring;
+        this.format = format;
+        this.decimator = decimator;
+    }
+
+    /**
+     * Sets whether the silent frames are skipped, to save CPU. The waveform then keeps showing the last sound.
+     *
+     * @param skipSilence True to skip the silent audio
+     */
+    public void setSkipSilence(boolean skipSilence) {
+        this.skipSilence = skipSilence;
+    }
+
+    /**
+     * Waveform loop. Reads the ring until the thread is interrupted or the ring is closed.
+     */
+    @Override
+    public void run() {
+        byte[] frame = new byte[ring.getSlotBytes()];       // Buffer to copy the frames of the ring
+        short[] samples = new short[ring.getSlotBytes()];   // Decoded samples of the frame
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.SKIP_TO_LATEST, MAX_LAG);
+        PcmCodec codec = new PcmCodec(format);
+        LevelMeter meter = new LevelMeter(format, null, null);
+        int channels = format.getChannels();
+        while (!Thread.currentThread().isInterrupted()) {
+            int bytesRead = cursor.read(frame, 0, READ_TIMEOUT_NANOS);
+            if (bytesRead < 0) {
+                return;
+            } else if (bytesRead > 0 && !(skipSilence && meter.analyze(frame, 0, bytesRead))) {
+                int count = codec.decode(frame, 0, bytesRead, samples, 0);
+                decimator.add(samples, downmix(samples, count, channels), cursor.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Mixes the channels of interleaved samples to one channel, in place.
+     *
+     * @param samples  Interleaved samples
+     * @param count    Number of samples
+     * @param channels Number of channels
+     * @return Number of mono samples
+     */
+    static int downmix(short[] samples, int count, int channels) {
+        if (channels == 1) {
+            return count;
+        }
+        int frames = count / channels;
+        for (int frame = 0, i = 0; frame < frames; frame++) {
+            int sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += samples[i++];
+            }
+            samples[frame] = (short) (sum / channels);
+        }
+        return frames;
+    }
+}
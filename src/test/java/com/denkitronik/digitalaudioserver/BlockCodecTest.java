@@ -0,0 +1,138 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Round trips of the block codecs ({@link ImaAdpcmCodec} and {@link DeltaVarintCodec}).
+ */
+class BlockCodecTest {
+
+    /**
+     * Returns 16-bit little endian PCM with a sine in each channel (a different frequency per channel).
+     *
+     * @param frames    Number of frames
+     * @param channels  Number of channels
+     * @param amplitude Peak of the sines
+     * @return PCM bytes
+     */
+    private static byte[] sine(int frames, int channels, double amplitude) {
+        byte[] pcm = new byte[frames * channels * 2];
+        for (int frame = 0, i = 0; frame < frames; frame++) {
+            for (int channel = 0; channel < channels; channel++) {
+                double hertz = 440 + 220 * channel;
+                int sample = (int) Math.round(amplitude * Math.sin(2 * Math.PI * hertz * frame / 44100.0));
+                pcm[i++] = (byte) sample;
+                pcm[i++] = (byte) (sample >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Returns the signal-to-noise ratio of decoded audio.
+     *
+     * @param original Original PCM
+     * @param decoded  Decoded PCM
+     * @param from     First byte compared
+     * @return Ratio in dB
+     */
+    private static double snr(byte[] original, byte[] decoded, int from) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = from; i < original.length; i += 2) {
+            int a = (short) ((original[i] & 0xFF) | (original[i + 1] << 8));
+            int b = (short) ((decoded[i] & 0xFF) | (decoded[i + 1] << 8));
+            signal += (double) a * a;
+            noise += (double) (a - b) * (a - b);
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1));
+    }
+
+    /**
+     * The delta varint codec is lossless, also for the extreme samples and random noise.
+     */
+    @Test
+    void deltaVarintIsLossless() throws ProtocolException {
+        for (int channels = 1; channels <= 2; channels++) {
+            byte[] pcm = new byte[4096];
+            new Random(channels).nextBytes(pcm);
+            pcm[0] = 0;
+            pcm[1] = (byte) 0x80;   // -32768
+            pcm[2] = (byte) 0xFF;
+            pcm[3] = 0x7F;          // 32767, the largest difference
+            BlockCodec codec = BlockCodec.create(BlockCodec.DELTA_VARINT, channels);
+            byte[] block = new byte[codec.maxEncodedBytes(pcm.length)];
+            int encoded = codec.encode(pcm, 0, pcm.length, block, 0);
+            assertTrue(encoded <= block.length);
+            byte[] decoded = new byte[codec.maxDecodedBytes(encoded)];
+            assertEquals(pcm.length, codec.decode(block, 0, encoded, decoded, 0));
+            for (int i = 0; i < pcm.length; i++) {
+                assertEquals(pcm[i], decoded[i], "Byte " + i);
+            }
+        }
+    }
+
+    /**
+     * Quiet low frequency audio takes less than two bytes per sample with the delta varint codec.
+     */
+    @Test
+    void deltaVarintCompressesQuietAudio() {
+        byte[] pcm = sine(1024, 1, 1000);
+        BlockCodec codec = BlockCodec.create(BlockCodec.DELTA_VARINT, 1);
+        byte[] block = new byte[codec.maxEncodedBytes(pcm.length)];
+        assertTrue(codec.encode(pcm, 0, pcm.length, block, 0) < pcm.length * 0.75);
+    }
+
+    /**
+     * A truncated varint is rejected.
+     */
+    @Test
+    void deltaVarintRejectsTruncatedBlocks() {
+        BlockCodec codec = BlockCodec.create(BlockCodec.DELTA_VARINT, 1);
+        assertThrows(ProtocolException.class, () -> codec.decode(new byte[]{(byte) 0x81}, 0, 1, new byte[4], 0));
+    }
+
+    /**
+     * The ADPCM codec compresses 4:1 within its maximum size and keeps a sine recognizable, in mono and stereo,
+     * and every block is decoded on its own.
+     */
+    @Test
+    void imaAdpcmRoundTrip() throws ProtocolException {
+        for (int channels = 1; channels <= 2; channels++) {
+            byte[] pcm = sine(4096, channels, 16000);
+            BlockCodec encoder = BlockCodec.create(BlockCodec.IMA_ADPCM, channels);
+            BlockCodec decoder = BlockCodec.create(BlockCodec.IMA_ADPCM, channels);
+            int blockPcm = 512 * channels * 2;
+            byte[] decoded = new byte[pcm.length];
+            byte[] block = new byte[encoder.maxEncodedBytes(blockPcm)];
+            for (int offset = 0; offset < pcm.length; offset += blockPcm) {
+                int encoded = encoder.encode(pcm, offset, blockPcm, block, 0);
+                assertTrue(encoded <= encoder.maxEncodedBytes(blockPcm));
+                assertTrue(encoded < blockPcm / 3, "ADPCM block of " + encoded + " bytes");
+                assertEquals(blockPcm, decoder.decode(block, 0, encoded, decoded, offset));
+            }
+            double snr = snr(pcm, decoded, blockPcm); // The first block starts from the default step index
+            assertTrue(snr > 20, "SNR " + snr + " dB");
+        }
+    }
+
+    /**
+     * ADPCM blocks whose size does not match their number of frames, or with an invalid step index, are rejected.
+     */
+    @Test
+    void imaAdpcmRejectsInvalidBlocks() {
+        BlockCodec codec = BlockCodec.create(BlockCodec.IMA_ADPCM, 1);
+        byte[] pcm = new byte[1024];
+        assertThrows(ProtocolException.class, () -> codec.decode(new byte[]{1}, 0, 1, pcm, 0));
+        byte[] block = new byte[codec.maxEncodedBytes(64)];
+        int encoded = codec.encode(sine(32, 1, 1000), 0, 64, block, 0);
+        assertThrows(ProtocolException.class, () -> codec.decode(block, 0, encoded - 1, pcm, 0));
+        block[4] = 100; // Step index
+        assertThrows(ProtocolException.class, () -> codec.decode(block, 0, encoded, pcm, 0));
+    }
+}
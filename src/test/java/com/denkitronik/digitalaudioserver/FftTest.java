@@ -0,0 +1,82 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the real FFT against a direct discrete Fourier transform.
+ */
+class FftTest {
+
+    /**
+     * The power spectrum of random signals matches the direct DFT for every size.
+     */
+    @Test
+    void matchesTheDirectTransform() {
+        Random random = new Random(7);
+        for (int size = 4; size <= 512; size *= 2) {
+            double[] input = new double[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = random.nextDouble() * 2 - 1;
+            }
+            double[] power = new double[size / 2 + 1];
+            new Fft(size).powerSpectrum(input, power);
+            for (int k = 0; k <= size / 2; k++) {
+                double re = 0;
+                double im = 0;
+                for (int n = 0; n < size; n++) {
+                    re += input[n] * Math.cos(2 * Math.PI * k * n / size);
+                    im -= input[n] * Math.sin(2 * Math.PI * k * n / size);
+                }
+                double expected = re * re + im * im;
+                assertEquals(expected, power[k], 1e-9 * size * size, "Size " + size + ", bin " + k);
+            }
+        }
+    }
+
+    /**
+     * A sine that completes a whole number of periods puts all its power in its bin: (N / 2)^2 times its amplitude
+     * squared.
+     */
+    @Test
+    void sineFallsInItsBin() {
+        int size = 1024;
+        int bin = 37;
+        double[] input = new double[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = 0.5 * Math.sin(2 * Math.PI * bin * i / size);
+        }
+        double[] power = new double[size / 2 + 1];
+        Fft fft = new Fft(size);
+        fft.powerSpectrum(input, power);
+        assertEquals(size, fft.getSize());
+        assertEquals(Math.pow(size / 2.0 * 0.5, 2), power[bin], 1e-6);
+        for (int k = 0; k <= size / 2; k++) {
+            if (k != bin) {
+                assertEquals(0, power[k], 1e-12 * size * size, "Bin " + k);
+            }
+        }
+    }
+
+    /**
+     * A constant signal only has a DC component, and the same instance can be used again.
+     */
+    @Test
+    void constantOnlyHasDc() {
+        Fft fft = new Fft(64);
+        double[] power = new double[33];
+        for (int pass = 0; pass < 2; pass++) {
+            double[] input = new double[64];
+            Arrays.fill(input, 0.25);
+            fft.powerSpectrum(input, power);
+            assertEquals(16 * 16, power[0], 1e-9);
+            for (int k = 1; k <= 32; k++) {
+                assertEquals(0, power[k], 1e-9);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the reorder buffer of the UDP streams: reordering, concealment, late and duplicate packets.
+ */
+class JitterBufferTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 1, true, false);
+    private static final int SAMPLES = 8;           // Samples per packet
+    private static final long WAIT = 100_000_000L;  // Longer than the longest delay of the buffer
+
+    /**
+     * Returns a packet whose samples all have the same value.
+     *
+     * @param value Value of the samples
+     * @return Audio of the packet
+     */
+    private static ByteBuffer packet(int value) {
+        ByteBuffer audio = ByteBuffer.allocate(SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < SAMPLES; i++) {
+            audio.putShort((short) value);
+        }
+        return audio.flip();
+    }
+
+    /**
+     * Adds a packet sent and received at the same time, so the jitter stays 0.
+     *
+     * @param buffer   Jitter buffer
+     * @param sequence Sequence number, also used as the value of the samples
+     * @param now      Arrival time
+     * @return What happened to the packet
+     */
+    private static JitterBuffer.Arrival add(JitterBuffer buffer, int sequence, long now) {
+        return buffer.add(sequence, now / 1000, packet(sequence), now);
+    }
+
+    /**
+     * Returns a sample of released audio.
+     *
+     * @param audio Released audio
+     * @param index Index of the sample
+     * @return Sample
+     */
+    private static short sample(ByteBuffer audio, int index) {
+        return audio.order(ByteOrder.LITTLE_ENDIAN).getShort(audio.position() + 2 * index);
+    }
+
+    /**
+     * Packets that arrive out of order are released in the order of their sequence numbers.
+     */
+    @Test
+    void releasesReorderedPacketsInOrder() {
+        JitterBuffer buffer = new JitterBuffer(FORMAT);
+        assertEquals(JitterBuffer.Arrival.IN_ORDER, add(buffer, 10, 0));
+        assertEquals(JitterBuffer.Arrival.IN_ORDER, add(buffer, 12, 0));
+        assertEquals(JitterBuffer.Arrival.REORDERED, add(buffer, 11, 0));
+        for (int sequence = 10; sequence <= 12; sequence++) {
+            ByteBuffer audio = buffer.poll(0);
+            assertNotNull(audio);
+            assertFalse(buffer.wasConcealed());
+            assertEquals(SAMPLES * 2, audio.remaining());
+            assertEquals(sequence, sample(audio, 0));
+        }
+        assertNull(buffer.poll(WAIT));
+    }
+
+    /**
+     * A missing packet is waited for during the delay, then replaced by the last packet, faded out to silence.
+     */
+    @Test
+    void concealsLostPackets() {
+        JitterBuffer buffer = new JitterBuffer(FORMAT);
+        buffer.add(0, 0, packet(1000), 0);
+        assertEquals(JitterBuffer.Arrival.DUPLICATE, buffer.add(0, 0, packet(0), 0)); // Still waiting
+        assertEquals(1000, sample(buffer.poll(0), 0));
+        add(buffer, 5, 0);
+        assertNull(buffer.poll(buffer.getDelayNanos() - 1)); // Packet 1 may still arrive
+        long now = WAIT;
+        ByteBuffer audio = buffer.poll(now);
+        assertTrue(buffer.wasConcealed());
+        assertEquals(SAMPLES * 2, audio.remaining());
+        assertEquals(1000, sample(audio, 0));             // The fade starts at the last packet
+        assertTrue(sample(audio, SAMPLES - 1) < 1000);
+        for (int lost = 2; lost <= 4; lost++) {
+            audio = buffer.poll(now);
+            assertTrue(buffer.wasConcealed());
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            assertTrue(Math.abs(sample(audio, i)) <= 250, "Concealed sample " + sample(audio, i));
+        }
+        assertEquals(5, sample(buffer.poll(now), 0));
+        assertFalse(buffer.wasConcealed());
+    }
+
+    /**
+     * Packets that arrive after they were given up are dropped and make the delay grow; their copies are duplicates
+     * and do not make it grow again.
+     */
+    @Test
+    void lateAndDuplicatePackets() {
+        JitterBuffer buffer = new JitterBuffer(FORMAT);
+        add(buffer, 0, 0);
+        buffer.poll(0);
+        add(buffer, 2, 0);
+        buffer.poll(WAIT);                                  // Packet 1 given up
+        assertTrue(buffer.wasConcealed());
+        buffer.poll(WAIT);
+        add(buffer, 4, WAIT);
+        buffer.poll(2 * WAIT);                              // Packet 3 given up
+        assertTrue(buffer.wasConcealed());
+        assertEquals(4, sample(buffer.poll(2 * WAIT), 0));
+        long delay = buffer.getDelayNanos();
+
+        assertEquals(JitterBuffer.Arrival.LATE, add(buffer, 1, 2 * WAIT));
+        assertEquals(JitterBuffer.Arrival.LATE, add(buffer, 3, 2 * WAIT));
+        long grown = buffer.getDelayNanos();
+        assertTrue(grown > delay, "The delay did not grow: " + grown);
+
+        assertEquals(JitterBuffer.Arrival.DUPLICATE, add(buffer, 1, 2 * WAIT));
+        assertEquals(JitterBuffer.Arrival.DUPLICATE, add(buffer, 3, 2 * WAIT));
+        assertEquals(JitterBuffer.Arrival.DUPLICATE, add(buffer, 2, 2 * WAIT)); // Released
+        assertEquals(JitterBuffer.Arrival.LATE, add(buffer, -100, 2 * WAIT));   // Too old to know
+        assertEquals(grown, buffer.getDelayNanos());
+        assertNull(buffer.poll(3 * WAIT));
+    }
+
+    /**
+     * The delay follows the interarrival jitter of the packets.
+     */
+    @Test
+    void delayFollowsTheJitter() {
+        JitterBuffer buffer = new JitterBuffer(FORMAT);
+        long period = 1_000_000L;
+        for (int sequence = 0; sequence < 200; sequence++) {
+            long jitter = sequence % 2 == 0 ? 0 : 5_000_000L; // Every other packet arrives 5 ms late
+            buffer.add(sequence, sequence * period / 1000, packet(sequence), sequence * period + jitter);
+            buffer.poll(sequence * period + jitter);
+        }
+        assertTrue(buffer.getJitterNanos() > 4_000_000L, "Jitter " + buffer.getJitterNanos());
+        assertTrue(buffer.getDelayNanos() > 16_000_000L, "Delay " + buffer.getDelayNanos());
+    }
+}
@@ -0,0 +1,108 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the conversion between PCM bytes and samples.
+ */
+class PcmCodecTest {
+
+    /**
+     * 16-bit samples are decoded with the byte order of the format.
+     */
+    @Test
+    void decodesBothByteOrders() {
+        short[] samples = new short[2];
+        PcmCodec little = new PcmCodec(new AudioFormat(44100, 16, 1, true, false));
+        little.decode(new byte[]{0x34, 0x12, 0x00, (byte) 0x80}, 0, 4, samples, 0);
+        assertArrayEquals(new short[]{0x1234, Short.MIN_VALUE}, samples);
+        PcmCodec big = new PcmCodec(new AudioFormat(44100, 16, 1, true, true));
+        big.decode(new byte[]{0x12, 0x34, (byte) 0x80, 0x00}, 0, 4, samples, 0);
+        assertArrayEquals(new short[]{0x1234, Short.MIN_VALUE}, samples);
+    }
+
+    /**
+     * Unsigned 8-bit samples are centered at 0 and shifted to 16 bits, and encoded back.
+     */
+    @Test
+    void convertsUnsignedEightBits() {
+        PcmCodec codec = new PcmCodec(new AudioFormat(8000, 8, 1, false, false));
+        short[] samples = new short[3];
+        codec.decode(new byte[]{(byte) 0x80, (byte) 0xFF, 0x00}, 0, 3, samples, 0);
+        assertArrayEquals(new short[]{0, 127 << 8, -128 << 8}, samples);
+        byte[] bytes = new byte[3];
+        assertEquals(3, codec.encode(samples, 0, 3, bytes, 0));
+        assertArrayEquals(new byte[]{(byte) 0x80, (byte) 0xFF, 0x00}, bytes);
+    }
+
+    /**
+     * 24-bit samples are reduced to their 16 most significant bits when they are decoded to short.
+     */
+    @Test
+    void decodesTwentyFourBitsToShort() {
+        PcmCodec codec = new PcmCodec(new AudioFormat(48000, 24, 1, true, false));
+        short[] samples = new short[1];
+        codec.decode(new byte[]{0x56, 0x34, 0x12}, 0, 3, samples, 0);
+        assertEquals(0x1234, samples[0]);
+    }
+
+    /**
+     * Decoding to float and encoding again gives back the same bytes for every supported format, at any offset.
+     */
+    @Test
+    void floatRoundTripIsTheIdentity() {
+        Random random = new Random(1);
+        for (int bits : new int[]{8, 16, 24}) {
+            for (boolean signed : new boolean[]{true, false}) {
+                for (boolean bigEndian : new boolean[]{false, true}) {
+                    PcmCodec codec = new PcmCodec(new AudioFormat(44100, bits, 2, signed, bigEndian));
+                    int length = 600 * bits / 8;
+                    byte[] original = new byte[length + 1];
+                    random.nextBytes(original);
+                    float[] samples = new float[600];
+                    byte[] encoded = new byte[length + 1];
+                    for (int offset = 0; offset < 2; offset++) {
+                        assertEquals(600, codec.decode(original, offset, length, samples, 0));
+                        for (float sample : samples) {
+                            assertTrue(sample >= -1f && sample < 1f, "Sample out of range: " + sample);
+                        }
+                        assertEquals(length, codec.encode(samples, 0, 600, encoded, offset));
+                        for (int i = offset; i < offset + length; i++) {
+                            assertEquals(original[i], encoded[i], bits + "-bit sample byte " + i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples beyond full scale are clipped.
+     */
+    @Test
+    void clipsOutOfRangeSamples() {
+        assertEquals(Short.MAX_VALUE, PcmCodec.toShort(1.5f));
+        assertEquals(Short.MIN_VALUE, PcmCodec.toShort(-1f));
+        assertEquals(Short.MIN_VALUE, PcmCodec.toShort(-2f));
+        assertEquals(16384, PcmCodec.toShort(0.5f));
+        PcmCodec codec = new PcmCodec(new AudioFormat(48000, 24, 1, true, true));
+        byte[] bytes = new byte[6];
+        codec.encode(new float[]{2f, -2f}, 0, 2, bytes, 0);
+        assertArrayEquals(new byte[]{0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0x80, 0, 0}, bytes);
+    }
+
+    /**
+     * Formats that are not 8, 16 or 24-bit PCM are rejected.
+     */
+    @Test
+    void rejectsUnsupportedFormats() {
+        assertThrows(IllegalArgumentException.class, () -> new PcmCodec(new AudioFormat(44100, 32, 1, true, false)));
+        assertThrows(IllegalArgumentException.class, () -> new PcmCodec(
+                new AudioFormat(AudioFormat.Encoding.ULAW, 8000, 8, 1, 1, 8000, false)));
+    }
+}
@@ -0,0 +1,156 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the lock-free ring buffer: frame splitting, overrun policies, closing and concurrent reads.
+ */
+class PcmRingBufferTest {
+
+    /**
+     * The audio is split into frames of at most one slot, without cutting audio frames.
+     */
+    @Test
+    void publishSplitsWholeFrames() {
+        PcmRingBuffer ring = new PcmRingBuffer(8, 10);
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, 8);
+        ring.publish(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}), 4);
+        byte[] frame = new byte[10];
+        assertEquals(8, cursor.read(frame, 0)); // Two 4-byte frames fit in a 10-byte slot
+        assertEquals(8, frame[7]);
+        assertEquals(4, cursor.read(frame, 0));
+        assertEquals(12, frame[3]);
+        assertEquals(0, cursor.read(frame, 0));
+        assertEquals(2, ring.getPublishedFrames());
+    }
+
+    /**
+     * The number of slots is rounded up to a power of two, and DROP_OLDEST keeps the newest frames that fit.
+     */
+    @Test
+    void dropOldestKeepsTheNewestFrames() {
+        PcmRingBuffer ring = new PcmRingBuffer(3, 1); // 4 slots
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, 100);
+        for (int i = 0; i < 6; i++) {
+            ring.publish(ByteBuffer.wrap(new byte[]{(byte) i}), 1);
+        }
+        byte[] frame = new byte[1];
+        for (int expected = 3; expected < 6; expected++) { // The lag is limited to the size of the ring minus one
+            assertEquals(1, cursor.read(frame, 0));
+            assertEquals(expected, frame[0]);
+        }
+        assertEquals(0, cursor.read(frame, 0));
+        assertEquals(3, cursor.getDroppedFrames());
+        assertEquals(1, cursor.getOverruns());
+    }
+
+    /**
+     * SKIP_TO_LATEST continues with the newest frame.
+     */
+    @Test
+    void skipToLatestReadsTheNewestFrame() {
+        PcmRingBuffer ring = new PcmRingBuffer(16, 1);
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.SKIP_TO_LATEST, 2);
+        for (int i = 0; i < 10; i++) {
+            ring.publish(ByteBuffer.wrap(new byte[]{(byte) i}), 1);
+        }
+        byte[] frame = new byte[1];
+        assertEquals(1, cursor.read(frame, 0));
+        assertEquals(9, frame[0]);
+        assertEquals(0, cursor.getLag());
+    }
+
+    /**
+     * A closed ring can still be read until it is empty, and then it returns -1.
+     */
+    @Test
+    void closedRingIsReadUntilEmpty() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 4);
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, 4);
+        ring.publish(ByteBuffer.wrap(new byte[]{1, 2}), 2);
+        ring.close();
+        byte[] frame = new byte[4];
+        assertEquals(2, cursor.read(frame, 0));
+        assertEquals(-1, cursor.read(frame, 0));
+        assertEquals(-1, cursor.read(frame, 0, 1_000_000L));
+    }
+
+    /**
+     * A power of two is kept as it is: a ring of two slots lets a consumer fall behind by only one frame.
+     */
+    @Test
+    void powerOfTwoSlotsAreKept() {
+        PcmRingBuffer ring = new PcmRingBuffer(2, 1);
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, 100);
+        for (int i = 0; i < 3; i++) {
+            ring.publish(ByteBuffer.wrap(new byte[]{(byte) i}), 1);
+        }
+        byte[] frame = new byte[1];
+        assertEquals(1, cursor.read(frame, 0));
+        assertEquals(2, frame[0]);
+        assertEquals(2, cursor.getDroppedFrames());
+    }
+
+    /**
+     * Invalid numbers of slots are rejected.
+     */
+    @Test
+    void invalidSlotsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new PcmRingBuffer(0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new PcmRingBuffer((1 << 30) + 1, 4));
+    }
+
+    /**
+     * A consumer that falls behind a fast producer never reads a frame that was overwritten while it was copied,
+     * and reads the frames in order.
+     */
+    @Test
+    void concurrentReadsAreNeverTorn() throws InterruptedException {
+        int slotBytes = 256;
+        int frames = 200_000;
+        PcmRingBuffer ring = new PcmRingBuffer(8, slotBytes);
+        PcmRingBuffer.Cursor cursor = ring.newCursor(PcmRingBuffer.OverrunPolicy.DROP_OLDEST, 4);
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            byte[] frame = new byte[slotBytes];
+            int last = -1;
+            int length;
+            while ((length = cursor.read(frame, 0, 100_000_000L)) >= 0) {
+                if (length == 0) {
+                    continue;
+                }
+                int value = ByteBuffer.wrap(frame).getInt(0);
+                for (int i = 4; i < length; i++) {
+                    if (frame[i] != (byte) value) {
+                        error.set("Frame " + value + " was torn at byte " + i);
+                        return;
+                    }
+                }
+                if (value <= last) {
+                    error.set("Frame " + value + " read after frame " + last);
+                    return;
+                }
+                last = value;
+            }
+        });
+        consumer.start();
+        ByteBuffer frame = ByteBuffer.allocate(slotBytes);
+        for (int i = 0; i < frames; i++) {
+            frame.clear();
+            frame.putInt(i);
+            while (frame.hasRemaining()) {
+                frame.put((byte) i);
+            }
+            ring.publish(frame.flip(), slotBytes);
+        }
+        ring.close();
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertNull(error.get());
+    }
+}
@@ -0,0 +1,207 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.SourceDataLine;
+import java.lang.reflect.Proxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the playback scheduler against a simulated sound card whose clock drifts from the mixer clock.
+ */
+class PlaybackSchedulerTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+    private static final int BLOCK_FRAMES = 441;            // 10 ms blocks, like the mixer
+    private static final long BLOCK_NANOS = 10_000_000L;
+    private static final int BUFFER_FRAMES = 44100 / 2;     // 500 ms line buffer
+    private static final int TARGET_MILLIS = 100;
+
+    /**
+     * Sound card that plays the written frames with its own clock. Writes never block: the scheduler must not
+     * write more than {@link SourceDataLine#available()}.
+     */
+    private static final class FakeCard {
+        final double framesPerNano;     // Speed of the card clock
+        double played;                  // Frames played, with the fraction of the current frame
+        long written;
+
+        FakeCard(double driftPpm) {
+            framesPerNano = FORMAT.getSampleRate() * (1 + driftPpm * 1e-6) / 1e9;
+        }
+
+        /**
+         * Plays the audio of some time. The card stops at the last written frame when it runs dry.
+         *
+         * @param nanos Time in nanoseconds
+         */
+        void advance(long nanos) {
+            played = Math.min(played + nanos * framesPerNano, written);
+        }
+
+        /**
+         * Returns the frames written but not played yet.
+         *
+         * @return Queued frames
+         */
+        int queued() {
+            return (int) (written - (long) played);
+        }
+
+        /**
+         * Returns a line backed by this card.
+         *
+         * @return Line
+         */
+        SourceDataLine line() {
+            int frameSize = FORMAT.getFrameSize();
+            return (SourceDataLine) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{SourceDataLine.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getBufferSize":
+                                return BUFFER_FRAMES * frameSize;
+                            case "available":
+                                return (BUFFER_FRAMES - queued()) * frameSize;
+                            case "getLongFramePosition":
+                                return (long) played;
+                            case "getFormat":
+                                return FORMAT;
+                            case "write":
+                                int length = (Integer) args[2];
+                                if (length > (BUFFER_FRAMES - queued()) * frameSize) {
+                                    throw new AssertionError("The write of " + length + " bytes would block");
+                                }
+                                written += length / frameSize;
+                                return length;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Writes one block of the mixer and lets the card play for one block of mixer time.
+     *
+     * @param scheduler Scheduler
+     * @param card      Sound card
+     * @param block     Audio block
+     */
+    private static void tick(PlaybackScheduler scheduler, FakeCard card, byte[] block) {
+        scheduler.write(block, 0, block.length);
+        card.advance(BLOCK_NANOS);
+    }
+
+    /**
+     * Returns a block of a quiet sine, so the resampling works on real audio.
+     *
+     * @return Audio bytes
+     */
+    private static byte[] block() {
+        float[] samples = new float[BLOCK_FRAMES * 2];
+        for (int i = 0; i < BLOCK_FRAMES; i++) {
+            samples[2 * i] = samples[2 * i + 1] = (float) (0.1 * Math.sin(2 * Math.PI * 1000 * i / 44100.0));
+        }
+        byte[] bytes = new byte[BLOCK_FRAMES * FORMAT.getFrameSize()];
+        new PcmCodec(FORMAT).encode(samples, 0, samples.length, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * With a card faster or slower than the mixer, the speed converges to the ratio of the clocks and the fill level
+     * settles at drift * target / RATE_GAIN from the target, without underruns or overruns.
+     */
+    @Test
+    void followsTheClockDrift() {
+        byte[] block = block();
+        for (double driftPpm : new double[]{300, -300, 3000, -3000}) {
+            FakeCard card = new FakeCard(driftPpm);
+            PlaybackScheduler scheduler = new PlaybackScheduler(card.line(), FORMAT, TARGET_MILLIS);
+            int target = scheduler.getTargetFrames();
+            assertEquals(4410, target);
+            for (int i = 0; i < 6000; i++) { // 60 s
+                tick(scheduler, card, block);
+            }
+            double expectedRate = 1 / (1 + driftPpm * 1e-6);
+            double expectedFill = target - driftPpm * 1e-6 * target / PlaybackScheduler.RATE_GAIN;
+            double rate = 0;
+            double fill = 0;
+            for (int i = 0; i < 1000; i++) { // Averaged over 10 s
+                tick(scheduler, card, block);
+                rate += scheduler.getRate() / 1000;
+                fill += scheduler.getFillFrames() / 1000.0;
+            }
+            String drift = driftPpm + " ppm";
+            assertEquals(expectedRate, rate, 20e-6, drift);
+            assertEquals(expectedFill, fill, BLOCK_FRAMES / 2.0, drift);
+            assertEquals(0, scheduler.getUnderruns(), drift);
+            assertEquals(0, scheduler.getOverruns(), drift);
+        }
+    }
+
+    /**
+     * A drift larger than {@link PlaybackScheduler#MAX_RATE_ADJUSTMENT} cannot be followed: the speed stays at its
+     * limit.
+     */
+    @Test
+    void limitsTheSpeedChange() {
+        FakeCard card = new FakeCard(-20000);
+        PlaybackScheduler scheduler = new PlaybackScheduler(card.line(), FORMAT, TARGET_MILLIS);
+        byte[] block = block();
+        for (int i = 0; i < 3000; i++) {
+            tick(scheduler, card, block);
+        }
+        assertEquals(1 + PlaybackScheduler.MAX_RATE_ADJUSTMENT, scheduler.getRate(), 1e-9);
+        assertTrue(scheduler.getOverruns() > 0); // The card is too slow, so the line fills up
+    }
+
+    /**
+     * A sudden jump of the fill level moves the speed by only 1 / ERROR_SMOOTHING of the full correction at the next
+     * write.
+     */
+    @Test
+    void smoothsTheFillError() {
+        FakeCard card = new FakeCard(0);
+        PlaybackScheduler scheduler = new PlaybackScheduler(card.line(), FORMAT, TARGET_MILLIS);
+        byte[] block = block();
+        for (int i = 0; i < 3000; i++) {
+            tick(scheduler, card, block);
+        }
+        double before = scheduler.getRate();
+        scheduler.write(block, 0, block.length); // Two blocks without playing: the card stalled for 10 ms
+        int jump = scheduler.getFillFrames();
+        tick(scheduler, card, block);
+        jump = scheduler.getFillFrames() - jump;
+        double full = PlaybackScheduler.RATE_GAIN * jump / scheduler.getTargetFrames();
+        double step = scheduler.getRate() - before;
+        assertTrue(jump > BLOCK_FRAMES / 2, "Fill jump " + jump);
+        assertEquals(full / PlaybackScheduler.ERROR_SMOOTHING, step, full / PlaybackScheduler.ERROR_SMOOTHING / 2);
+    }
+
+    /**
+     * When the mixer stops feeding the line and the card plays everything, the next write counts one underrun and
+     * fills the line with silence up to the target again.
+     */
+    @Test
+    void detectsUnderruns() {
+        FakeCard card = new FakeCard(0);
+        PlaybackScheduler scheduler = new PlaybackScheduler(card.line(), FORMAT, TARGET_MILLIS);
+        byte[] block = block();
+        for (int i = 0; i < 100; i++) {
+            tick(scheduler, card, block);
+        }
+        assertEquals(0, scheduler.getUnderruns());
+        card.advance(1_000_000_000L); // The mixer stalls for one second
+        assertEquals(0, card.queued());
+        scheduler.write(block, 0, block.length);
+        assertEquals(1, scheduler.getUnderruns());
+        assertEquals(scheduler.getTargetFrames(), scheduler.getFillFrames());
+        assertTrue(card.queued() >= scheduler.getTargetFrames());
+        for (int i = 0; i < 100; i++) {
+            tick(scheduler, card, block);
+        }
+        assertEquals(1, scheduler.getUnderruns());
+    }
+}
@@ -0,0 +1,128 @@
+package com.denkitronik.digitalaudioserver;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the polyphase sample rate converter.
+ */
+class PolyphaseResamplerTest {
+
+    /**
+     * Returns a stereo sine, the same in both channels.
+     *
+     * @param frames Number of frames
+     * @param hertz  Frequency
+     * @param rate   Sample rate
+     * @return Interleaved samples
+     */
+    private static float[] sine(int frames, double hertz, int rate) {
+        float[] samples = new float[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            samples[2 * i] = samples[2 * i + 1] = (float) (0.5 * Math.sin(2 * Math.PI * hertz * i / rate));
+        }
+        return samples;
+    }
+
+    /**
+     * Converts a signal in blocks and returns the converted signal.
+     *
+     * @param resampler   Converter
+     * @param input       Interleaved stereo samples
+     * @param blockFrames Frames per block
+     * @return Converted samples
+     */
+    private static float[] convert(PolyphaseResampler resampler, float[] input, int blockFrames) {
+        float[] output = new float[input.length * 2];
+        float[] block = new float[Math.max(blockFrames, resampler.getMaxOutputFrames(blockFrames)) * 2];
+        int out = 0;
+        for (int start = 0; start < input.length / 2; start += blockFrames) {
+            int frames = Math.min(blockFrames, input.length / 2 - start);
+            System.arraycopy(input, start * 2, block, 0, frames * 2);
+            int converted = resampler.process(block, frames);
+            assertTrue(converted <= resampler.getMaxOutputFrames(frames));
+            System.arraycopy(block, 0, output, out, converted * 2);
+            out += converted * 2;
+        }
+        return Arrays.copyOf(output, out);
+    }
+
+    /**
+     * Returns the largest absolute sample of a channel after the start of the signal.
+     *
+     * @param samples Interleaved stereo samples
+     * @param from    First frame measured
+     * @return Peak
+     */
+    private static double peak(float[] samples, int from) {
+        double peak = 0;
+        for (int i = from * 2; i < samples.length; i += 2) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+
+    /**
+     * 48 kHz is converted to 44.1 kHz with the right number of frames, and a 1 kHz tone keeps its level.
+     */
+    @Test
+    void convertsTheRateAndKeepsTheTone() {
+        PolyphaseResampler resampler = new PolyphaseResampler(2, 48000, 44100);
+        assertEquals(44100f, resampler.getOutputSampleRate(48000));
+        float[] output = convert(resampler, sine(48000, 1000, 48000), 480);
+        assertEquals(44100, output.length / 2, 2);
+        assertEquals(0.5, peak(output, PolyphaseResampler.TAPS), 0.02);
+        for (int i = 0; i < output.length; i += 2) {
+            assertEquals(output[i], output[i + 1]); // The channels are converted on their own
+        }
+    }
+
+    /**
+     * A tone above the Nyquist frequency of the output is removed instead of being folded back.
+     */
+    @Test
+    void removesFrequenciesThatWouldAlias() {
+        PolyphaseResampler resampler = new PolyphaseResampler(2, 48000, 44100);
+        float[] output = convert(resampler, sine(48000, 23000, 48000), 480);
+        double peak = peak(output, PolyphaseResampler.TAPS);
+        assertTrue(peak < 0.05, "Alias peak " + peak);
+    }
+
+    /**
+     * The blocks join without clicks: the output does not depend on the block size.
+     */
+    @Test
+    void blocksJoinSeamlessly() {
+        float[] input = sine(9600, 440, 48000);
+        float[] whole = convert(new PolyphaseResampler(2, 48000, 44100), input, 9600);
+        float[] blocks = convert(new PolyphaseResampler(2, 48000, 44100), input, 37);
+        assertEquals(whole.length, blocks.length);
+        for (int i = 0; i < whole.length; i++) {
+            assertEquals(whole[i], blocks[i], 1e-6f, "Sample " + i);
+        }
+    }
+
+    /**
+     * After a reset the converter starts again as if it was new.
+     */
+    @Test
+    void resetForgetsTheHistory() {
+        float[] input = sine(4800, 440, 48000);
+        PolyphaseResampler resampler = new PolyphaseResampler(2, 48000, 44100);
+        float[] first = convert(resampler, input, 480);
+        resampler.reset();
+        assertArrayEquals(first, convert(resampler, input, 480));
+    }
+
+    /**
+     * Rates that are not positive are rejected.
+     */
+    @Test
+    void rejectsInvalidRates() {
+        assertThrows(IllegalArgumentException.class, () -> new PolyphaseResampler(1, 0, 44100));
+        assertThrows(IllegalArgumentException.class, () -> new PolyphaseResampler(1, 48000, -1));
+    }
+}